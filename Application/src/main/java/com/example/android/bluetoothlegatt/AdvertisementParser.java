@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.Arrays;
+
+/**
+ * Walks the AD structures of a raw advertisement (length, type, data...) in place.  Results go
+ * into a {@link Fields} object owned by the caller, typically one per device, so parsing a
+ * repeated advertisement allocates nothing: byte ranges such as manufacturer data are kept as
+ * offsets into the record rather than copied, and the name string is only rebuilt when its
+ * bytes change.
+ */
+public final class AdvertisementParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16_COMPLETE = 0x03;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128_COMPLETE = 0x07;
+    public static final int TYPE_NAME_SHORT = 0x08;
+    public static final int TYPE_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    private static final int MAX_UUID16 = 8;
+    private static final int MAX_UUID128 = 2;
+
+    public static final class Fields {
+        public int flags;
+        public int txPower;
+        public int manufacturerId;
+        // Manufacturer data payload (after the company id) as a range of record.
+        public byte[] record;
+        public int manufacturerOffset;
+        public int manufacturerLength;
+        public final int[] uuid16 = new int[MAX_UUID16];
+        public int uuid16Count;
+        public final long[] uuid128 = new long[MAX_UUID128 * 2];
+        public int uuid128Count;
+        public String name;
+
+        private byte[] mNameBytes = new byte[0];
+        private int mNameLength;
+        private int mRecordHash;
+        // A copy of the record last parsed, as the caller's array may be reused.
+        private byte[] mPrevious;
+
+        void reset() {
+            flags = -1;
+            txPower = NO_TX_POWER;
+            manufacturerId = -1;
+            manufacturerOffset = 0;
+            manufacturerLength = 0;
+            uuid16Count = 0;
+            uuid128Count = 0;
+        }
+    }
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * Parses a raw scan record into fields.
+     *
+     * @return false if the record is identical to the one parsed last time into the same
+     *         fields, in which case nothing was touched.
+     */
+    public static boolean parse(byte[] record, Fields out) {
+        if (record == null) return false;
+        int hash = hash(record);
+        // The hash only rules changes in; a match is confirmed byte by byte.
+        if (hash == out.mRecordHash && Arrays.equals(record, out.mPrevious)) {
+            out.record = record;
+            return false;
+        }
+        out.mRecordHash = hash;
+        if (out.mPrevious == null || out.mPrevious.length != record.length) {
+            out.mPrevious = new byte[record.length];
+        }
+        System.arraycopy(record, 0, out.mPrevious, 0, record.length);
+        out.record = record;
+        out.reset();
+
+        boolean sawName = false;
+        int i = 0;
+        while (i < record.length) {
+            int length = record[i] & 0xFF;
+            // A zero length marks the end of the significant part of the record.
+            if (length == 0 || i + 1 + length > record.length) break;
+            int type = record[i + 1] & 0xFF;
+            int data = i + 2;
+            int dataLength = length - 1;
+
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength >= 1) out.flags = record[data] & 0xFF;
+                    break;
+                case TYPE_TX_POWER:
+                    if (dataLength >= 1) out.txPower = record[data];
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16_COMPLETE:
+                    for (int j = 0; j + 1 < dataLength && out.uuid16Count < MAX_UUID16; j += 2) {
+                        out.uuid16[out.uuid16Count++] =
+                                (record[data + j] & 0xFF) | ((record[data + j + 1] & 0xFF) << 8);
+                    }
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128_COMPLETE:
+                    for (int j = 0; j + 15 < dataLength && out.uuid128Count < MAX_UUID128;
+                            j += 16) {
+                        // Little endian on air: the least significant half comes first.
+                        out.uuid128[out.uuid128Count * 2 + 1] = readLongLe(record, data + j);
+                        out.uuid128[out.uuid128Count * 2] = readLongLe(record, data + j + 8);
+                        out.uuid128Count++;
+                    }
+                    break;
+                case TYPE_NAME_SHORT:
+                case TYPE_NAME_COMPLETE:
+                    // The complete name wins over a shortened one.
+                    if (!sawName || type == TYPE_NAME_COMPLETE) {
+                        updateName(record, data, dataLength, out);
+                        sawName = true;
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2) {
+                        out.manufacturerId = (record[data] & 0xFF) | ((record[data + 1] & 0xFF) << 8);
+                        out.manufacturerOffset = data + 2;
+                        out.manufacturerLength = dataLength - 2;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            i += 1 + length;
+        }
+        return true;
+    }
+
+    private static void updateName(byte[] record, int offset, int length, Fields out) {
+        if (length == out.mNameLength) {
+            boolean same = true;
+            for (int i = 0; i < length; i++) {
+                if (out.mNameBytes[i] != record[offset + i]) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) return;
+        }
+        if (out.mNameBytes.length < length) {
+            out.mNameBytes = new byte[length];
+        }
+        System.arraycopy(record, offset, out.mNameBytes, 0, length);
+        out.mNameLength = length;
+        out.name = new String(record, offset, length, FrameSegmenter.UTF_8);
+    }
+
+    private static long readLongLe(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int hash(byte[] record) {
+        // FNV-1a over the significant part only; the zero padding never changes.
+        int hash = 0x811C9DC5;
+        int end = record.length;
+        while (end > 0 && record[end - 1] == 0) {
+            end--;
+        }
+        for (int i = 0; i < end; i++) {
+            hash = (hash ^ (record[i] & 0xFF)) * 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+/**
+ * Names from the Bluetooth SIG assigned numbers: services, characteristics, descriptors and
+ * company identifiers, plus a few well known vendor UUIDs.
+ *
+ * The data is a binary asset generated by tools/assigned_numbers/generate.py (see there for the
+ * layout), memory mapped on first use, so nothing is parsed or held on the heap.  UUIDs built on
+ * the Bluetooth base UUID are looked up by their 16-bit value in an open addressing table; any
+ * other UUID by binary search in a sorted 128-bit table.
+ */
+public final class AssignedNumbers {
+    private final static String TAG = AssignedNumbers.class.getSimpleName();
+
+    private static final String ASSET = "assigned_numbers.bin";
+    private static final int MAGIC = 0x5349474E;
+    private static final int VERSION = 1;
+
+    private static final int KIND_UUID = 0;
+    private static final int KIND_COMPANY = 1;
+    private static final int EMPTY = -1;
+    private static final int ENTRY16_SIZE = 8;
+    private static final int ENTRY128_SIZE = 20;
+
+    // 0000xxxx-0000-1000-8000-00805f9b34fb
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+
+    private static AssignedNumbers sInstance;
+
+    // Null when the asset could not be mapped; every lookup then misses.
+    private final ByteBuffer mBuffer;
+    private final int mMask;
+    private final int mShift;
+    private final int mCount128;
+    private final int mTable16;
+    private final int mTable128;
+    private final int mStrings;
+
+    public static synchronized AssignedNumbers getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AssignedNumbers(map(context));
+        }
+        return sInstance;
+    }
+
+    // Package private for tests, which map the asset from the source tree.
+    AssignedNumbers(ByteBuffer buffer) {
+        if (buffer != null && (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)) {
+            Log.e(TAG, "Unexpected " + ASSET + " format");
+            buffer = null;
+        }
+        mBuffer = buffer;
+        int capacity = buffer != null ? buffer.getInt(8) : 1;
+        mMask = capacity - 1;
+        mShift = 32 - Integer.numberOfTrailingZeros(capacity);
+        mCount128 = buffer != null ? buffer.getInt(16) : 0;
+        mTable16 = buffer != null ? buffer.getInt(20) : 0;
+        mTable128 = buffer != null ? buffer.getInt(24) : 0;
+        mStrings = buffer != null ? buffer.getInt(28) : 0;
+    }
+
+    /**
+     * @return The assigned name of a service, characteristic or descriptor, or null.
+     */
+    public String lookup(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        if (lsb == BASE_LSB && (msb & BASE_MSB_MASK) == BASE_MSB) {
+            return find16((KIND_UUID << 16) | (int) (msb >>> 32));
+        }
+        return find128(msb, lsb);
+    }
+
+    /**
+     * @return The name of the company with the given identifier, as found in manufacturer
+     *         specific advertising data, or null.
+     */
+    public String lookupCompany(int companyId) {
+        return find16((KIND_COMPANY << 16) | (companyId & 0xFFFF));
+    }
+
+    private String find16(int key) {
+        if (mBuffer == null) return null;
+        // Fibonacci hashing, the generator places entries the same way.
+        int slot = (key * 0x9E3779B1) >>> mShift;
+        while (true) {
+            int offset = mTable16 + slot * ENTRY16_SIZE;
+            int stored = mBuffer.getInt(offset);
+            if (stored == key) return string(mBuffer.getInt(offset + 4));
+            if (stored == EMPTY) return null;
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    private String find128(long msb, long lsb) {
+        int low = 0;
+        int high = mCount128 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = mTable128 + middle * ENTRY128_SIZE;
+            long storedMsb = mBuffer.getLong(offset);
+            long storedLsb = mBuffer.getLong(offset + 8);
+            int compare = storedMsb != msb
+                    ? (storedMsb < msb ? -1 : 1)
+                    : (storedLsb == lsb ? 0 : storedLsb < lsb ? -1 : 1);
+            if (compare == 0) return string(mBuffer.getInt(offset + 16));
+            if (compare < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return null;
+    }
+
+    private String string(int offset) {
+        int position = mStrings + offset;
+        int length = mBuffer.getShort(position) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = mBuffer.get(position + 2 + i);
+        }
+        return new String(bytes, FrameSegmenter.UTF_8);
+    }
+
+    private static ByteBuffer map(Context context) {
+        AssetFileDescriptor descriptor = null;
+        FileInputStream in = null;
+        try {
+            // The asset is stored uncompressed (see build.gradle), so it can be mapped in place.
+            descriptor = context.getAssets().openFd(ASSET);
+            in = descriptor.createInputStream();
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map " + ASSET, e);
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (descriptor != null) descriptor.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + ASSET, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Binary logger for the BLE hot path.
+ *
+ * A record is an event id, up to four primitive arguments and up to {@link #MAX_PAYLOAD} raw
+ * bytes, e.g. a frame.  Logging copies those into a lock-free ring of primitive slots; nothing
+ * is formatted or allocated.  A background thread drains the ring to rotating files in the
+ * app's files directory, and {@link #dump(File, PrintWriter)} renders them as text, hex dumps
+ * included, only when they are read.
+ *
+ * Records below {@link #COMPILE_LEVEL} are compiled out, as the check is on a constant; records
+ * below the runtime level cost one volatile read.  When the ring is full, records are dropped
+ * and counted rather than blocking the caller.
+ */
+public final class BleLog {
+    private final static String TAG = BleLog.class.getSimpleName();
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+
+    // Raise to INFO to compile every debug record out of the build.
+    public static final int COMPILE_LEVEL = DEBUG;
+
+    // Event ids, see EVENT_NAMES.
+    public static final int EVENT_FRAME = 1;
+    public static final int EVENT_HEART_RATE = 2;
+    public static final int EVENT_NOTIFICATION = 3;
+
+    private static final String[] EVENT_NAMES = {
+            null,
+            "frame",
+            "heart rate (bpm, flags)",
+            "notification (length, radio ns)",
+    };
+
+    public static final int MAX_PAYLOAD = 32;
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    // Per slot: time, header, four arguments, payload.
+    private static final int WORDS = 6 + MAX_PAYLOAD / 8;
+
+    private static final String DIRECTORY = "blelog";
+    private static final int FILE_COUNT = 4;
+    private static final long FILE_SIZE = 1024 * 1024;
+    private static final long DRAIN_INTERVAL = 100;
+    private static final int FILE_MAGIC = 0x424C4F47;
+
+    // Debug records cost disk writes and battery on every notification; raise on demand.
+    private static volatile int sLevel = INFO;
+
+    // Bounded multi-producer queue after Vyukov: a slot's sequence tells whether it is free for
+    // the producer at that position or filled for the consumer.
+    private static final AtomicLongArray sSequence = new AtomicLongArray(CAPACITY);
+    private static final long[] sWords = new long[CAPACITY * WORDS];
+    private static final AtomicLong sHead = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    private static long sTail;
+
+    private static Thread sDrainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sSequence.set(i, i);
+        }
+    }
+
+    private BleLog() {
+    }
+
+    /**
+     * Starts draining to files under the given directory.  Records logged before are kept, as
+     * far as the ring holds them.
+     */
+    public static synchronized void start(File filesDir) {
+        if (sDrainer != null) return;
+        final File directory = new File(filesDir, DIRECTORY);
+        sDrainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop(directory);
+            }
+        }, TAG);
+        sDrainer.setDaemon(true);
+        sDrainer.setPriority(Thread.MIN_PRIORITY);
+        sDrainer.start();
+    }
+
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= COMPILE_LEVEL && level >= sLevel;
+    }
+
+    public static long getDropped() {
+        return sDropped.get();
+    }
+
+    public static void d(int event, long a) {
+        if (DEBUG < COMPILE_LEVEL || DEBUG < sLevel) return;
+        write(DEBUG, event, 1, a, 0, 0, 0, null);
+    }
+
+    public static void d(int event, long a, long b) {
+        if (DEBUG < COMPILE_LEVEL || DEBUG < sLevel) return;
+        write(DEBUG, event, 2, a, b, 0, 0, null);
+    }
+
+    public static void d(int event, byte[] payload) {
+        if (DEBUG < COMPILE_LEVEL || DEBUG < sLevel) return;
+        write(DEBUG, event, 0, 0, 0, 0, 0, payload);
+    }
+
+    public static void v(int event, long a, long b) {
+        if (VERBOSE < COMPILE_LEVEL || VERBOSE < sLevel) return;
+        write(VERBOSE, event, 2, a, b, 0, 0, null);
+    }
+
+    public static void log(int level, int event, int argc, long a, long b, long c, long d,
+                           byte[] payload) {
+        if (level < COMPILE_LEVEL || level < sLevel) return;
+        write(level, event, argc, a, b, c, d, payload);
+    }
+
+    private static void write(int level, int event, int argc, long a, long b, long c, long d,
+                              byte[] payload) {
+        long position = sHead.get();
+        while (true) {
+            final long available = sSequence.get((int) position & MASK) - position;
+            if (available == 0) {
+                if (sHead.compareAndSet(position, position + 1)) break;
+            } else if (available < 0) {
+                sDropped.incrementAndGet();
+                return;
+            } else {
+                position = sHead.get();
+            }
+        }
+
+        final int slot = (int) position & MASK;
+        final int base = slot * WORDS;
+        final int length = payload == null ? 0 : Math.min(payload.length, MAX_PAYLOAD);
+        sWords[base] = SystemClock.elapsedRealtimeNanos();
+        sWords[base + 1] = ((long) event << 32) | (level << 16) | (argc << 8) | length;
+        sWords[base + 2] = a;
+        sWords[base + 3] = b;
+        sWords[base + 4] = c;
+        sWords[base + 5] = d;
+        // Only the words holding the payload; the drain reads no further.
+        for (int i = 0; i < (length + 7) / 8; i++) {
+            long word = 0;
+            for (int j = 0; j < 8; j++) {
+                final int k = i * 8 + j;
+                word = (word << 8) | (k < length ? payload[k] & 0xFF : 0);
+            }
+            sWords[base + 6 + i] = word;
+        }
+        // Publishes the slot; ordered after the writes above.
+        sSequence.lazySet(slot, position + 1);
+    }
+
+    private static void drainLoop(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Unable to create " + directory);
+            return;
+        }
+        DataOutputStream out = null;
+        long written = 0;
+        final byte[] payload = new byte[MAX_PAYLOAD];
+        while (true) {
+            try {
+                if (out == null || written >= FILE_SIZE) {
+                    if (out != null) out.close();
+                    rotate(directory);
+                    out = open(new File(directory, fileName(0)));
+                    written = 4;
+                }
+                final long drained = drain(out, payload);
+                if (drained > 0) {
+                    out.flush();
+                    written += drained;
+                }
+                Thread.sleep(DRAIN_INTERVAL);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write the log, stopping", e);
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Package private for tests, which drain the ring themselves instead of starting the thread.
+    static DataOutputStream open(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        out.writeInt(FILE_MAGIC);
+        return out;
+    }
+
+    /**
+     * Moves every published record from the ring to the stream.  Only one thread may drain.
+     *
+     * @return The number of bytes written.
+     */
+    static long drain(DataOutputStream out, byte[] payload) throws IOException {
+        long written = 0;
+        while (sSequence.get((int) sTail & MASK) == sTail + 1) {
+            final int slot = (int) sTail & MASK;
+            final int base = slot * WORDS;
+            final long header = sWords[base + 1];
+            final int length = (int) header & 0xFF;
+            out.writeLong(sWords[base]);
+            out.writeLong(header);
+            for (int i = 0; i < 4; i++) {
+                out.writeLong(sWords[base + 2 + i]);
+            }
+            for (int i = 0; i < length; i++) {
+                payload[i] = (byte) (sWords[base + 6 + i / 8] >>> (56 - (i % 8) * 8));
+            }
+            out.write(payload, 0, length);
+            written += 48 + length;
+            // Frees the slot for the producer one lap ahead.
+            sSequence.lazySet(slot, sTail + CAPACITY);
+            sTail++;
+        }
+        return written;
+    }
+
+    private static void rotate(File directory) {
+        new File(directory, fileName(FILE_COUNT - 1)).delete();
+        for (int i = FILE_COUNT - 2; i >= 0; i--) {
+            new File(directory, fileName(i)).renameTo(new File(directory, fileName(i + 1)));
+        }
+    }
+
+    private static String fileName(int index) {
+        return "ble-" + index + ".log";
+    }
+
+    /**
+     * @return The log files, newest first.  Some may not exist yet.
+     */
+    public static File[] getFiles(File filesDir) {
+        final File[] files = new File[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            files[i] = new File(new File(filesDir, DIRECTORY), fileName(i));
+        }
+        return files;
+    }
+
+    /**
+     * Renders a log file as text, one record per line.  This is where hex dumps are made.
+     */
+    public static void dump(File file, PrintWriter out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException(file + " is not a BLE log");
+            }
+            final byte[] payload = new byte[MAX_PAYLOAD];
+            while (true) {
+                final long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return;
+                }
+                final long header = in.readLong();
+                final int event = (int) (header >>> 32);
+                final int level = (int) (header >>> 16) & 0xFF;
+                final int argc = (int) (header >>> 8) & 0xFF;
+                final int length = (int) header & 0xFF;
+                final StringBuilder line = new StringBuilder();
+                line.append(time / 1000000).append('.')
+                        .append(String.format("%06d", time % 1000000)).append(' ')
+                        .append("VDIW".charAt(Math.max(0, Math.min(3, level - VERBOSE))))
+                        .append(' ')
+                        .append(event > 0 && event < EVENT_NAMES.length
+                                ? EVENT_NAMES[event] : "event " + event);
+                for (int i = 0; i < 4; i++) {
+                    final long arg = in.readLong();
+                    if (i < argc) line.append(i == 0 ? ": " : ", ").append(arg);
+                }
+                in.readFully(payload, 0, length);
+                if (length > 0) line.append(argc > 0 ? " " : ": ");
+                for (int i = 0; i < length; i++) {
+                    line.append(String.format("%02X ", payload[i]));
+                }
+                out.println(line);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
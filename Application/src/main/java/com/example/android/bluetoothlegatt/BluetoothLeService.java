@@ -16,6 +16,11 @@
 
 package com.example.android.bluetoothlegatt;
 
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -26,35 +31,83 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.v4.content.ContextCompat;
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
  * given Bluetooth LE device.
+ *
+ * Once asked to connect, the service starts itself in the foreground and owns the link: it
+ * polls, reconnects after a drop and keeps running when every activity goes away.  It also
+ * turns incoming calls and SMS into alerts for the device, queued in the outbox while the device
+ * is out of reach.  Activities only bind to watch it.  {@link #ACTION_STOP} ends all of that.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private final static UUID WRITE_UUID = UUID.fromString("0000033f1-0000-1000-8000-00805f9b34fb");
 
-    private final static UUID READ_UUID = UUID.fromString("00000ff01-0000-1000-8000-00805f9b34fb");
+    final static UUID READ_UUID = UUID.fromString("00000ff01-0000-1000-8000-00805f9b34fb");
+
+    private final static String KEY_POLL = "poll";
+    private final static String KEY_STIMULATION = "stimulation";
+
+    // Frames carry at most ATT MTU - 3 bytes; 23 is the MTU every link starts with.
+    private final static int DEFAULT_FRAME_SIZE = 20;
+    private final static int PREFERRED_MTU = 247;
+
+    // Give up on a connection that hasn't reached service discovery by then.
+    private final static long CONNECT_TIMEOUT = 15000;
+
+    private final static long POLL_PERIOD = 1000;
+    private final static long POLL_SLACK = 100;
+
+    // Backoff between reconnect attempts after the link drops.
+    private final static long RECONNECT_MIN = 1000;
+    private final static long RECONNECT_MAX = 30000;
+    private final static long RECONNECT_SLACK = 500;
+
+    // Call state frames supersede each other, only the latest state is worth sending.  A new
+    // state also drops the caller of the previous one, if it hasn't gone out yet.
+    private final static String KEY_CALL = "call";
+    private final static String KEY_CALL_NUMBER = KEY_CALL + "/number";
+    // A call alert is stale once the band has been out of range for this long; an SMS isn't.
+    private final static long CALL_TTL = 60 * 1000;
+    private final static long SMS_TTL = 12 * 60 * 60 * 1000;
+
+    private final static String SMS_RECEIVED = "android.provider.Telephony.SMS_RECEIVED";
+
+    private final static String NOTIFICATION_CHANNEL = "connection";
+    private final static int NOTIFICATION_ID = 1;
+
+    private static TimerWheel sTimers;
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    private final ConnectionStateMachine mState = new ConnectionStateMachine();
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -66,10 +119,159 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA =
             "com.example.bluetooth.le.EXTRA_DATA";
+    public final static String EXTRA_UUID =
+            "com.example.bluetooth.le.EXTRA_UUID";
+    // SystemClock.elapsedRealtimeNanos() when the value came off the radio, or was answered
+    // from the read cache.
+    public final static String EXTRA_TIMESTAMP =
+            "com.example.bluetooth.le.EXTRA_TIMESTAMP";
+    public final static String ACTION_STOP =
+            "com.example.bluetooth.le.ACTION_STOP";
+    public final static String ACTION_HISTORY_PROGRESS =
+            "com.example.bluetooth.le.ACTION_HISTORY_PROGRESS";
+    public final static String ACTION_HISTORY_COMPLETE =
+            "com.example.bluetooth.le.ACTION_HISTORY_COMPLETE";
+    public final static String ACTION_HISTORY_FAILED =
+            "com.example.bluetooth.le.ACTION_HISTORY_FAILED";
+    public final static String EXTRA_HISTORY_RECEIVED =
+            "com.example.bluetooth.le.EXTRA_HISTORY_RECEIVED";
+    public final static String EXTRA_HISTORY_TOTAL =
+            "com.example.bluetooth.le.EXTRA_HISTORY_TOTAL";
+    public final static String EXTRA_HISTORY_RATE =
+            "com.example.bluetooth.le.EXTRA_HISTORY_RATE";
+    public final static String EXTRA_HISTORY_FILE =
+            "com.example.bluetooth.le.EXTRA_HISTORY_FILE";
+    public final static String ACTION_OTA_PROGRESS =
+            "com.example.bluetooth.le.ACTION_OTA_PROGRESS";
+    public final static String ACTION_OTA_COMPLETE =
+            "com.example.bluetooth.le.ACTION_OTA_COMPLETE";
+    public final static String EXTRA_OTA_VERIFIED =
+            "com.example.bluetooth.le.EXTRA_OTA_VERIFIED";
+    public final static String EXTRA_OTA_TOTAL =
+            "com.example.bluetooth.le.EXTRA_OTA_TOTAL";
+    public final static String EXTRA_OTA_RATE =
+            "com.example.bluetooth.le.EXTRA_OTA_RATE";
+    public final static String EXTRA_OTA_ETA =
+            "com.example.bluetooth.le.EXTRA_OTA_ETA";
+    public final static String EXTRA_OTA_SUCCESS =
+            "com.example.bluetooth.le.EXTRA_OTA_SUCCESS";
+    // Heart Rate Measurement values also carry their decoded fields, and the heart rate
+    // variability of the last minute of beats (NaN until there are enough).
+    public final static String EXTRA_HEART_RATE =
+            "com.example.bluetooth.le.EXTRA_HEART_RATE";
+    public final static String EXTRA_SENSOR_CONTACT =
+            "com.example.bluetooth.le.EXTRA_SENSOR_CONTACT";
+    public final static String EXTRA_ENERGY_EXPENDED =
+            "com.example.bluetooth.le.EXTRA_ENERGY_EXPENDED";
+    public final static String EXTRA_RR_INTERVALS =
+            "com.example.bluetooth.le.EXTRA_RR_INTERVALS";
+    public final static String EXTRA_HRV_RMSSD =
+            "com.example.bluetooth.le.EXTRA_HRV_RMSSD";
+    public final static String EXTRA_HRV_SDNN =
+            "com.example.bluetooth.le.EXTRA_HRV_SDNN";
+    public final static String EXTRA_HRV_PNN50 =
+            "com.example.bluetooth.le.EXTRA_HRV_PNN50";
+    public final static String ACTION_OUTBOX_FLUSHED =
+            "com.example.bluetooth.le.ACTION_OUTBOX_FLUSHED";
+    public final static String EXTRA_OUTBOX_SENT =
+            "com.example.bluetooth.le.EXTRA_OUTBOX_SENT";
+    public final static String EXTRA_OUTBOX_DEPTH =
+            "com.example.bluetooth.le.EXTRA_OUTBOX_DEPTH";
+    public final static String EXTRA_OUTBOX_DURATION =
+            "com.example.bluetooth.le.EXTRA_OUTBOX_DURATION";
 
     public final static UUID UUID_HEART_RATE_MEASUREMENT =
             UUID.fromString(SampleGattAttributes.HEART_RATE_MEASUREMENT);
 
+    private final Handler mHandler = new Handler();
+    private final OutboundScheduler mScheduler = new OutboundScheduler(mHandler, getTimers());
+    private HistoryDownloader mHistoryDownloader;
+    private OtaUpdater mOtaUpdater;
+    private OutboundStore mOutbox;
+    // The snapshot being taken, and who gets it.  Main thread, except that the GATT callbacks
+    // offer their reads to it.
+    private volatile GattSnapshot mSnapshot;
+    private GattSnapshot.Callback mSnapshotCallback;
+    private SubscriptionManager mSubscriptions;
+    private final ReadCache mReadCache = new ReadCache();
+    private StimulationController mStimulation;
+    private final FrameIntegrity mIntegrity = new FrameIntegrity();
+    // Binder thread, like the GATT callbacks that feed them.
+    private final HeartRateMeasurement mHeartRate = new HeartRateMeasurement();
+    private final HrvEngine mHrv = new HrvEngine();
+    // Set when the device's firmware frames READ_UUID/WRITE_UUID traffic, see FrameIntegrity.
+    private volatile boolean mFramingEnabled;
+    private KnownDeviceRegistry mKnownDevices;
+    private int mFrameSize = DEFAULT_FRAME_SIZE;
+    private int mMessageId;
+
+    // Started (and in the foreground) while it owns a connection.
+    private boolean mStarted;
+    private boolean mDisconnectRequested;
+    private long mReconnectDelay = RECONNECT_MIN;
+    private int mReconnectsAvoided;
+    private byte[] mLastData;
+
+    private final TimerWheel.Timer mPollTimer = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            // A history download has the link to itself.
+            if (!mHistoryDownloader.isActive()) {
+                readBleData();
+            }
+        }
+    });
+
+    private final TimerWheel.Timer mReconnect = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            if (mBluetoothDeviceAddress != null
+                    && mState.get() == ConnectionStateMachine.STATE_DISCONNECTED) {
+                connect(mBluetoothDeviceAddress);
+            }
+        }
+    });
+
+    private final TimerWheel.Timer mConnectTimeout = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            if (mBluetoothGatt == null || mState.hasServices()) return;
+            Log.w(TAG, "Connection to " + mBluetoothDeviceAddress + " timed out");
+            // close() drops the callback, so the disconnect is reported here.
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+            if (onLinkLost()) {
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+            }
+        }
+    });
+
+    private final Runnable mFinishSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            finishSnapshot();
+        }
+    };
+
+    private final TimerWheel.Timer mSnapshotBudget = new TimerWheel.Timer(mFinishSnapshot);
+
+    // Posted once subscriptions are restored, so alerts find the device listening.
+    private final Runnable mOutboxReady = new Runnable() {
+        @Override
+        public void run() {
+            if (mState.get() == ConnectionStateMachine.STATE_READY) {
+                mOutbox.setReady(true);
+            }
+        }
+    };
+
+    private final Runnable mOutboxLost = new Runnable() {
+        @Override
+        public void run() {
+            mOutbox.setReady(false);
+        }
+    };
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -77,17 +279,26 @@ public class BluetoothLeService extends Service {
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String intentAction;
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                // Not while disconnecting, or after the attempt was given up.
+                if (!mState.transition(ConnectionStateMachine.STATE_CONNECTING,
+                        ConnectionStateMachine.STATE_CONNECTED)) {
+                    Log.w(TAG, "Connected while " + ConnectionStateMachine.getName(mState.get())
+                            + ", ignored");
+                    return;
+                }
                 intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
                 broadcastUpdate(intentAction);
                 Log.i(TAG, "Connected to GATT server.");
                 // Attempts to discover services after successful connection.
+                mState.transition(ConnectionStateMachine.STATE_CONNECTED,
+                        ConnectionStateMachine.STATE_DISCOVERING);
                 Log.i(TAG, "Attempting to start service discovery:" +
                         mBluetoothGatt.discoverServices());
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
+                // A second report of the same drop must not schedule a second reconnect.
+                if (!onLinkLost()) return;
                 Log.i(TAG, "Disconnected from GATT server.");
                 broadcastUpdate(intentAction);
             }
@@ -96,7 +307,41 @@ public class BluetoothLeService extends Service {
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (!mState.transition(ConnectionStateMachine.STATE_DISCOVERING,
+                        ConnectionStateMachine.STATE_SUBSCRIBING)) {
+                    return;
+                }
+                mReconnectDelay = RECONNECT_MIN;
+                getTimers().cancel(mConnectTimeout);
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                mKnownDevices.onConnected(mBluetoothDeviceAddress, gatt.getDevice().getName());
+                requestMtu();
+                mIntegrity.onConnected(mBluetoothDeviceAddress);
+                mSubscriptions.onConnected(mBluetoothDeviceAddress, gatt.getServices());
+                subscribeChannel(HistoryDownloader.CHANNEL_UUID);
+                subscribeChannel(OtaUpdater.CHANNEL_UUID);
+                if (!mSubscriptions.isSubscribing() && mState.transition(
+                        ConnectionStateMachine.STATE_SUBSCRIBING,
+                        ConnectionStateMachine.STATE_READY)) {
+                    mHandler.post(mOutboxReady);
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mStimulation.onConnected();
+                    }
+                });
+                final String address = mBluetoothDeviceAddress;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mHistoryDownloader.onConnected(address);
+                    }
+                });
+                mOtaUpdater.onConnected(mBluetoothDeviceAddress);
+                // Read right away, then keep polling whether or not anything is watching.
+                readBleData();
+                getTimers().schedulePeriodic(mPollTimer, POLL_PERIOD, POLL_SLACK);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
@@ -106,9 +351,74 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
+            final GattSnapshot snapshot = mSnapshot;
+            if (snapshot != null && snapshot.onRead(characteristic,
+                    status == BluetoothGatt.GATT_SUCCESS, characteristic.getValue())
+                    && snapshot.getPending() == 0) {
+                mHandler.post(mFinishSnapshot);
+            }
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                final boolean protocol = READ_UUID.equals(characteristic.getUuid());
+                if (protocol && mFramingEnabled
+                        && !mIntegrity.onRead(characteristic.getValue())) {
+                    Log.w(TAG, "Corrupt read dropped");
+                    mReadCache.onReadFailed(characteristic);
+                    mScheduler.onOperationComplete(characteristic, true);
+                    return;
+                }
+                mReadCache.onRead(characteristic, characteristic.getValue());
+                if (protocol) {
+                    mLastData = characteristic.getValue();
+                }
                 broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            } else {
+                mReadCache.onReadFailed(characteristic);
+            }
+            mScheduler.onOperationComplete(characteristic, true);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onCharacteristicWrite received: " + status);
+            }
+            mScheduler.onOperationComplete(characteristic, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mFrameSize = mtu - 3;
+                Log.i(TAG, "MTU changed to " + mtu);
             }
+            mScheduler.onOperationComplete(null, true);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            final GattSnapshot snapshot = mSnapshot;
+            if (snapshot != null && snapshot.onRead(descriptor,
+                    status == BluetoothGatt.GATT_SUCCESS, descriptor.getValue())
+                    && snapshot.getPending() == 0) {
+                mHandler.post(mFinishSnapshot);
+            }
+            mScheduler.onOperationComplete(descriptor, status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onDescriptorWrite received: " + status);
+            }
+            if (SubscriptionManager.CLIENT_CHARACTERISTIC_CONFIG.equals(descriptor.getUuid())) {
+                mSubscriptions.onDescriptorWrite(descriptor.getCharacteristic(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+            mScheduler.onOperationComplete(descriptor, true);
         }
 
         @Override
@@ -116,15 +426,317 @@ public class BluetoothLeService extends Service {
                                             BluetoothGattCharacteristic characteristic) {
             // broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
 
-            Intent intent = new Intent(ACTION_DATA_AVAILABLE);
-            byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                intent.putExtra(EXTRA_DATA, data);
-                sendBroadcast(intent);
+            // Stamped first thing, for LatencyTracer.
+            final long stamp = SystemClock.elapsedRealtimeNanos();
+            Trace.beginSection("BLE notify");
+            try {
+                handleNotification(characteristic, stamp);
+            } finally {
+                Trace.endSection();
+            }
+        }
+    };
+
+    private final HistoryDownloader.Link mHistoryLink = new HistoryDownloader.Link() {
+        @Override
+        public boolean send(byte[] frame) {
+            if (mBluetoothGatt == null) return false;
+            mScheduler.enqueue(new WriteOperation(HistoryDownloader.CHANNEL_UUID,
+                    OutboundScheduler.PRIORITY_SYNC, null, frame,
+                    BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, null));
+            return true;
+        }
+    };
+
+    private final OtaUpdater.Link mOtaLink = new OtaUpdater.Link() {
+        @Override
+        public boolean send(byte[] frame) {
+            if (mBluetoothGatt == null) return false;
+            final int generation = mOtaUpdater.getGeneration();
+            // Unkeyed and in one class, so frames keep their order; sync has no rate limit.
+            mScheduler.enqueue(new WriteOperation(OtaUpdater.CHANNEL_UUID,
+                    OutboundScheduler.PRIORITY_SYNC, null, frame,
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, null) {
+                @Override
+                protected boolean isCancelled() {
+                    // Queued before a rewind; the updater resends it.
+                    return generation != mOtaUpdater.getGeneration();
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public int getFrameSize() {
+            return getUsableFrameSize();
+        }
+
+        @Override
+        public void setHighPriority(boolean high) {
+            requestConnectionPriority(high);
+        }
+    };
+
+    private final SubscriptionManager.Link mSubscriptionLink = new SubscriptionManager.Link() {
+        @Override
+        public void writeDescriptors(BluetoothGattCharacteristic[] characteristics,
+                                     byte[][] values) {
+            DescriptorOperation[] operations = new DescriptorOperation[characteristics.length];
+            for (int i = 0; i < characteristics.length; i++) {
+                operations[i] = new DescriptorOperation(characteristics[i], values[i]);
+            }
+            mScheduler.enqueueBurst(operations);
+        }
+    };
+
+    private final StimulationController.Link mStimulationLink = new StimulationController.Link() {
+        @Override
+        public boolean send(byte[] frame) {
+            if (mBluetoothGatt == null || !mState.hasServices()) return false;
+            mScheduler.enqueueLatest(new WriteOperation(OutboundScheduler.PRIORITY_CONTROL,
+                    KEY_STIMULATION, frame, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+            return true;
+        }
+
+        @Override
+        public boolean sendStop(byte[] frame) {
+            if (mBluetoothGatt == null || !mState.hasServices()) return false;
+            mScheduler.enqueueUrgent(new WriteOperation(OutboundScheduler.PRIORITY_ALERT,
+                    KEY_STIMULATION, frame, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) {
+                @Override
+                protected void onComplete(final boolean success) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            mStimulation.onStopComplete(success);
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+    };
+
+    private final SubscriptionManager.Listener mSubscriptionListener =
+            new SubscriptionManager.Listener() {
+        @Override
+        public void onSubscribed(String address, int count, long elapsed) {
+            Log.i(TAG, "Subscribed to " + count + " characteristics of " + address + " in "
+                    + elapsed + " ms");
+            // Later batches, from subscribe(), find it ready already.
+            mState.transition(ConnectionStateMachine.STATE_SUBSCRIBING,
+                    ConnectionStateMachine.STATE_READY);
+            mHandler.post(mOutboxReady);
+        }
+    };
+
+    private final OutboundStore.Link mOutboxLink = new OutboundStore.Link() {
+        @Override
+        public void send(OutboundStore.Entry entry) {
+            final ArrayList<OutboxOperation> operations = new ArrayList<OutboxOperation>();
+            addOutboxOperations(entry, true, operations);
+            if (operations.size() == 1 && entry.getKey() != null) {
+                // A lone keyed frame coalesces with the state it supersedes.
+                mScheduler.enqueue(operations.get(0));
+            } else {
+                mScheduler.enqueueBurst(
+                        operations.toArray(new OutboxOperation[operations.size()]));
+            }
+        }
+
+        @Override
+        public void sendBurst(OutboundStore.Entry[] entries) {
+            final ArrayList<OutboxOperation> operations = new ArrayList<OutboxOperation>();
+            for (OutboundStore.Entry entry : entries) {
+                addOutboxOperations(entry, false, operations);
+            }
+            mScheduler.enqueueBurst(operations.toArray(new OutboxOperation[operations.size()]));
+        }
+    };
+
+    private TelephonyManager mTelephonyManager;
+    // Listening needs READ_PHONE_STATE, which a screen may only get after the service started.
+    private boolean mCallAlerts;
+
+    private final PhoneStateListener mCallListener = new PhoneStateListener() {
+        @Override
+        public void onCallStateChanged(int state, String incomingNumber) {
+            super.onCallStateChanged(state, incomingNumber);
+            Log.d(TAG, "Call state " + state);
+            if (state == TelephonyManager.CALL_STATE_RINGING) {
+                mOutbox.add(OutboundScheduler.PRIORITY_ALERT, KEY_CALL, CALL_TTL,
+                        callFrame(true, incomingNumber));
+                // The fixed frame only holds 17 bytes, send the full caller as well.
+                if (incomingNumber != null
+                        && incomingNumber.getBytes(FrameSegmenter.UTF_8).length > 17) {
+                    mOutbox.addMessage(OutboundScheduler.PRIORITY_ALERT, KEY_CALL_NUMBER,
+                            CALL_TTL, FrameSegmenter.KIND_CALL, incomingNumber, null);
+                }
+            } else {
+                // Supersedes the ringing alert and caller, should they still be queued.
+                mOutbox.add(OutboundScheduler.PRIORITY_ALERT, KEY_CALL, CALL_TTL,
+                        callFrame(false, incomingNumber));
             }
         }
     };
 
+    private final BroadcastReceiver mSmsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String[] message = SmsListener.readMessage(intent);
+            if (message == null) return;
+            Log.d(TAG, "SMS received");
+            mOutbox.addMessage(OutboundScheduler.PRIORITY_ALERT, null, SMS_TTL,
+                    FrameSegmenter.KIND_SMS, message[0], message[1]);
+        }
+    };
+
+    private static byte[] callFrame(boolean ringing, String number) {
+        PhoneCallFrame frame = new PhoneCallFrame();
+        frame.ringing = ringing;
+        if (ringing && number != null && number.length() > 0) {
+            frame.number = FrameSegmenter.truncate(number, PhoneCallFrame.NUMBER_SIZE);
+            frame.numberLength = frame.number.length;
+        }
+        return PhoneCallFrameCodec.encode(frame);
+    }
+
+    private final OutboundStore.Listener mOutboxListener = new OutboundStore.Listener() {
+        @Override
+        public void onFlushed(int sent, int depth, long elapsed) {
+            Log.i(TAG, "Outbox flushed " + sent + " entries in " + elapsed + " ms, " + depth
+                    + " left");
+            final Intent intent = new Intent(ACTION_OUTBOX_FLUSHED);
+            intent.putExtra(EXTRA_OUTBOX_SENT, sent);
+            intent.putExtra(EXTRA_OUTBOX_DEPTH, depth);
+            intent.putExtra(EXTRA_OUTBOX_DURATION, elapsed);
+            sendBroadcast(intent);
+        }
+    };
+
+    private final HistoryDownloader.Listener mHistoryListener = new HistoryDownloader.Listener() {
+        @Override
+        public void onProgress(long receivedChunks, long totalChunks, long bytesPerSecond) {
+            final Intent intent = new Intent(ACTION_HISTORY_PROGRESS);
+            intent.putExtra(EXTRA_HISTORY_RECEIVED, receivedChunks);
+            intent.putExtra(EXTRA_HISTORY_TOTAL, totalChunks);
+            intent.putExtra(EXTRA_HISTORY_RATE, bytesPerSecond);
+            sendBroadcast(intent);
+        }
+
+        @Override
+        public void onComplete(File file, long totalChunks) {
+            final Intent intent = new Intent(ACTION_HISTORY_COMPLETE);
+            intent.putExtra(EXTRA_HISTORY_FILE, file.getAbsolutePath());
+            intent.putExtra(EXTRA_HISTORY_TOTAL, totalChunks);
+            sendBroadcast(intent);
+        }
+
+        @Override
+        public void onFailed(String address) {
+            broadcastUpdate(ACTION_HISTORY_FAILED);
+        }
+    };
+
+    private final OtaUpdater.Listener mOtaListener = new OtaUpdater.Listener() {
+        @Override
+        public void onProgress(long verifiedBytes, long totalBytes, long bytesPerSecond,
+                               long etaMillis) {
+            final Intent intent = new Intent(ACTION_OTA_PROGRESS);
+            intent.putExtra(EXTRA_OTA_VERIFIED, verifiedBytes);
+            intent.putExtra(EXTRA_OTA_TOTAL, totalBytes);
+            intent.putExtra(EXTRA_OTA_RATE, bytesPerSecond);
+            intent.putExtra(EXTRA_OTA_ETA, etaMillis);
+            sendBroadcast(intent);
+        }
+
+        @Override
+        public void onComplete(boolean success) {
+            final Intent intent = new Intent(ACTION_OTA_COMPLETE);
+            intent.putExtra(EXTRA_OTA_SUCCESS, success);
+            sendBroadcast(intent);
+        }
+    };
+
+    /**
+     * Common cleanup for a link that went down, reported by the stack or timed out.
+     *
+     * @return false if it was down already, in which case no reconnect is scheduled.
+     */
+    private boolean onLinkLost() {
+        final boolean wasUp = mState.transition(ConnectionStateMachine.STATE_DISCONNECTED);
+        mFrameSize = DEFAULT_FRAME_SIZE;
+        getTimers().cancel(mConnectTimeout);
+        getTimers().cancel(mPollTimer);
+        mScheduler.clear();
+        if (mFramingEnabled) {
+            Log.d(TAG, "Link quality: " + mIntegrity.getConnectionStats());
+        }
+        Log.d(TAG, "Read cache: " + mReadCache.getHits() + " hits, " + mReadCache.getJoined()
+                + " joined, " + mReadCache.getMisses() + " reads");
+        mReadCache.clear();
+        synchronized (mHeartRate) {
+            mHrv.onGap();
+        }
+        mSubscriptions.onDisconnected();
+        mHandler.post(mOutboxLost);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mStimulation.onDisconnected();
+            }
+        });
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHistoryDownloader.onDisconnected();
+            }
+        });
+        mOtaUpdater.onDisconnected();
+        if (mSnapshot != null) {
+            // Its queued reads are gone; hand out what was read.
+            mHandler.post(mFinishSnapshot);
+        }
+        if (wasUp && mStarted && !mDisconnectRequested && mBluetoothDeviceAddress != null) {
+            Log.i(TAG, "Link lost, reconnecting in " + mReconnectDelay + " ms");
+            getTimers().schedule(mReconnect, mReconnectDelay, RECONNECT_SLACK);
+            mReconnectDelay = Math.min(mReconnectDelay * 2, RECONNECT_MAX);
+        }
+        return wasUp;
+    }
+
+    private void handleNotification(BluetoothGattCharacteristic characteristic, long stamp) {
+        mReadCache.invalidate(characteristic);
+        byte[] data = characteristic.getValue();
+        BleLog.v(BleLog.EVENT_NOTIFICATION, data != null ? data.length : 0, stamp);
+        if (mFramingEnabled && READ_UUID.equals(characteristic.getUuid())) {
+            switch (mIntegrity.onNotification(data)) {
+                case FrameIntegrity.CORRUPT:
+                    // Fetch the current frame instead.
+                    read(characteristic, OutboundScheduler.PRIORITY_CONTROL, null);
+                    return;
+                case FrameIntegrity.DUPLICATE:
+                    return;
+                case FrameIntegrity.GAP:
+                    // The frames in between are gone, but the current state is a read away.
+                    read(characteristic, OutboundScheduler.PRIORITY_CONTROL, null);
+                    break;
+            }
+        }
+        if (mHistoryDownloader.onNotification(characteristic.getUuid(), data)
+                || mOtaUpdater.onNotification(characteristic.getUuid(), data)) {
+            return;
+        }
+        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
+            handleHeartRate(characteristic, data, stamp);
+            return;
+        }
+        if (data != null && data.length > 0) {
+            mLastData = data;
+            broadcastData(characteristic, data, stamp);
+        }
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
@@ -132,34 +744,76 @@ public class BluetoothLeService extends Service {
 
     private void broadcastUpdate(final String action,
                                  final BluetoothGattCharacteristic characteristic) {
+        broadcastUpdate(action, characteristic, characteristic.getValue());
+    }
+
+    // A value read from the device, or answered from the read cache.
+    private void broadcastUpdate(final String action,
+                                 final BluetoothGattCharacteristic characteristic,
+                                 final byte[] value) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
+        intent.putExtra(EXTRA_TIMESTAMP, SystemClock.elapsedRealtimeNanos());
 
         // This is special handling for the Heart Rate Measurement profile.  Data parsing is
         // carried out as per profile specifications:
         // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            int flag = characteristic.getProperties();
-            int format = -1;
-            if ((flag & 0x01) != 0) {
-                format = BluetoothGattCharacteristic.FORMAT_UINT16;
-                Log.d(TAG, "Heart rate format UINT16.");
-            } else {
-                format = BluetoothGattCharacteristic.FORMAT_UINT8;
-                Log.d(TAG, "Heart rate format UINT8.");
+            // The format is in the flags byte of the value, not in the properties.  A read is
+            // not a new beat, so the beats don't go into the variability.  A cache hit comes
+            // from the caller's thread, hence the lock.
+            synchronized (mHeartRate) {
+                if (mHeartRate.decode(value)) {
+                    BleLog.d(BleLog.EVENT_HEART_RATE, mHeartRate.getHeartRate(),
+                            mHeartRate.getFlags());
+                    putHeartRate(intent);
+                }
             }
-            final int heartRate = characteristic.getIntValue(format, 1);
-            Log.d(TAG, String.format("Received heart rate: %d", heartRate));
-            intent.putExtra(EXTRA_DATA, String.valueOf(heartRate));
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, data);
+        }
+        // The raw value, as for a notification; the parsed heart rate goes in its own extras.
+        if (value != null && value.length > 0) {
+            intent.putExtra(EXTRA_DATA, value);
+        }
+        sendBroadcast(intent);
+    }
+
+    // A measurement notified: its beats go into the variability, then out like any value.
+    private void handleHeartRate(BluetoothGattCharacteristic characteristic, byte[] data,
+                                 long stamp) {
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        synchronized (mHeartRate) {
+            if (!mHeartRate.decode(data)) {
+                Log.w(TAG, "Malformed heart rate measurement dropped");
+                return;
             }
+            BleLog.d(BleLog.EVENT_HEART_RATE, mHeartRate.getHeartRate(), mHeartRate.getFlags());
+            mHrv.onMeasurement(mHeartRate);
+            putHeartRate(intent);
         }
+        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
+        intent.putExtra(EXTRA_TIMESTAMP, stamp);
+        intent.putExtra(EXTRA_DATA, data);
+        sendBroadcast(intent);
+    }
+
+    // Called holding the mHeartRate lock, which also guards mHrv.
+    private void putHeartRate(Intent intent) {
+        intent.putExtra(EXTRA_HEART_RATE, mHeartRate.getHeartRate());
+        intent.putExtra(EXTRA_SENSOR_CONTACT, mHeartRate.getSensorContact());
+        intent.putExtra(EXTRA_ENERGY_EXPENDED, mHeartRate.getEnergyExpended());
+        intent.putExtra(EXTRA_RR_INTERVALS, mHeartRate.getRrIntervalsMillis());
+        intent.putExtra(EXTRA_HRV_RMSSD, mHrv.getRmssd());
+        intent.putExtra(EXTRA_HRV_SDNN, mHrv.getSdnn());
+        intent.putExtra(EXTRA_HRV_PNN50, mHrv.getPnn50());
+    }
+
+    // Same as a notification: the raw value, tagged with the characteristic it came from.
+    private void broadcastData(final BluetoothGattCharacteristic characteristic,
+                               final byte[] data, final long stamp) {
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
+        intent.putExtra(EXTRA_TIMESTAMP, stamp);
+        intent.putExtra(EXTRA_DATA, data);
         sendBroadcast(intent);
     }
 
@@ -169,6 +823,53 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BleLog.start(getFilesDir());
+        mHistoryDownloader = new HistoryDownloader(mHandler,
+                getSharedPreferences(HistoryDownloader.PREFERENCES_NAME, MODE_PRIVATE),
+                getFilesDir(), getTimers(), mHistoryLink, mHistoryListener);
+        mOtaUpdater = new OtaUpdater(
+                getSharedPreferences(OtaUpdater.PREFERENCES_NAME, MODE_PRIVATE),
+                getTimers(), mOtaLink, mOtaListener);
+        mOutbox = new OutboundStore(getFilesDir(), mHandler, mOutboxLink, mOutboxListener);
+        mSubscriptions = new SubscriptionManager(
+                getSharedPreferences(SubscriptionManager.PREFERENCES_NAME, MODE_PRIVATE),
+                mSubscriptionLink, mSubscriptionListener);
+        mStimulation = new StimulationController(getTimers(), mStimulationLink);
+        mKnownDevices = new KnownDeviceRegistry(this);
+        // Alerts are produced here rather than by a screen, so they reach the outbox whether or
+        // not one is open.
+        mTelephonyManager = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
+        startCallAlerts();
+        registerReceiver(mSmsReceiver, new IntentFilter(SMS_RECEIVED));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            mDisconnectRequested = true;
+            close();
+            // Nothing to tell if the link was down already.
+            if (onLinkLost()) {
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+            }
+            stopStarted();
+            return START_NOT_STICKY;
+        }
+        mStarted = true;
+        startForeground(NOTIFICATION_ID, buildNotification());
+        // Restarted by the system after the process was killed: pick the link up again.
+        if (intent == null && mBluetoothGatt == null && initialize()) {
+            KnownDeviceRegistry.KnownDevice device = mKnownDevices.getPreferred();
+            if (device != null) {
+                connect(device.address);
+            }
+        }
+        return START_STICKY;
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -176,11 +877,78 @@ public class BluetoothLeService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+        // The connection outlives the activities; it is closed when the service stops.
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
         close();
-        return super.onUnbind(intent);
+        // The timer wheel is static, nothing of this instance may stay on it.
+        getTimers().cancel(mReconnect);
+        getTimers().cancel(mConnectTimeout);
+        getTimers().cancel(mPollTimer);
+        getTimers().cancel(mSnapshotBudget);
+        mScheduler.clear();
+        mHistoryDownloader.release();
+        mOtaUpdater.release();
+        if (mCallAlerts) {
+            mTelephonyManager.listen(mCallListener, PhoneStateListener.LISTEN_NONE);
+        }
+        unregisterReceiver(mSmsReceiver);
+        mOutbox.release();
+        mStimulation.onDisconnected();
+        // Nor may anything posted for it run after it is gone.
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Starts turning incoming calls into alerts, if the app may read the phone state.  For a
+     * screen to call once the user granted that; does nothing when already started.
+     */
+    public void startCallAlerts() {
+        if (mCallAlerts || ContextCompat.checkSelfPermission(this,
+                Manifest.permission.READ_PHONE_STATE) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        mTelephonyManager.listen(mCallListener, PhoneStateListener.LISTEN_CALL_STATE);
+        mCallAlerts = true;
+    }
+
+    private void stopStarted() {
+        if (!mStarted) return;
+        mStarted = false;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager =
+                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+                    getString(R.string.notification_channel),
+                    NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL);
+        } else {
+            builder = new Notification.Builder(this);
+        }
+        final Intent open = new Intent(this, DeviceControlActivity.class);
+        open.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, mBluetoothDeviceAddress);
+        final Intent stop = new Intent(this, BluetoothLeService.class);
+        stop.setAction(ACTION_STOP);
+        return builder
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_text))
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0, open,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .addAction(0, getString(R.string.menu_disconnect),
+                        PendingIntent.getService(this, 0, stop, PendingIntent.FLAG_UPDATE_CURRENT))
+                .build();
     }
 
     private final IBinder mBinder = new LocalBinder();
@@ -226,14 +994,52 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        final boolean sameDevice = address.equals(mBluetoothDeviceAddress)
+                && mBluetoothGatt != null;
+        // Switching to another device, let go of the previous connection first, like any link
+        // that went down but without reconnecting to it.
+        if (!sameDevice && mBluetoothGatt != null) {
+            mDisconnectRequested = true;
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+            if (onLinkLost()) {
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+            }
+        }
+
+        mDisconnectRequested = false;
+        getTimers().cancel(mReconnect);
+        if (!mStarted) {
+            // Started in the foreground from O, which onStartCommand confirms right away.
+            final Intent intent = new Intent(this, BluetoothLeService.class);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                startForegroundService(intent);
+            } else {
+                startService(intent);
+            }
+        }
+
+        // Only the caller that moves the link out of DISCONNECTED starts a connection; one that
+        // finds it up or on its way, e.g. a screen attaching again, reuses it as it is.
+        if (!mState.transition(ConnectionStateMachine.STATE_DISCONNECTED,
+                ConnectionStateMachine.STATE_CONNECTING)) {
+            if (sameDevice && mState.hasServices()) {
+                mReconnectsAvoided++;
+                Log.d(TAG, "Reusing link to " + address + ", "
+                        + mReconnectsAvoided + " reconnects avoided");
+            }
+            return sameDevice;
+        }
+
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
+        if (sameDevice) {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
             if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
+                getTimers().schedule(mConnectTimeout, CONNECT_TIMEOUT, 0);
                 return true;
             } else {
+                mState.transition(ConnectionStateMachine.STATE_CONNECTING,
+                        ConnectionStateMachine.STATE_DISCONNECTED);
                 return false;
             }
         }
@@ -241,17 +1047,84 @@ public class BluetoothLeService extends Service {
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
+            mState.transition(ConnectionStateMachine.STATE_CONNECTING,
+                    ConnectionStateMachine.STATE_DISCONNECTED);
             return false;
         }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
+        mBluetoothDeviceAddress = address;
         mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
         Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        getTimers().schedule(mConnectTimeout, CONNECT_TIMEOUT, 0);
         return true;
     }
 
+    /**
+     * The app's single timer wheel, for every timeout, poll and retry.  It runs on the main
+     * thread and is reachable statically so activities can schedule before their binding to
+     * the service completes.
+     */
+    public static synchronized TimerWheel getTimers() {
+        if (sTimers == null) {
+            sTimers = new TimerWheel(new Handler(Looper.getMainLooper()));
+        }
+        return sTimers;
+    }
+
+    /**
+     * @return The address of the device this service is connected or connecting to.
+     */
+    public String getDeviceAddress() {
+        return mBluetoothDeviceAddress;
+    }
+
+    /**
+     * @return true if the current connection has completed service discovery, so an activity
+     *         attaching late doesn't wait for an {@code ACTION_GATT_SERVICES_DISCOVERED} that
+     *         has already been sent.
+     */
+    public boolean isServicesDiscovered() {
+        return mState.hasServices();
+    }
+
+    /**
+     * @return One of the {@code ConnectionStateMachine.STATE_*} constants.
+     */
+    public int getConnectionState() {
+        return mState.get();
+    }
+
+    /**
+     * @return The last connection state transitions, oldest first.
+     */
+    public String[] getTransitionLog() {
+        return mState.getTransitionLog();
+    }
+
+    /**
+     * @return The last telemetry frame from the device, so a screen coming back can show it
+     *         before the next poll completes, or null.
+     */
+    public byte[] getLastData() {
+        return mLastData;
+    }
+
+    /**
+     * @return How many times a screen asked to connect while the link was already up.
+     */
+    public int getReconnectsAvoided() {
+        return mReconnectsAvoided;
+    }
+
+    /**
+     * @return Milliseconds the last batch of subscriptions took from the first descriptor write
+     *         being queued until the last one completed, or -1.
+     */
+    public long getTimeToSubscribed() {
+        return mSubscriptions.getTimeToSubscribed();
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -263,6 +1136,11 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        // Asked for, so don't reconnect and let the service stop once nobody is bound.
+        mDisconnectRequested = true;
+        getTimers().cancel(mReconnect);
+        stopStarted();
+        if (!mState.transition(ConnectionStateMachine.STATE_DISCONNECTING)) return;
         mBluetoothGatt.disconnect();
     }
 
@@ -274,6 +1152,8 @@ public class BluetoothLeService extends Service {
         if (mBluetoothGatt == null) {
             return;
         }
+        getTimers().cancel(mConnectTimeout);
+        getTimers().cancel(mPollTimer);
         mBluetoothGatt.close();
         mBluetoothGatt = null;
     }
@@ -281,7 +1161,8 @@ public class BluetoothLeService extends Service {
     /**
      * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-     * callback.
+     * callback.  A read of the same characteristic that is still outstanding is shared, and
+     * a value younger than the read cache TTL is reported from memory right away.
      *
      * @param characteristic The characteristic to read from.
      */
@@ -290,11 +1171,74 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        read(characteristic, OutboundScheduler.PRIORITY_CONTROL, null);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Sets how long values read from the device are answered from memory, in milliseconds.
+     * Notifications and writes always make a cached value stale.  0 turns the cache off.
+     */
+    public void setReadCacheTtl(long ttl) {
+        mReadCache.setTtl(ttl);
+    }
+
+    /**
+     * @return The share of reads answered from memory or joined to an outstanding read.
+     */
+    public float getReadCacheHitRatio() {
+        return mReadCache.getHitRatio();
+    }
+
+    /**
+     * Reads every readable characteristic and every descriptor of the connected device into a
+     * snapshot, e.g. for a health check.  The reads are queued back to back in the sync class,
+     * at the high connection priority, so each takes about one connection interval.  Values
+     * are broadcast through {@code ACTION_DATA_AVAILABLE} as usual too.  Main thread only.
+     *
+     * @param budget Milliseconds after which the snapshot is handed out as it is, with the
+     *               entries not read yet timed out.
+     * @param callback Gets the snapshot on the main thread, once.
+     * @return false if there is no connection or a snapshot is already being taken.
+     */
+    public boolean takeSnapshot(long budget, GattSnapshot.Callback callback) {
+        if (mBluetoothGatt == null || !mState.hasServices() || mSnapshot != null) return false;
+        final GattSnapshot snapshot = new GattSnapshot(mBluetoothGatt.getServices());
+        final List<GattSnapshot.Entry> entries = snapshot.getEntries();
+        mSnapshot = snapshot;
+        mSnapshotCallback = callback;
+        if (entries.isEmpty()) {
+            mHandler.post(mFinishSnapshot);
+            return true;
+        }
+        SnapshotOperation[] operations = new SnapshotOperation[entries.size()];
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new SnapshotOperation(snapshot, entries.get(i));
+        }
+        requestConnectionPriority(true);
+        getTimers().schedule(mSnapshotBudget, budget, 0);
+        mScheduler.enqueueBurst(operations);
+        return true;
+    }
+
+    private void finishSnapshot() {
+        final GattSnapshot snapshot = mSnapshot;
+        if (snapshot == null || !snapshot.finish()) return;
+        final GattSnapshot.Callback callback = mSnapshotCallback;
+        mSnapshot = null;
+        mSnapshotCallback = null;
+        getTimers().cancel(mSnapshotBudget);
+        if (!mOtaUpdater.isActive()) {
+            requestConnectionPriority(false);
+        }
+        Log.i(TAG, "Snapshot of " + snapshot.getEntries().size() + " attributes took "
+                + snapshot.getElapsed() + " ms" + (snapshot.isComplete() ? "" : ", incomplete"));
+        callback.onSnapshot(snapshot);
+    }
+
+    /**
+     * Enables or disables notification on a give characteristic.  Characteristics that only
+     * indicate are subscribed to indications.  Enabled subscriptions are restored after every
+     * reconnect to the same device.
      *
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
@@ -305,14 +1249,10 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-        // This is specific to Heart Rate Measurement.
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+        if (enabled) {
+            mSubscriptions.subscribe(characteristic);
+        } else {
+            mSubscriptions.unsubscribe(characteristic);
         }
     }
 
@@ -328,44 +1268,425 @@ public class BluetoothLeService extends Service {
         return mBluetoothGatt.getServices();
     }
 
-    public void writeBleData(byte[] data) {
-        if(null == data) return;
+    /**
+     * Turns integrity framing of {@code READ_UUID}/{@code WRITE_UUID} traffic on or off.  Only
+     * for firmware that frames its side too; see {@link FrameIntegrity}.  Every outbound frame
+     * is framed; one that no longer fits the negotiated MTU with its trailer is written with
+     * response, which the stack turns into a long write.
+     */
+    public void setFramingEnabled(boolean enabled) {
+        mFramingEnabled = enabled;
+    }
+
+    public boolean isFramingEnabled() {
+        return mFramingEnabled;
+    }
+
+    /**
+     * @return Loss, duplicate and corruption counts of the current or last connection.
+     */
+    public FrameIntegrity.Stats getLinkQuality() {
+        return mIntegrity.getConnectionStats();
+    }
+
+    /**
+     * @return The same counts over every connection to the device since the app started, or
+     *         null.
+     */
+    public FrameIntegrity.Stats getLinkQuality(String address) {
+        return mIntegrity.getDeviceStats(address);
+    }
+
+    /**
+     * @return The stimulation control channel of the connected device.  Main thread only.
+     */
+    public StimulationController getStimulation() {
+        return mStimulation;
+    }
+
+    /**
+     * Downloads history chunks [start, start + count) from the connected device.  Progress is
+     * reported through {@code ACTION_HISTORY_PROGRESS} and the assembled file through
+     * {@code ACTION_HISTORY_COMPLETE}.  An interrupted download resumes automatically after the
+     * next successful service discovery on the same device.
+     *
+     * @return false if there is no device, or the history file could not be opened; the latter
+     *         is also broadcast as {@code ACTION_HISTORY_FAILED}.
+     */
+    public boolean startHistoryDownload(long start, long count) {
+        if (mBluetoothDeviceAddress == null) {
+            Log.w(TAG, "No device to download history from.");
+            return false;
+        }
+        return mHistoryDownloader.start(mBluetoothDeviceAddress, start, count);
+    }
+
+    public void cancelHistoryDownload() {
+        mHistoryDownloader.cancel();
+    }
+
+    /**
+     * Updates the connected device's firmware with the given image.  Progress, throughput and
+     * ETA are reported through {@code ACTION_OTA_PROGRESS} and the outcome through
+     * {@code ACTION_OTA_COMPLETE}.  An interrupted update resumes from the last block the
+     * device verified after the next successful service discovery on the same device.
+     *
+     * @return false if there is no device or the image can't be read.
+     */
+    public boolean startFirmwareUpdate(File image) {
+        if (mBluetoothDeviceAddress == null) {
+            Log.w(TAG, "No device to update.");
+            return false;
+        }
+        return mOtaUpdater.start(mBluetoothDeviceAddress, image);
+    }
+
+    public void cancelFirmwareUpdate() {
+        mOtaUpdater.cancel();
+    }
+
+    /**
+     * Queues a control frame for the {@code WRITE_UUID} characteristic.
+     *
+     * @return Return true if the frame was queued.
+     */
+    public boolean writeBleData(byte[] data) {
+        return writeBleData(data, OutboundScheduler.PRIORITY_CONTROL, null);
+    }
+
+    /**
+     * Queues a frame for the {@code WRITE_UUID} characteristic in the given priority class.
+     *
+     * @param key Frames sharing a key supersede each other; identical consecutive frames with
+     *            the same key are sent only once.  May be null.
+     *
+     * @return Return true if the frame was queued.
+     */
+    public boolean writeBleData(byte[] data, int priority, String key) {
+        if (null == data || mBluetoothGatt == null) return false;
+        mScheduler.enqueue(new WriteOperation(priority, key, data,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT));
+        return true;
+    }
+
+    /**
+     * Sends a text message (SMS, caller information) of any length.  The payload is split into
+     * segments of the current frame size, which are written back to back without response.
+     */
+    public boolean writeMessage(byte kind, String sender, String body, int priority) {
+        if (mBluetoothGatt == null) return false;
+        final int frameSize = getUsableFrameSize();
+        byte[] payload = FrameSegmenter.encodeMessage(kind, sender, body, frameSize);
+        byte[][] frames = FrameSegmenter.segment(mMessageId++ & 0xFF, payload, frameSize);
+        WriteOperation[] operations = new WriteOperation[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            operations[i] = new WriteOperation(priority, null, frames[i],
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, payload);
+        }
+        mScheduler.enqueueBurst(operations);
+        return true;
+    }
+
+    /**
+     * Delivers a frame now or, if the device is out of reach, once it is back, as long as the
+     * frame isn't older than ttl by then.  Undelivered frames survive the process.
+     *
+     * @param key Supersedes undelivered frames and messages with this key, or a key below it
+     *            such as key + "/number".  May be null.
+     */
+    public void writeBleData(byte[] data, int priority, String key, long ttl) {
+        mOutbox.add(priority, key, ttl, data);
+    }
+
+    /**
+     * Same as {@link #writeBleData(byte[], int, String, long)} for a text message.
+     */
+    public void writeMessage(byte kind, String sender, String body, int priority, String key,
+                             long ttl) {
+        mOutbox.addMessage(priority, key, ttl, kind, sender, body);
+    }
+
+    /**
+     * @return Frames and messages waiting for the device.
+     */
+    public int getOutboxDepth() {
+        return mOutbox.getDepth();
+    }
+
+    /**
+     * Queues a poll of the {@code READ_UUID} characteristic.  Polls coalesce, so at most one is
+     * ever waiting.
+     */
+    public void readBleData() {
+        BluetoothGattCharacteristic characteristic = findCharacteristic(READ_UUID);
+        if (characteristic == null) return;
+        read(characteristic, OutboundScheduler.PRIORITY_POLLING, KEY_POLL);
+    }
+
+    // The largest frame that still fits the MTU with its trailer when framing is on.
+    private int getUsableFrameSize() {
+        return mFramingEnabled ? mFrameSize - FrameIntegrity.TRAILER_SIZE : mFrameSize;
+    }
+
+    private void requestConnectionPriority(boolean high) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || mBluetoothGatt == null) {
+            return;
+        }
+        mBluetoothGatt.requestConnectionPriority(high
+                ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+    }
+
+    private void read(BluetoothGattCharacteristic characteristic, int priority, String key) {
+        switch (mReadCache.lookup(characteristic)) {
+            case ReadCache.HIT:
+                // Reported like the read it stands in for, heart rate decoding included.
+                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic,
+                        mReadCache.getValue(characteristic));
+                break;
+            case ReadCache.MISS:
+                mScheduler.enqueue(new ReadOperation(priority, key, characteristic));
+                break;
+            default:
+                // Joined the outstanding read; its result is broadcast to everyone.
+                break;
+        }
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(UUID uuid) {
+        if (mBluetoothGatt == null) return null;
 
         List<BluetoothGattService> gattServices = mBluetoothGatt.getServices();
 
-        if(null == gattServices) return;
+        if(null == gattServices) return null;
 
         for (BluetoothGattService gattService : gattServices) {
             List<BluetoothGattCharacteristic> gattCharacteristics =
                     gattService.getCharacteristics();
 
             for (BluetoothGattCharacteristic characteristic : gattCharacteristics) {
-                if(characteristic.getUuid().toString().equalsIgnoreCase(WRITE_UUID.toString())) {
-                    characteristic.setValue(data);
-                    mBluetoothGatt.writeCharacteristic(characteristic);
-                    break;
+                if(characteristic.getUuid().equals(uuid)) {
+                    return characteristic;
                 }
+            }
+        }
+        return null;
+    }
+
+    // Subscribes to a bulk transfer characteristic once per device; reconnects restore it
+    // with the other subscriptions.
+    private void subscribeChannel(UUID uuid) {
+        final BluetoothGattCharacteristic characteristic = findCharacteristic(uuid);
+        if (characteristic != null && !mSubscriptions.isSubscribed(characteristic)) {
+            mSubscriptions.subscribe(characteristic);
+        }
+    }
 
+    private void requestMtu() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return;
+        mScheduler.enqueue(new OutboundScheduler.Operation(
+                OutboundScheduler.PRIORITY_CONTROL, null, null) {
+            @Override
+            protected boolean execute() {
+                return mBluetoothGatt != null && mBluetoothGatt.requestMtu(PREFERRED_MTU);
             }
+        });
+    }
+
+    private class WriteOperation extends OutboundScheduler.Operation {
+        private final UUID mUuid;
+        private final int mWriteType;
+        private final Object mMessage;
+        private BluetoothGattCharacteristic mCharacteristic;
+
+        WriteOperation(int priority, String key, byte[] frame, int writeType) {
+            this(priority, key, frame, writeType, null);
+        }
+
+        // A segment of the given message.
+        WriteOperation(int priority, String key, byte[] frame, int writeType, Object message) {
+            this(WRITE_UUID, priority, key, frame, writeType, message);
+        }
+
+        // A frame for another characteristic than WRITE_UUID, which is never framed.
+        WriteOperation(UUID uuid, int priority, String key, byte[] frame, int writeType,
+                       Object message) {
+            super(priority, key, frame);
+            mUuid = uuid;
+            mWriteType = writeType;
+            mMessage = message;
+        }
+
+        @Override
+        protected Object getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        protected Object getAttribute() {
+            return mCharacteristic;
+        }
+
+        @Override
+        protected boolean execute() {
+            BluetoothGattCharacteristic characteristic = findCharacteristic(mUuid);
+            if (characteristic == null) return false;
+            mCharacteristic = characteristic;
+            final boolean framed = mFramingEnabled && WRITE_UUID.equals(mUuid);
+            if (framed) {
+                final byte[] sealed = mIntegrity.seal(mFrame);
+                // A full size frame only fits the MTU without its trailer; a write without
+                // response would be cut short.
+                characteristic.setWriteType(sealed.length > mFrameSize
+                        ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : mWriteType);
+                characteristic.setValue(sealed);
+            } else {
+                characteristic.setWriteType(mWriteType);
+                characteristic.setValue(mFrame);
+            }
+            mReadCache.invalidate(characteristic);
+            if (!mBluetoothGatt.writeCharacteristic(characteristic)) return false;
+            if (framed) {
+                mIntegrity.onSent();
+            }
+            return true;
         }
     }
 
-    public void readBleData() {
-        List<BluetoothGattService> gattServices = mBluetoothGatt.getServices();
+    // The writes of an outbox entry.  A message is segmented for the current frame size.
+    private void addOutboxOperations(OutboundStore.Entry entry, boolean keyed,
+                                     List<OutboxOperation> operations) {
+        if (entry.getKind() == OutboundStore.KIND_FRAME) {
+            operations.add(new OutboxOperation(entry, keyed ? entry.getKey() : null,
+                    entry.getFrame(), BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, null, true));
+            return;
+        }
+        final int frameSize = getUsableFrameSize();
+        byte[] payload = FrameSegmenter.encodeMessage(entry.getKind(), entry.getSender(),
+                entry.getBody(), frameSize);
+        byte[][] frames = FrameSegmenter.segment(mMessageId++ & 0xFF, payload, frameSize);
+        for (int i = 0; i < frames.length; i++) {
+            operations.add(new OutboxOperation(entry, null, frames[i],
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, entry,
+                    i == frames.length - 1));
+        }
+    }
 
-        if(null == gattServices) return;
+    private class OutboxOperation extends WriteOperation {
+        private final OutboundStore.Entry mEntry;
+        private final boolean mLast;
 
-        for (BluetoothGattService gattService : gattServices) {
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
+        OutboxOperation(OutboundStore.Entry entry, String key, byte[] frame, int writeType,
+                        Object message, boolean last) {
+            super(entry.getPriority(), key, frame, writeType, message);
+            mEntry = entry;
+            mLast = last;
+        }
 
-            for (BluetoothGattCharacteristic characteristic : gattCharacteristics) {
-                if(characteristic.getUuid().toString().equalsIgnoreCase(READ_UUID.toString())) {
-                    mBluetoothGatt.readCharacteristic(characteristic);
-                    break;
+        @Override
+        protected void onComplete(final boolean success) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mOutbox.onSent(mEntry, success, mLast);
                 }
+            });
+        }
+    }
+
+    private class DescriptorOperation extends OutboundScheduler.Operation {
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final byte[] mValue;
+
+        DescriptorOperation(BluetoothGattCharacteristic characteristic, byte[] value) {
+            super(OutboundScheduler.PRIORITY_CONTROL, null, null);
+            mCharacteristic = characteristic;
+            mValue = value;
+        }
+
+        @Override
+        protected Object getAttribute() {
+            return mCharacteristic.getDescriptor(SubscriptionManager.CLIENT_CHARACTERISTIC_CONFIG);
+        }
+
+        @Override
+        protected boolean execute() {
+            boolean started = false;
+            final BluetoothGattDescriptor descriptor = mCharacteristic.getDescriptor(
+                    SubscriptionManager.CLIENT_CHARACTERISTIC_CONFIG);
+            final boolean enable = !Arrays.equals(mValue,
+                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            if (mBluetoothGatt != null && descriptor != null
+                    && mBluetoothGatt.setCharacteristicNotification(mCharacteristic, enable)) {
+                descriptor.setValue(mValue);
+                started = mBluetoothGatt.writeDescriptor(descriptor);
+            }
+            if (!started) {
+                mSubscriptions.onDescriptorWrite(mCharacteristic, false);
+            }
+            return started;
+        }
+    }
+
+    private class SnapshotOperation extends OutboundScheduler.Operation {
+        private final GattSnapshot mParent;
+        private final GattSnapshot.Entry mEntry;
+
+        SnapshotOperation(GattSnapshot parent, GattSnapshot.Entry entry) {
+            super(OutboundScheduler.PRIORITY_SYNC, null, null);
+            mParent = parent;
+            mEntry = entry;
+        }
+
+        @Override
+        protected Object getAttribute() {
+            return mEntry.descriptor != null ? mEntry.descriptor : mEntry.characteristic;
+        }
 
+        @Override
+        protected boolean execute() {
+            if (mBluetoothGatt == null) return false;
+            mParent.onStarted(mEntry);
+            return mEntry.descriptor != null
+                    ? mBluetoothGatt.readDescriptor(mEntry.descriptor)
+                    : mBluetoothGatt.readCharacteristic(mEntry.characteristic);
+        }
+
+        @Override
+        protected void onComplete(boolean success) {
+            if (success) return;
+            mParent.onFailed(mEntry);
+            if (mParent.getPending() == 0) {
+                mHandler.post(mFinishSnapshot);
             }
         }
+
+        @Override
+        protected boolean isCancelled() {
+            return mParent.isFinished();
+        }
+    }
+
+    private class ReadOperation extends OutboundScheduler.Operation {
+        private final BluetoothGattCharacteristic mCharacteristic;
+
+        ReadOperation(int priority, String key, BluetoothGattCharacteristic characteristic) {
+            super(priority, key, null);
+            mCharacteristic = characteristic;
+        }
+
+        @Override
+        protected Object getAttribute() {
+            return mCharacteristic;
+        }
+
+        @Override
+        protected boolean execute() {
+            if (mBluetoothGatt != null && mBluetoothGatt.readCharacteristic(mCharacteristic)) {
+                return true;
+            }
+            mReadCache.onReadFailed(mCharacteristic);
+            return false;
+        }
     }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The state of the link to the device, written from the GATT callbacks on a binder thread and
+ * from the main thread.
+ *
+ * <pre>
+ * DISCONNECTED -> CONNECTING -> CONNECTED -> DISCOVERING -> SUBSCRIBING -> READY
+ * </pre>
+ *
+ * Any state but DISCONNECTED may also go to DISCONNECTING, on request, or straight to
+ * DISCONNECTED when the link drops; DISCOVERING may skip to READY.  Every other transition is
+ * illegal and rejected.  Transitions are a compare-and-set, so of two threads racing to, e.g.,
+ * start a connection only one wins and acts on it.
+ *
+ * The last {@link #LOG_SIZE} transitions are kept with their times for
+ * {@link #getTransitionLog()}, without locking either.  Each log slot carries the number of the
+ * entry it holds, written after the entry, so a reader skips a slot that is still being written
+ * or was overwritten while it read it.
+ */
+public class ConnectionStateMachine {
+    private final static String TAG = ConnectionStateMachine.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCOVERING = 3;
+    public static final int STATE_SUBSCRIBING = 4;
+    public static final int STATE_READY = 5;
+    public static final int STATE_DISCONNECTING = 6;
+
+    private static final String[] NAMES = {
+            "DISCONNECTED", "CONNECTING", "CONNECTED", "DISCOVERING", "SUBSCRIBING", "READY",
+            "DISCONNECTING",
+    };
+
+    // Per state, the bit set of the states it may go to.
+    private static final int[] ALLOWED = {
+            bit(STATE_CONNECTING),
+            bit(STATE_CONNECTED) | bit(STATE_DISCONNECTED) | bit(STATE_DISCONNECTING),
+            bit(STATE_DISCOVERING) | bit(STATE_DISCONNECTED) | bit(STATE_DISCONNECTING),
+            bit(STATE_SUBSCRIBING) | bit(STATE_READY) | bit(STATE_DISCONNECTED)
+                    | bit(STATE_DISCONNECTING),
+            bit(STATE_READY) | bit(STATE_DISCONNECTED) | bit(STATE_DISCONNECTING),
+            bit(STATE_DISCONNECTED) | bit(STATE_DISCONNECTING),
+            bit(STATE_DISCONNECTED),
+    };
+
+    public static final int LOG_SIZE = 64;
+
+    private final AtomicInteger mState = new AtomicInteger(STATE_DISCONNECTED);
+    // Each entry is elapsedRealtime() << 16 | from << 8 | to, so it is written in one go.
+    private final AtomicLongArray mLog = new AtomicLongArray(LOG_SIZE);
+    // Per slot, 1 + the number of the entry in it, or 0 while it is being written.
+    private final AtomicLongArray mLogSequence = new AtomicLongArray(LOG_SIZE);
+    private final AtomicLong mLogged = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    private static int bit(int state) {
+        return 1 << state;
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        return (ALLOWED[from] & bit(to)) != 0;
+    }
+
+    public static String getName(int state) {
+        return state >= 0 && state < NAMES.length ? NAMES[state] : "STATE_" + state;
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * @return true once services are discovered, until the link goes down.
+     */
+    public boolean hasServices() {
+        final int state = mState.get();
+        return state == STATE_SUBSCRIBING || state == STATE_READY;
+    }
+
+    /**
+     * Moves from the given state to another.
+     *
+     * @return false if the state wasn't from, e.g. another thread got there first, or the
+     *         transition is illegal.
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to)) {
+            reject(from, to);
+            return false;
+        }
+        if (!mState.compareAndSet(from, to)) return false;
+        record(from, to);
+        return true;
+    }
+
+    /**
+     * Moves from whatever the state is to another.
+     *
+     * @return false if the transition from the current state is illegal, which includes
+     *         already being there.
+     */
+    public boolean transition(int to) {
+        while (true) {
+            final int from = mState.get();
+            if (!isAllowed(from, to)) {
+                if (from != to) reject(from, to);
+                return false;
+            }
+            if (mState.compareAndSet(from, to)) {
+                record(from, to);
+                return true;
+            }
+        }
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * @return The logged transitions, oldest first, as "time ms: FROM -> TO".  Transitions
+     *         being logged concurrently may be missing.
+     */
+    public String[] getTransitionLog() {
+        final long end = mLogged.get();
+        final long start = Math.max(0, end - LOG_SIZE);
+        final ArrayList<String> lines = new ArrayList<String>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            final int slot = (int) (i % LOG_SIZE);
+            if (mLogSequence.get(slot) != i + 1) continue;
+            final long entry = mLog.get(slot);
+            if (mLogSequence.get(slot) != i + 1) continue;
+            lines.add((entry >>> 16) + " ms: " + getName((int) (entry >> 8) & 0xFF) + " -> "
+                    + getName((int) entry & 0xFF));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private void record(int from, int to) {
+        final long entry = (SystemClock.elapsedRealtime() << 16) | (from << 8) | to;
+        final long sequence = mLogged.getAndIncrement();
+        final int slot = (int) (sequence % LOG_SIZE);
+        // Invalidates the slot first, so no reader takes the new entry for the old one.
+        mLogSequence.set(slot, 0);
+        mLog.set(slot, entry);
+        mLogSequence.set(slot, sequence + 1);
+    }
+
+    private void reject(int from, int to) {
+        mRejected.incrementAndGet();
+        Log.w(TAG, "Illegal transition " + getName(from) + " -> " + getName(to));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.frameschema.Field;
+import com.example.android.frameschema.Frame;
+
+/**
+ * Sets the band's clock.  The year counts from 2000.
+ */
+@Frame(size = 20, opcode = 0x00)
+public class DateTimeFrame {
+    @Field(offset = 1)
+    int year;
+
+    @Field(offset = 2)
+    int month;
+
+    @Field(offset = 3)
+    int day;
+
+    @Field(offset = 4)
+    int hour;
+
+    @Field(offset = 5)
+    int minute;
+
+    @Field(offset = 6)
+    int second;
+}
@@ -27,36 +27,40 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.graphics.Color;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
-import android.provider.Telephony;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.telephony.PhoneStateListener;
-import android.telephony.SmsMessage;
-import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.view.Menu;
+import android.view.Choreographer;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ExpandableListView;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.sql.Time;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * For a given BLE device, this Activity provides the user interface to connect, display data,
@@ -67,21 +71,21 @@ import java.util.List;
 public class DeviceControlActivity extends Activity {
 
     public static final String SMS_INTENT = "com.example.android.bluetoothlegatt.sms";
-    private final int READ_PERIOD = 1000;
 
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // elapsedRealtime of the app launch, to measure launch to first telemetry.
+    public static final String EXTRAS_LAUNCH_TIME = "LAUNCH_TIME";
 
-    private static final int MODE_1 = 13;
-    private static final int MODE_2 = 15;
-    private static final int MODE_3 = 18;
-
-    private static final int STRENGTH_MIN = 4;
-    private static final int STRENGTH_MAX = 240;
-    private int strength = STRENGTH_MIN*2;
-    private int mode = MODE_1;
+    // Holding + or - steps the strength this often.
+    private static final long STRENGTH_REPEAT = 100;
+    // Time budget of a diagnostics snapshot.
+    private static final long SNAPSHOT_BUDGET = 5000;
+    private static final int REQUEST_FIRMWARE = 3;
+    // Picked images are copied here, as the updater maps a file and resumes from its path.
+    private static final String FIRMWARE_DIRECTORY = "firmware";
 
     private LinearLayout workLayout;
     private ProgressBar progressBar;
@@ -89,15 +93,25 @@ public class DeviceControlActivity extends Activity {
     private TextView heartRate;
     private TextView blood;
     private TextView steps;
+    private LiveChartView mVitalsChart;
+    private LiveChartView mStepsChart;
+    // Telemetry comes about once a second; these hold well over a chart's minute of it.
+    private static final int CHART_CAPACITY = 512;
+    private LiveChartView.Series mHeartRateSeries;
+    private LiveChartView.Series mSystolicSeries;
+    private LiveChartView.Series mDiastolicSeries;
+    private LiveChartView.Series mStepsSeries;
     private TextView dateAndTime;
     private Button dateTimeUpdate;
 
-//    private TextView workTextView;
-//    private Button startButton;
-//    private Button stopButton;
-//    private Button modeButton;
-//    private Button plusButton;
-//    private Button minusButton;
+    private TextView workTextView;
+    private Button startButton;
+    private Button stopButton;
+    private Button modeButton;
+    private Button plusButton;
+    private Button minusButton;
+    private StrengthRepeater mPlusRepeater;
+    private StrengthRepeater mMinusRepeater;
 
     private TextView mConnectionState;
     private TextView mDataField;
@@ -105,32 +119,39 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
+    private GattBrowserAdapter mGattBrowser;
     private boolean mConnected = false;
-    private boolean isAppFront = false;
+    private long mLaunchTime;
+    // elapsedRealtime of the last return to this screen, until data is shown again.
+    private long mResumeTime;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
 
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
-
-    private final MyHandler mHandler = new MyHandler(this);
-
-    private TelephonyManager telephonyManager;
-    private MyPhoneStateListener myPhoneStateListener;
-
-
+    // Frames decoded since the last draw, as {radio, dispatched, decoded} stamps.
+    private static final int MAX_PENDING_TRACES = 32;
+    private final long[] mPendingTrace = new long[MAX_PENDING_TRACES * 3];
+    private int mPendingTraces;
 
+    private final Runnable mFrameDrawn = new Runnable() {
+        @Override
+        public void run() {
+            final long drawn = SystemClock.elapsedRealtimeNanos();
+            final LatencyTracer tracer = LatencyTracer.getInstance();
+            for (int i = 0; i < mPendingTraces * 3; i += 3) {
+                tracer.record(mPendingTrace[i], mPendingTrace[i + 1], mPendingTrace[i + 2],
+                        drawn);
+            }
+            mPendingTraces = 0;
+        }
+    };
 
-    void setStrength(int s) {
-        if(0 == s) {
-            strength = 0;
-        } else {
-            if (s < STRENGTH_MIN) s = STRENGTH_MIN;
-            if (s > STRENGTH_MAX) s = STRENGTH_MAX;
-            strength = s;
+    private final Choreographer.FrameCallback mFrameTrace = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // Frame callbacks run before the frame is laid out and drawn; a message posted now
+            // runs right after.
+            heartRate.post(mFrameDrawn);
         }
-    }
+    };
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -143,7 +164,17 @@ public class DeviceControlActivity extends Activity {
                 finish();
             }
             // Automatically connects to the device upon successful start-up initialization.
+            // The service keeps its link across screens, so this usually just attaches.
             mBluetoothLeService.connect(mDeviceAddress);
+            if (mBluetoothLeService.isServicesDiscovered()
+                    && mDeviceAddress.equals(mBluetoothLeService.getDeviceAddress())) {
+                mConnected = true;
+                updateConnectionState(R.string.connected);
+                invalidateOptionsMenu();
+                displayGattServices(mBluetoothLeService.getSupportedGattServices());
+                displayWorkLayout();
+                showData(mBluetoothLeService.getLastData());
+            }
         }
 
         @Override
@@ -178,28 +209,45 @@ public class DeviceControlActivity extends Activity {
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
                 displayWorkLayout();
                 // enableNotify();
+            } else if (BluetoothLeService.ACTION_OTA_PROGRESS.equals(action)) {
+                final long total = intent.getLongExtra(BluetoothLeService.EXTRA_OTA_TOTAL, 0);
+                final long verified =
+                        intent.getLongExtra(BluetoothLeService.EXTRA_OTA_VERIFIED, 0);
+                displayData(getString(R.string.ota_progress,
+                        total > 0 ? verified * 100 / total : 0,
+                        intent.getLongExtra(BluetoothLeService.EXTRA_OTA_RATE, 0) / 1024,
+                        Math.max(0, intent.getLongExtra(BluetoothLeService.EXTRA_OTA_ETA, 0))
+                                / 1000));
+            } else if (BluetoothLeService.ACTION_OTA_COMPLETE.equals(action)) {
+                final boolean success =
+                        intent.getBooleanExtra(BluetoothLeService.EXTRA_OTA_SUCCESS, false);
+                displayData(getString(success ? R.string.ota_done : R.string.ota_failed));
+            } else if (BluetoothLeService.ACTION_HISTORY_PROGRESS.equals(action)) {
+                displayData(getString(R.string.history_progress,
+                        intent.getLongExtra(BluetoothLeService.EXTRA_HISTORY_RECEIVED, 0),
+                        intent.getLongExtra(BluetoothLeService.EXTRA_HISTORY_RATE, 0)));
+            } else if (BluetoothLeService.ACTION_HISTORY_COMPLETE.equals(action)) {
+                displayData(getString(R.string.history_done,
+                        intent.getStringExtra(BluetoothLeService.EXTRA_HISTORY_FILE)));
+            } else if (BluetoothLeService.ACTION_HISTORY_FAILED.equals(action)) {
+                displayData(getString(R.string.history_failed));
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
+                final long dispatched = SystemClock.elapsedRealtimeNanos();
+                Trace.beginSection("BLE dispatch");
                 // displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
                 byte[] data = intent.getByteArrayExtra(BluetoothLeService.EXTRA_DATA);
+                String uuid = intent.getStringExtra(BluetoothLeService.EXTRA_UUID);
 
-                parseNotification(data);
-            }
-        }
-    };
-
-    private final BroadcastReceiver mSmsReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if(intent.getAction().equals("android.provider.Telephony.SMS_RECEIVED")){
-                Bundle bundle = intent.getExtras();           //---get the SMS message passed in---
-                SmsMessage[] msgs = null;
-                String msg_from;
-                if (bundle != null){
-                    Log.d("SMS", "Got the SMS");
-                    byte[] data = new byte[]{0x01, 1, 3, 'x', 'y', 'z', 0x00, 0x00, 0x00, 0x00,
-                            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-                    mBluetoothLeService.writeBleData(data);
+                if (mGattBrowser != null && uuid != null) {
+                    mGattBrowser.onValueChanged(UUID.fromString(uuid));
+                }
+                // Values from the browser's reads are not telemetry.
+                if (uuid == null || BluetoothLeService.READ_UUID.equals(UUID.fromString(uuid))) {
+                    showData(data);
+                    traceFrame(intent.getLongExtra(BluetoothLeService.EXTRA_TIMESTAMP, 0),
+                            dispatched);
                 }
+                Trace.endSection();
             }
         }
     };
@@ -213,11 +261,11 @@ public class DeviceControlActivity extends Activity {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                             int childPosition, long id) {
-                    if (mGattCharacteristics != null) {
+                    if (mGattBrowser != null) {
                         final BluetoothGattCharacteristic characteristic =
-                                mGattCharacteristics.get(groupPosition).get(childPosition);
+                                mGattBrowser.getChild(groupPosition, childPosition);
                         final int charaProp = characteristic.getProperties();
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
+                        if ((charaProp & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
                             // If there is an active notification on a characteristic, clear
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
@@ -227,7 +275,7 @@ public class DeviceControlActivity extends Activity {
                             }
                             mBluetoothLeService.readCharacteristic(characteristic);
                         }
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                        if (SubscriptionManager.enableValue(characteristic) != null) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
                                     characteristic, true);
@@ -239,47 +287,24 @@ public class DeviceControlActivity extends Activity {
     };
 
     private void clearUI() {
-        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        if (mGattBrowser != null) {
+            mGattBrowser.release();
+            mGattBrowser = null;
+        }
+        mGattServicesList.setAdapter((GattBrowserAdapter) null);
         mDataField.setText(R.string.no_data);
     }
 
     private byte[] updateDateTimeType() {
         Calendar ca = Calendar.getInstance();
-        int year = ca.get(Calendar.YEAR);
-        int month = ca.get(Calendar.MONTH) + 1;
-        int day = ca.get(Calendar.DATE);
-        int hour = ca.get(Calendar.HOUR_OF_DAY);
-        int minute = ca.get(Calendar.MINUTE);
-        int second = ca.get(Calendar.SECOND);
-
-        if(year < 2021) {
-            year = 2021;
-        }
-        year = year - 2000;
-
-        byte[] data = new byte[] {0x00, (byte)(year & 0xFF), (byte)(month & 0xFF), (byte)(day & 0xFF), (byte)(hour & 0xFF), (byte)(minute & 0xFF), (byte)(second & 0xFF), 0x00, 0x00, 0x00,
-                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-        return data;
-    }
-
-    private byte[] phonecallType(boolean enable, String phone) {
-
-        byte e = enable ? (byte)0x01 : (byte)0;
-        byte[] data;
-
-        if(enable && phone != null && phone.length() > 0) {
-            byte[] phoneArray = phone.getBytes();
-            data = new byte[]{0x01, e, (byte)phoneArray.length, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-                    0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-
-            for(int i = 0; i < phoneArray.length && i < 17; i++) {
-                data[3 + i] = phoneArray[i];
-            }
-        } else {
-            data = new byte[]{0x01, e, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
-                    0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
-        }
-        return data;
+        DateTimeFrame frame = new DateTimeFrame();
+        frame.year = Math.max(ca.get(Calendar.YEAR), 2021) - 2000;
+        frame.month = ca.get(Calendar.MONTH) + 1;
+        frame.day = ca.get(Calendar.DATE);
+        frame.hour = ca.get(Calendar.HOUR_OF_DAY);
+        frame.minute = ca.get(Calendar.MINUTE);
+        frame.second = ca.get(Calendar.SECOND);
+        return DateTimeFrameCodec.encode(frame);
     }
 
     @Override
@@ -290,78 +315,75 @@ public class DeviceControlActivity extends Activity {
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mLaunchTime = intent.getLongExtra(EXTRAS_LAUNCH_TIME, 0);
 
         // Sets up UI references.
         workLayout = findViewById(R.id.work_layout);
         progressBar = findViewById(R.id.loading_progress);
-//        workTextView = findViewById(R.id.work_text);
-//        startButton = findViewById(R.id.start_button);
-//        stopButton = findViewById(R.id.stop_button);
-//        modeButton = findViewById(R.id.mode_button);
-//        plusButton = findViewById(R.id.strength_plus);
-//        minusButton = findViewById(R.id.strength_minus);
+        workTextView = findViewById(R.id.work_text);
+        startButton = findViewById(R.id.start_button);
+        stopButton = findViewById(R.id.stop_button);
+        modeButton = findViewById(R.id.mode_button);
+        plusButton = findViewById(R.id.strength_plus);
+        minusButton = findViewById(R.id.strength_minus);
 
         heartRate = findViewById(R.id.heart_rate_value);
         blood = findViewById(R.id.blood_value);
         steps = findViewById(R.id.steps_value);
         dateAndTime = findViewById(R.id.time_value);
+
+        final float stroke = 2 * getResources().getDisplayMetrics().density;
+        mHeartRateSeries = new LiveChartView.Series(CHART_CAPACITY, Color.RED, stroke);
+        mSystolicSeries = new LiveChartView.Series(CHART_CAPACITY, Color.BLUE, stroke);
+        mDiastolicSeries = new LiveChartView.Series(CHART_CAPACITY, Color.CYAN, stroke);
+        mStepsSeries = new LiveChartView.Series(CHART_CAPACITY, Color.GREEN, stroke);
+        mVitalsChart = findViewById(R.id.vitals_chart);
+        mVitalsChart.addSeries(mHeartRateSeries);
+        mVitalsChart.addSeries(mSystolicSeries);
+        mVitalsChart.addSeries(mDiastolicSeries);
+        mStepsChart = findViewById(R.id.steps_chart);
+        mStepsChart.addSeries(mStepsSeries);
         dateTimeUpdate = findViewById(R.id.update_time);
 
-//        startButton.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View view) {
-//                mBluetoothLeService.writeBleData(updateData());
-//            }
-//        });
-//
-//        plusButton.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View view) {
-//                int s = strength;
-//                s++;
-//                setStrength(s);
-//                mBluetoothLeService.writeBleData(updateData());
-//            }
-//        });
-//
-//        minusButton.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View view) {
-//                int s = strength;
-//                s--;
-//                setStrength(s);
-//                mBluetoothLeService.writeBleData(updateData());
-//            }
-//        });
-//
-//        stopButton.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View view) {
-//                setStrength(0);
-//                mBluetoothLeService.writeBleData(updateData());
-//            }
-//        });
-//
-//        modeButton.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View view) {
-//                switch (mode) {
-//                    case MODE_1:
-//                    mode = MODE_2;
-//                    break;
-//                    case MODE_2:
-//                        mode = MODE_3;
-//                        break;
-//                    case MODE_3:
-//                        mode = MODE_1;
-//                        break;
-//                    default:
-//                        mode = MODE_1;
-//                        break;
-//                }
-//                mBluetoothLeService.writeBleData(updateData());
-//            }
-//        });
+        startButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (mBluetoothLeService == null) return;
+                mBluetoothLeService.getStimulation().start();
+            }
+        });
+
+        mPlusRepeater = new StrengthRepeater(1);
+        mMinusRepeater = new StrengthRepeater(-1);
+        plusButton.setOnTouchListener(mPlusRepeater);
+        minusButton.setOnTouchListener(mMinusRepeater);
+
+        stopButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (mBluetoothLeService == null) return;
+                mBluetoothLeService.getStimulation().stop();
+            }
+        });
+
+        modeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                if (mBluetoothLeService == null) return;
+                StimulationController stimulation = mBluetoothLeService.getStimulation();
+                switch (stimulation.getMode()) {
+                    case StimulationController.MODE_1:
+                        stimulation.setMode(StimulationController.MODE_2);
+                        break;
+                    case StimulationController.MODE_2:
+                        stimulation.setMode(StimulationController.MODE_3);
+                        break;
+                    default:
+                        stimulation.setMode(StimulationController.MODE_1);
+                        break;
+                }
+            }
+        });
 
         dateTimeUpdate.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -395,28 +417,20 @@ public class DeviceControlActivity extends Activity {
                         DeviceScanActivity.PERMISSION_READ_STATE);
             }
         }
-
-        Message message = Message.obtain(mHandler);
-        mHandler.sendMessageDelayed(message, READ_PERIOD);
-
-        telephonyManager = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
-        myPhoneStateListener = new MyPhoneStateListener();
-        telephonyManager.listen(myPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
-
-        final IntentFilter smsIntentFilter = new IntentFilter();
-        smsIntentFilter.addAction("android.provider.Telephony.SMS_RECEIVED");
-        registerReceiver(mSmsReceiver, smsIntentFilter);
-
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        isAppFront = true;
+        mResumeTime = SystemClock.elapsedRealtime();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
+            // The service kept polling while we were away, show what it has right away.
+            if (mBluetoothLeService.isServicesDiscovered()) {
+                showData(mBluetoothLeService.getLastData());
+            }
         }
     }
 
@@ -424,15 +438,15 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
-        isAppFront = false;
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mPlusRepeater.cancel();
+        mMinusRepeater.cancel();
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
-        telephonyManager.listen(myPhoneStateListener, PhoneStateListener.LISTEN_NONE);
     }
 
     @Override
@@ -441,10 +455,21 @@ public class DeviceControlActivity extends Activity {
         if (mConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
+            menu.findItem(R.id.menu_read_all).setVisible(true);
+            menu.findItem(R.id.menu_update_firmware).setVisible(true);
+            menu.findItem(R.id.menu_download_history).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_read_all).setVisible(false);
+            menu.findItem(R.id.menu_update_firmware).setVisible(false);
+            menu.findItem(R.id.menu_download_history).setVisible(false);
         }
+        final boolean framing = mBluetoothLeService != null
+                && mBluetoothLeService.isFramingEnabled();
+        menu.findItem(R.id.menu_framing).setChecked(framing);
+        menu.findItem(R.id.menu_link_quality).setVisible(framing);
+        menu.findItem(R.id.menu_debug_log).setChecked(BleLog.getLevel() <= BleLog.DEBUG);
         return true;
     }
 
@@ -454,6 +479,37 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_connect:
                 mBluetoothLeService.connect(mDeviceAddress);
                 return true;
+            case R.id.menu_export_trace:
+                exportLatencyTrace();
+                return true;
+            case R.id.menu_read_all:
+                mBluetoothLeService.takeSnapshot(SNAPSHOT_BUDGET, mSnapshotCallback);
+                return true;
+            case R.id.menu_framing:
+                mBluetoothLeService.setFramingEnabled(!item.isChecked());
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_link_quality:
+                showLinkQuality();
+                return true;
+            case R.id.menu_debug_log:
+                BleLog.setLevel(item.isChecked() ? BleLog.INFO : BleLog.DEBUG);
+                invalidateOptionsMenu();
+                return true;
+            case R.id.menu_export_log:
+                exportBleLog();
+                return true;
+            case R.id.menu_update_firmware:
+                startActivityForResult(new Intent(Intent.ACTION_GET_CONTENT)
+                        .setType("*/*")
+                        .addCategory(Intent.CATEGORY_OPENABLE), REQUEST_FIRMWARE);
+                return true;
+            case R.id.menu_download_history:
+                // From the start, for as much as the device has; it ends the download.
+                if (!mBluetoothLeService.startHistoryDownload(0, HistoryDownloader.MAX_CHUNKS)) {
+                    Toast.makeText(this, R.string.history_failed, Toast.LENGTH_LONG).show();
+                }
+                return true;
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 onBackPressed();
@@ -482,142 +538,264 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
+    private void showData(byte[] data) {
+        if (data == null) return;
+        final long now = SystemClock.elapsedRealtime();
+        if (mLaunchTime != 0) {
+            Log.i(TAG, "First telemetry " + (now - mLaunchTime) + " ms after launch");
+            mLaunchTime = 0;
+        }
+        if (mResumeTime != 0) {
+            Log.i(TAG, "Data shown " + (now - mResumeTime) + " ms after returning, "
+                    + (mBluetoothLeService != null ? mBluetoothLeService.getReconnectsAvoided() : 0)
+                    + " reconnects avoided");
+            mResumeTime = 0;
+        }
+        Trace.beginSection("BLE decode");
+        try {
+            parseNotification(data);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    // Holds the stamps of frames decoded but not drawn yet, then records them with the time
+    // their frame was drawn.
+    private void traceFrame(long radio, long dispatched) {
+        if (radio == 0 || mPendingTraces == MAX_PENDING_TRACES) return;
+        final int i = mPendingTraces * 3;
+        mPendingTrace[i] = radio;
+        mPendingTrace[i + 1] = dispatched;
+        mPendingTrace[i + 2] = SystemClock.elapsedRealtimeNanos();
+        if (mPendingTraces++ == 0) {
+            Choreographer.getInstance().postFrameCallback(mFrameTrace);
+        }
+    }
+
+    private void exportLatencyTrace() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        final File file = new File(directory, "latency-" + System.currentTimeMillis() + ".csv");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LatencyTracer.getInstance().export(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export the latency trace", e);
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this,
+                                getString(R.string.trace_exported, file.getAbsolutePath()),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "LatencyExport").start();
+    }
+
+    // Copies the picked image off the main thread, then hands it to the service.
+    private void updateFirmware(final Uri uri) {
+        final File directory = new File(getFilesDir(), FIRMWARE_DIRECTORY);
+        final File file = new File(directory, "image-" + System.currentTimeMillis() + ".bin");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Unable to create " + directory);
+                    }
+                    final InputStream in = getContentResolver().openInputStream(uri);
+                    if (in == null) throw new IOException("Unable to open " + uri);
+                    final OutputStream out = new FileOutputStream(file);
+                    try {
+                        final byte[] buffer = new byte[8192];
+                        int length;
+                        while ((length = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, length);
+                        }
+                    } finally {
+                        in.close();
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to copy the firmware image", e);
+                    file.delete();
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mBluetoothLeService == null
+                                || !mBluetoothLeService.startFirmwareUpdate(file)) {
+                            file.delete();
+                            Toast.makeText(DeviceControlActivity.this, R.string.ota_failed,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        // Starting cancelled any earlier update, so its image can go.
+                        final File[] images = directory.listFiles();
+                        for (int i = 0; images != null && i < images.length; i++) {
+                            if (!images[i].equals(file)) images[i].delete();
+                        }
+                    }
+                });
+            }
+        }, "FirmwareCopy").start();
+    }
+
+    // Renders the binary log files as one text file, oldest records first.
+    private void exportBleLog() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        final File file = new File(directory, "ble-" + System.currentTimeMillis() + ".txt");
+        final File[] logs = BleLog.getFiles(getFilesDir());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PrintWriter out = new PrintWriter(new FileWriter(file));
+                    try {
+                        for (int i = logs.length - 1; i >= 0; i--) {
+                            if (logs[i].exists()) BleLog.dump(logs[i], out);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export the BLE log", e);
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(DeviceControlActivity.this,
+                                getString(R.string.log_exported, file.getAbsolutePath()),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "BleLogExport").start();
+    }
+
+    private void showLinkQuality() {
+        final FrameIntegrity.Stats connection = mBluetoothLeService.getLinkQuality();
+        final FrameIntegrity.Stats device = mBluetoothLeService.getLinkQuality(mDeviceAddress);
+        Toast.makeText(this, getString(R.string.link_quality, connection,
+                connection.getLossRate() * 100, device != null ? device : connection),
+                Toast.LENGTH_LONG).show();
+    }
+
+    private final GattSnapshot.Callback mSnapshotCallback = new GattSnapshot.Callback() {
+        @Override
+        public void onSnapshot(GattSnapshot snapshot) {
+            for (GattSnapshot.Entry entry : snapshot.getEntries()) {
+                Log.d(TAG, entry.toString());
+            }
+            if (isFinishing()) return;
+            Toast.makeText(DeviceControlActivity.this,
+                    getString(R.string.snapshot_taken, snapshot.getReadCount(),
+                            snapshot.getEntries().size(), snapshot.getElapsed()),
+                    Toast.LENGTH_LONG).show();
+        }
+    };
+
+    // Reused by every frame parsed.
+    private final TelemetryFrame mTelemetry = new TelemetryFrame();
+    private final StringBuilder mDateText = new StringBuilder(20);
+
+    // Same as %02d for the values a frame carries, without a Formatter per field.
+    private static StringBuilder appendTwoDigits(StringBuilder builder, int value) {
+        if (value >= 0 && value < 10) {
+            builder.append('0');
+        }
+        return builder.append(value);
+    }
+
     private void parseNotification(byte[] data) {
         if(null == data) {
             return;
         }
-        final StringBuilder stringBuilder = new StringBuilder(data.length);
-        for(byte byteChar : data)
-            stringBuilder.append(String.format("%02X ", byteChar));
-
-        Long tmp = new Long(0);
-        String str = new String();
-        int i = 0;
-        Log.d("PARSING", stringBuilder.toString());
-        if(data.length < 13) return;
-
-        tmp = (long)data[i++] & 0xFF;
-        str = tmp == 0 ? getString(R.string.value_null) : tmp.toString();
-        heartRate.setText(str);
-
-        tmp = (long)data[i++] & 0xFF;
-        str = (tmp == 0 ? getString(R.string.value_null) : tmp.toString())+ "/";
-        tmp = (long)data[i++] & 0xFF;
-        str += tmp == 0 ? getString(R.string.value_null) : tmp.toString();
-        blood.setText(str);
-
-        tmp = (long)data[i++] & 0xFF;
-        tmp = (tmp << 8) + ((long)data[i++] & 0xFF);
-        tmp = (tmp << 8) + ((long)data[i++] & 0xFF);
-        tmp = (tmp << 8) + ((long)data[i++] & 0xFF);
-        str = tmp.toString();
-        steps.setText(str);
-
-        tmp =2000 + ((long)data[i++] & 0xFF);
-        str = tmp.toString() + ":";
-        tmp = (long)data[i++] & 0xFF;
-        // str += tmp.toString() + ":";
-        str += String.format("%02d", tmp) + ":";
-        tmp = (long)data[i++] & 0xFF;
-        // str += tmp.toString() + ",";
-        str += String.format("%02d", tmp) + ", ";
-        tmp = (long)data[i++] & 0xFF;
-        // str += tmp.toString() + ":";
-        str += String.format("%02d", tmp) + ":";
-        tmp = (long)data[i++] & 0xFF;
-        // str += tmp.toString() + ":";
-        str += String.format("%02d", tmp) + ":";
-        tmp = (long)data[i++] & 0xFF;
-        // str += tmp.toString();
-        str += String.format("%02d", tmp);
-
-        dateAndTime.setText(str);
-
-//        String workText = getString(R.string.idle);
-//
-//        if(data.length >= 20) {
-//            if(data[8] != 0 && data[9] != 0 && strength != 0) {
-//                String modeStr;
-//                switch (data[13])
-//                {
-//                    case MODE_1:
-//                        modeStr = "1";
-//                        break;
-//                    case MODE_2:
-//                        modeStr = "2";
-//                        break;
-//                    case MODE_3:
-//                        modeStr = "3";
-//                        break;
-//                    default:
-//                        modeStr = "1";
-//                        break;
-//                }
-//                workText = getString(R.string.mode) + ":" + modeStr + "  " + getString(R.string.strength) + ":" + data[18];
-//            } else {
-//                workText = getString(R.string.idle);
-//            }
-//
-//        }
-
-        // workTextView.setText(workText);
+        BleLog.d(BleLog.EVENT_FRAME, data);
+
+        final TelemetryFrame frame = mTelemetry;
+        final int length = TelemetryFrameCodec.decode(data, frame);
+        if (length < 0) return;
+
+        heartRate.setText(valueOrNull(frame.heartRate));
+        blood.setText(valueOrNull(frame.systolic) + "/" + valueOrNull(frame.diastolic));
+        steps.setText(Long.toString(frame.steps));
+        // Zero is no reading, as for the text.
+        final long now = SystemClock.elapsedRealtime();
+        if (frame.heartRate != 0) mHeartRateSeries.add(now, frame.heartRate);
+        if (frame.systolic != 0) mSystolicSeries.add(now, frame.systolic);
+        if (frame.diastolic != 0) mDiastolicSeries.add(now, frame.diastolic);
+        mStepsSeries.add(now, frame.steps);
+        mVitalsChart.onSamplesAdded();
+        mStepsChart.onSamplesAdded();
+        final StringBuilder date = mDateText;
+        date.setLength(0);
+        date.append(2000 + frame.year).append(':');
+        appendTwoDigits(date, frame.month).append(':');
+        appendTwoDigits(date, frame.day).append(", ");
+        appendTwoDigits(date, frame.hour).append(':');
+        appendTwoDigits(date, frame.minute).append(':');
+        appendTwoDigits(date, frame.second);
+        // TextView copies plain text, so the builder can be reused for the next frame.
+        dateAndTime.setText(date);
+
+        String workText = getString(R.string.idle);
+        final int strength = mBluetoothLeService != null
+                ? mBluetoothLeService.getStimulation().getStrength() : 0;
+
+        if (length >= TelemetryFrameCodec.SIZE) {
+            // As the index-based parser did: bytes 8 and 9, month and day here, gate it.
+            if (frame.month != 0 && frame.day != 0 && strength != 0) {
+                String modeStr;
+                switch (frame.mode)
+                {
+                    case StimulationController.MODE_1:
+                        modeStr = "1";
+                        break;
+                    case StimulationController.MODE_2:
+                        modeStr = "2";
+                        break;
+                    case StimulationController.MODE_3:
+                        modeStr = "3";
+                        break;
+                    default:
+                        modeStr = "1";
+                        break;
+                }
+                workText = getString(R.string.mode) + ":" + modeStr + "  " + getString(R.string.strength) + ":" + frame.strength;
+            }
+        }
+
+        workTextView.setText(workText);
+    }
+
+    private String valueOrNull(int value) {
+        return value == 0 ? getString(R.string.value_null) : Integer.toString(value);
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
     // In this sample, we populate the data structure that is bound to the ExpandableListView
     // on the UI.
+    // Rows are bound lazily from the live GATT tree, so this costs the same for any table size.
     private void displayGattServices(List<BluetoothGattService> gattServices) {
         if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, SampleGattAttributes.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, SampleGattAttributes.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
-            }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
+        if (mGattBrowser != null) {
+            mGattBrowser.release();
         }
-
-        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-                this,
-                gattServiceData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 },
-                gattCharacteristicData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 }
-        );
-        mGattServicesList.setAdapter(gattServiceAdapter);
+        mGattBrowser = new GattBrowserAdapter(this, gattServices);
+        mGattServicesList.setAdapter(mGattBrowser);
     }
 
     private void displayWorkLayout() {
@@ -636,21 +814,23 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_OTA_PROGRESS);
+        intentFilter.addAction(BluetoothLeService.ACTION_OTA_COMPLETE);
+        intentFilter.addAction(BluetoothLeService.ACTION_HISTORY_PROGRESS);
+        intentFilter.addAction(BluetoothLeService.ACTION_HISTORY_COMPLETE);
+        intentFilter.addAction(BluetoothLeService.ACTION_HISTORY_FAILED);
         intentFilter.addAction(DeviceControlActivity.SMS_INTENT);
         return intentFilter;
     }
 
     private void enableNotify() {
-        for (ArrayList<BluetoothGattCharacteristic> array : mGattCharacteristics) {
+        if (mGattBrowser == null) return;
+        for (int group = 0; group < mGattBrowser.getGroupCount(); group++) {
 
-            for(BluetoothGattCharacteristic characteristic : array) {
-                int charaProp = characteristic.getProperties();
-                if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                    mNotifyCharacteristic = characteristic;
-                    mBluetoothLeService.setCharacteristicNotification(
-                            characteristic, true);
-
-                    mNotifyCharacteristic = characteristic;
+            for(BluetoothGattCharacteristic characteristic
+                    : mGattBrowser.getGroup(group).getCharacteristics()) {
+                // The service remembers these and restores them after a reconnect.
+                if (SubscriptionManager.enableValue(characteristic) != null) {
                     mBluetoothLeService.setCharacteristicNotification(
                             characteristic, true);
                 }
@@ -658,42 +838,14 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
-    private byte[] packData(boolean isStart, int mode, int strength) {
-        return null;
-    }
-
-    private static class MyHandler extends Handler {
-        WeakReference<DeviceControlActivity> mWeakActivity;
-
-        public MyHandler(DeviceControlActivity activity) {
-            this.mWeakActivity = new WeakReference<DeviceControlActivity>(activity);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
-            final DeviceControlActivity mActivity = mWeakActivity.get();
-            if (mActivity != null) {
-                mActivity.msgHandler(msg);
-            }
-        }
-    }
-
-    public void msgHandler(Message msg) {
-        try {
-            if(isAppFront) {
-                if (mConnected) {
-                    Log.d("MSG", "READ MSG");
-                    mBluetoothLeService.readBleData();
-                }
-            }
-
-        } catch (Exception e) {
-
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions,
+                                           int[] grantResults) {
+        // Alerts come from the service; it only needs to know it may listen now.
+        if (requestCode == DeviceScanActivity.PERMISSION_READ_STATE
+                && mBluetoothLeService != null) {
+            mBluetoothLeService.startCallAlerts();
         }
-
-        Message message = Message.obtain(mHandler);
-        mHandler.sendMessageDelayed(message, READ_PERIOD);
     }
 
     @Override
@@ -702,28 +854,55 @@ public class DeviceControlActivity extends Activity {
             finish();
             return;
         }
+        if (requestCode == REQUEST_FIRMWARE) {
+            if (resultCode == Activity.RESULT_OK && data != null && data.getData() != null) {
+                updateFirmware(data.getData());
+            }
+            return;
+        }
         super.onActivityResult(requestCode, resultCode, data);
     }
 
-    class MyPhoneStateListener extends PhoneStateListener {
+    // Steps the strength once on press, then every STRENGTH_REPEAT while held.  The controller
+    // only sends the latest value, so a long hold never queues up commands.
+    private class StrengthRepeater implements View.OnTouchListener {
+        private final int mStep;
+        private final TimerWheel.Timer mRepeat = new TimerWheel.Timer(new Runnable() {
+            @Override
+            public void run() {
+                step();
+            }
+        });
+
+        StrengthRepeater(int step) {
+            mStep = step;
+        }
+
         @Override
-        public void onCallStateChanged(int state, String incomingNumber) {
-            super.onCallStateChanged(state, incomingNumber);
-            switch (state) {
-                // 如果电话铃响
-                case TelephonyManager.CALL_STATE_RINGING:
-                    Log.d("INCOMING", incomingNumber);
-                    if (mConnected) {
-                        mBluetoothLeService.writeBleData(phonecallType(true, incomingNumber));
-                    }
-                    break;
-                default:
-                    Log.d("INCOMING", incomingNumber);
-                    if (mConnected) {
-                        mBluetoothLeService.writeBleData(phonecallType(false, incomingNumber));
-                    }
-                    break;
+        public boolean onTouch(View view, MotionEvent event) {
+            switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    view.setPressed(true);
+                    step();
+                    BluetoothLeService.getTimers().schedulePeriodic(mRepeat, STRENGTH_REPEAT, 0);
+                    return true;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    view.setPressed(false);
+                    BluetoothLeService.getTimers().cancel(mRepeat);
+                    return true;
             }
+            return false;
+        }
+
+        void cancel() {
+            BluetoothLeService.getTimers().cancel(mRepeat);
+        }
+
+        private void step() {
+            if (mBluetoothLeService == null) return;
+            StimulationController stimulation = mBluetoothLeService.getStimulation();
+            stimulation.setStrength(stimulation.getStrength() + mStep);
         }
     }
 }
@@ -22,20 +22,19 @@ import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
@@ -50,8 +49,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Activity for scanning and displaying available Bluetooth LE devices.
@@ -62,46 +62,49 @@ public class DeviceScanActivity extends ListActivity {
     public static int PERMISSION_READ_STATE = 2;
     public static final String DEVICE_PREFIX = "BLE";
 
-    public static final int MSG_PERIOD = 0;
-    public static final int MSG_STOP_SCAN = 1;
-
     private LeDeviceListAdapter mLeDeviceListAdapter;
+    private ScanDeviceTable mDeviceTable;
     private BluetoothAdapter mBluetoothAdapter;
-    private boolean mScanning;
+    private LeScanner mScanner;
+    private ScanScheduler mScanScheduler;
     // private Handler mHandler;
 
     private static final int REQUEST_ENABLE_BT = 1;
-    // Stops scanning after 10 seconds.
-    private static final long SCAN_PERIOD = 10000;
+    // Lets the controller batch advertisements; the list only refreshes a few times a second.
+    private static final long SCAN_REPORT_DELAY = 500;
 
     // private int counterTest;
-    private static final int HANDLER_PERIOD = 10;
-
-    private String mDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mLastConnectionState = STATE_DISCONNECTED;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-    private static final int STATE_DISCOVERED = 3;
+    private final Handler mHandler = new Handler();
 
-    public final static String ACTION_GATT_CONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED =
-            "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED =
-            "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
+    private BluetoothLeService mBluetoothLeService;
+    private KnownDeviceRegistry mKnownDevices;
+    // The device connected to directly at launch, until it is ready or the user picks another.
+    private KnownDeviceRegistry.KnownDevice mPreferredDevice;
+    private long mLaunchTime;
 
+    // Code to manage Service lifecycle.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
-    private final MyHandler mHandler = new MyHandler(this);
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                return;
+            }
+            // Known band: connect by address right away, the scan keeps running alongside.
+            if (mPreferredDevice != null) {
+                Log.d(TAG, "Connecting directly to " + mPreferredDevice.address);
+                mBluetoothLeService.connect(mPreferredDevice.address);
+            }
+        }
 
-    private long lastTime = 0;
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
 
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -128,6 +131,12 @@ public class DeviceScanActivity extends ListActivity {
                 Log.d(TAG, "DISCONNECTED");
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 Log.d(TAG, "DISCOVERED");
+                if (mPreferredDevice != null && mBluetoothLeService != null
+                        && mPreferredDevice.address.equals(mBluetoothLeService.getDeviceAddress())) {
+                    KnownDeviceRegistry.KnownDevice device = mPreferredDevice;
+                    mPreferredDevice = null;
+                    openDevice(device.name, device.address);
+                }
             } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
                 Log.d(TAG, "DATA AVAILABLE");
             } else if(Telephony.Sms.Intents.SMS_RECEIVED_ACTION.equals(action)) {
@@ -136,62 +145,6 @@ public class DeviceScanActivity extends ListActivity {
         }
     };
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
-        }
-
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mConnectionState = STATE_DISCOVERED;
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.d(TAG, "onServicesDiscovered received: " + status);
-            }
-        }
-
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-                broadcastUpdate(ACTION_DATA_AVAILABLE);
-            }
-        }
-
-
-
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            // broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            broadcastUpdate(ACTION_DATA_AVAILABLE);
-        }
-    };
-
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-    }
-
 
 //    private static final Runnable mRunnableStopScan = new Runnable() {
 //        @Override
@@ -206,8 +159,7 @@ public class DeviceScanActivity extends ListActivity {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         getActionBar().setTitle(R.string.title_devices);
-        mDeviceAddress = null;
-        mConnectionState = STATE_DISCONNECTED;
+        mLaunchTime = SystemClock.elapsedRealtime();
         // counterTest = 0;
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
@@ -229,6 +181,10 @@ public class DeviceScanActivity extends ListActivity {
             finish();
             return;
         }
+        mScanner = LeScanner.create(mBluetoothAdapter, mScanCallback);
+        mScanner.setReportDelay(SCAN_REPORT_DELAY);
+        mScanScheduler = new ScanScheduler(mScanner, mHandler, BluetoothLeService.getTimers(),
+                mScanListener);
 
 //        if(!mBluetoothAdapter.isEnabled()) {
 //            Toast.makeText(this, R.string.turn_on_bluetooth_note, Toast.LENGTH_SHORT).show();
@@ -267,18 +223,18 @@ public class DeviceScanActivity extends ListActivity {
                 .create();
         alertDialog.show();
 
-        /** start period handler */
-//        if(!mHandler.hasMessages(MSG_PERIOD)) {
-//            Message message = Message.obtain(mHandler);
-//            message.what = MSG_PERIOD;
-//            mHandler.sendMessageDelayed(message, MSG_PERIOD);
-//        }
+        mKnownDevices = new KnownDeviceRegistry(this);
+        if (savedInstanceState == null) {
+            mPreferredDevice = mKnownDevices.getPreferred();
+        }
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main, menu);
-        if (!mScanning) {
+        if (!mScanScheduler.isScanning()) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
             menu.findItem(R.id.menu_refresh).setActionView(null);
@@ -293,12 +249,11 @@ public class DeviceScanActivity extends ListActivity {
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
-        if(mConnectionState != STATE_DISCONNECTED) {
-            return true;
-        }
-
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                // An explicit scan is for browsing, whatever the known band is up to.
+                setScanTarget(null);
+                mDeviceTable.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
@@ -323,6 +278,9 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        mDeviceTable = new ScanDeviceTable(DEVICE_PREFIX, mHandler, mLeDeviceListAdapter);
+        mDeviceTable.start();
+        setScanTarget(mPreferredDevice);
         scanLeDevice(true);
 
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
@@ -343,81 +301,119 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mDeviceTable.stop();
         mLeDeviceListAdapter.clear();
 
         unregisterReceiver(mGattUpdateReceiver);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        unbindService(mServiceConnection);
+        mBluetoothLeService = null;
+    }
+
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
-        if (device == null) return;
+        final ScanDeviceTable.Row row = (ScanDeviceTable.Row) mLeDeviceListAdapter.getItem(position);
+        if (row == null) return;
+        // The user picked a device themselves, stop waiting for the known one.
+        mPreferredDevice = null;
+        mKnownDevices.updateRssi(row.address, row.rssi);
+        openDevice(row.name, row.address);
+    }
+
+    private void openDevice(String name, String address) {
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
-        if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
-        }
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, address);
+        intent.putExtra(DeviceControlActivity.EXTRAS_LAUNCH_TIME, mLaunchTime);
+        mScanScheduler.cancel();
         startActivity(intent);
+    }
 
-//        mDeviceAddress = device.getAddress();
-//
-//        if (mScanning) {
-//            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-//            mScanning = false;
-//        }
-//
-//        connect();
+    // While connecting to a known band, scan for it alone and at a low duty cycle only; the
+    // controller then drops every other advertiser before it reaches the app.
+    private void setScanTarget(KnownDeviceRegistry.KnownDevice device) {
+        if (device != null) {
+            mScanScheduler.setTarget(device.address, device.getLastSeenElapsed());
+            mScanner.setAddresses(Collections.singletonList(device.address));
+        } else {
+            mScanScheduler.setTarget(null, 0);
+            mScanner.setAddresses(Collections.<String>emptyList());
+        }
     }
 
     private void scanLeDevice(final boolean enable) {
+        // The scheduler decides when the radio actually goes on and off, and stops on its own.
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            // mHandler.postDelayed(mRunnableStopScan, SCAN_PERIOD);
-            Message msg = Message.obtain(mHandler);
-            msg.what = MSG_STOP_SCAN;
-            mHandler.sendMessageDelayed(msg, SCAN_PERIOD);
-
-            mScanning = true;
-            mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mScanScheduler.request();
         } else {
-            mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mScanScheduler.cancel();
         }
         invalidateOptionsMenu();
     }
 
-    // Adapter for holding devices found through scanning.
-    private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+    private final ScanScheduler.Listener mScanListener = new ScanScheduler.Listener() {
+        @Override
+        public void onScanStateChanged(boolean scanning) {
+            invalidateOptionsMenu();
+        }
+
+        @Override
+        public void onTargetFound(String address, long timeToDiscover) {
+            Log.d(TAG, "Known device " + address + " advertising, connection pending");
+            mKnownDevices.onSeen(address);
+        }
+    };
+
+    // Adapter for holding devices found through scanning.  It is fed whole snapshots of the
+    // device table; rows whose content didn't change are left alone.
+    private class LeDeviceListAdapter extends BaseAdapter implements ScanDeviceTable.Listener {
+        private List<ScanDeviceTable.Row> mLeDevices;
         private LayoutInflater mInflator;
+        private final AssignedNumbers mAssignedNumbers;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanDeviceTable.Row>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
+            mAssignedNumbers = AssignedNumbers.getInstance(DeviceScanActivity.this);
         }
 
-        public void addDevice(BluetoothDevice device) {
-            String deviceName = device.getName();
-            if (deviceName == null || !deviceName.startsWith(DEVICE_PREFIX)) {
+        @Override
+        public void onSnapshot(List<ScanDeviceTable.Row> rows) {
+            if (rows.size() != mLeDevices.size()) {
+                mLeDevices = rows;
+                notifyDataSetChanged();
                 return;
             }
-
-            if(mLeDevices.contains(device)) {
-               return;
+            for (int i = 0; i < rows.size(); i++) {
+                if (!rows.get(i).address.equals(mLeDevices.get(i).address)) {
+                    mLeDevices = rows;
+                    notifyDataSetChanged();
+                    return;
+                }
             }
 
-            mLeDevices.add(device);
-        }
-
-        public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            // Same devices in the same order: only rebind the visible rows that changed.
+            final List<ScanDeviceTable.Row> previous = mLeDevices;
+            mLeDevices = rows;
+            final ListView listView = getListView();
+            final int first = listView.getFirstVisiblePosition();
+            for (int i = 0; i < listView.getChildCount(); i++) {
+                int position = first + i;
+                if (position >= rows.size()) break;
+                if (!rows.get(position).sameAs(previous.get(position))) {
+                    bind((ViewHolder) listView.getChildAt(i).getTag(), rows.get(position));
+                }
+            }
         }
 
         public void clear() {
-            mLeDevices.clear();
+            mLeDevices = new ArrayList<ScanDeviceTable.Row>();
+            notifyDataSetChanged();
         }
 
         @Override
@@ -444,146 +440,51 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            bind(viewHolder, mLeDevices.get(i));
+            return view;
+        }
+
+        private void bind(ViewHolder viewHolder, ScanDeviceTable.Row row) {
+            if (viewHolder == null) return;
+            final String deviceName = row.name;
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
-
-            return view;
+            // Name the maker from the manufacturer data, which helps tell unnamed devices apart.
+            final String company = row.manufacturerId != -1
+                    ? mAssignedNumbers.lookupCompany(row.manufacturerId) : null;
+            if (company != null) {
+                viewHolder.deviceAddress.setText(getString(R.string.device_address_company,
+                        row.address, company));
+            } else {
+                viewHolder.deviceAddress.setText(row.address);
+            }
+            viewHolder.deviceRssi.setText(getString(R.string.rssi_format, row.rssi,
+                    row.distance, row.count));
         }
     }
 
-    // Device scan callback.
-    private BluetoothAdapter.LeScanCallback mLeScanCallback =
-            new BluetoothAdapter.LeScanCallback() {
+    // Device scan callback.  This runs on a binder thread; the device table does the rest.
+    private final LeScanner.Callback mScanCallback = new LeScanner.Callback() {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+        public void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            mDeviceTable.onAdvertisement(device, rssi, scanRecord);
+            mScanScheduler.onAdvertisement(device.getAddress());
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
-    }
-
-    private static class MyHandler extends Handler {
-        WeakReference<DeviceScanActivity> mWeakActivity;
-
-        public MyHandler(DeviceScanActivity activity) {
-            this.mWeakActivity = new WeakReference<DeviceScanActivity>(activity);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
-            final DeviceScanActivity mActivity = mWeakActivity.get();
-            if (mActivity != null) {
-                mActivity.msgHandler(msg);
-            }
-        }
-    }
-
-    public void msgHandler(Message msg) {
-        switch(msg.what) {
-            case DeviceScanActivity.MSG_PERIOD:
-                msgHandlerPeriod();
-                break;
-            case DeviceScanActivity.MSG_STOP_SCAN:
-                msgHandlerStopScan();
-                break;
-            default:
-                break;
-        }
-    }
-
-    public void msgHandlerPeriod() {
-        boolean newStateEvent = mLastConnectionState != mConnectionState;
-        long currentTime = System.currentTimeMillis();
-
-        if(mConnectionState == STATE_DISCONNECTED) {
-            /** resotre */
-            if(newStateEvent) {
-                Log.d(TAG, "RESTORE");
-            }
-        } else if(mConnectionState == STATE_DISCOVERED) {
-            /** go work UI */
-            if(newStateEvent) {
-                Log.d(TAG, "WORK");
-            }
-        } else {
-            /** progress */
-            if(newStateEvent) {
-                lastTime = System.currentTimeMillis();
-                Log.d(TAG, "PROGRESS");
-            }
-
-            if(currentTime > lastTime && currentTime - lastTime > 15000) {
-                if(mBluetoothGatt != null) {
-                    mBluetoothGatt.close();
-                    mBluetoothGatt = null;
-                }
-                mConnectionState = STATE_DISCONNECTED;
-            }
-        }
-
-        mLastConnectionState = mConnectionState;
-
-        Message message = Message.obtain(mHandler);
-        message.what = MSG_PERIOD;
-        mHandler.sendMessageDelayed(message, MSG_PERIOD);
-    }
-
-    public void msgHandlerStopScan() {
-        mScanning = false;
-        mBluetoothAdapter.stopLeScan(mLeScanCallback);
-        invalidateOptionsMenu();
-    }
-
-    public boolean connect() {
-        if (mBluetoothAdapter == null || mDeviceAddress == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
-            return false;
-        }
-
-        // Previously connected device.  Try to reconnect.
-        if (mDeviceAddress != null && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mDeviceAddress);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        // mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+        TextView deviceRssi;
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
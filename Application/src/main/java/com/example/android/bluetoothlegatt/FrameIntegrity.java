@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.util.HashMap;
+
+/**
+ * Optional integrity framing for the {@code READ_UUID}/{@code WRITE_UUID} protocol.  A framed
+ * frame is the plain frame followed by a three byte trailer:
+ *
+ * <pre>
+ * frame(n)  seq(1)  crc(2)
+ * </pre>
+ *
+ * seq counts frames per direction, modulo 256.  crc is CRC-16/CCITT-FALSE (polynomial 0x1021,
+ * initial value 0xFFFF), big endian, over the frame and seq.  The frame keeps its layout, so
+ * parsers read framed and plain frames alike.
+ *
+ * Inbound notifications are checked for corruption, duplicates and gaps, counted per
+ * connection and per device.  Reads are only checked for corruption, as a read returns the
+ * current frame again.  The checks allocate nothing.
+ */
+public class FrameIntegrity {
+    public static final int TRAILER_SIZE = 3;
+
+    public static final int OK = 0;
+    public static final int CORRUPT = 1;
+    public static final int DUPLICATE = 2;
+    // Intact, but frames before it were lost.
+    public static final int GAP = 3;
+
+    // A sequence number this far behind the last one is taken as a duplicate, not a gap.
+    private static final int SEQUENCE_WINDOW = 128;
+
+    private static final char[] CRC_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = (char) crc;
+        }
+    }
+
+    /**
+     * Frame counts of one connection, or of every connection to one device.
+     */
+    public static class Stats {
+        long received;
+        long lost;
+        long duplicated;
+        long corrupted;
+
+        public long getReceived() {
+            return received;
+        }
+
+        public long getLost() {
+            return lost;
+        }
+
+        public long getDuplicated() {
+            return duplicated;
+        }
+
+        public long getCorrupted() {
+            return corrupted;
+        }
+
+        // Rates are over every frame the device sent: received, lost or corrupted.
+        public float getLossRate() {
+            return rate(lost);
+        }
+
+        public float getDuplicateRate() {
+            return rate(duplicated);
+        }
+
+        public float getCorruptionRate() {
+            return rate(corrupted);
+        }
+
+        private float rate(long count) {
+            final long sent = received + lost + corrupted;
+            return sent > 0 ? (float) count / sent : 0;
+        }
+
+        @Override
+        public String toString() {
+            return received + " received, " + lost + " lost, " + duplicated + " duplicated, "
+                    + corrupted + " corrupted";
+        }
+    }
+
+    private final HashMap<String, Stats> mDeviceStats = new HashMap<String, Stats>();
+    private Stats mConnectionStats = new Stats();
+    private Stats mDeviceTotals = new Stats();
+    private int mLastInbound = -1;
+    private int mNextOutbound;
+
+    // Sealed frames by length, reused so writes don't allocate once warmed up.
+    private final byte[][] mSealed = new byte[513][];
+
+    public static int crc16(byte[] data, int offset, int length) {
+        return crc16(0xFFFF, data, offset, length);
+    }
+
+    /**
+     * Continues a CRC over more data, for data that arrives in pieces.  Start from 0xFFFF.
+     */
+    public static int crc16(int crc, byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    public static boolean isIntact(byte[] frame) {
+        if (frame == null || frame.length <= TRAILER_SIZE) return false;
+        final int length = frame.length - 2;
+        final int crc = ((frame[length] & 0xFF) << 8) | (frame[length + 1] & 0xFF);
+        return crc16(frame, 0, length) == crc;
+    }
+
+    /**
+     * A new connection to the device: its sequence numbers start over.
+     */
+    public synchronized void onConnected(String address) {
+        mConnectionStats = new Stats();
+        mDeviceTotals = mDeviceStats.get(address);
+        if (mDeviceTotals == null) {
+            mDeviceTotals = new Stats();
+            mDeviceStats.put(address, mDeviceTotals);
+        }
+        mLastInbound = -1;
+        mNextOutbound = 0;
+    }
+
+    /**
+     * Checks a notification.
+     *
+     * @return {@link #OK}, {@link #GAP}, {@link #DUPLICATE} or {@link #CORRUPT}.  Only
+     *         duplicate and corrupt frames must be dropped.
+     */
+    public synchronized int onNotification(byte[] frame) {
+        if (!isIntact(frame)) {
+            mConnectionStats.corrupted++;
+            mDeviceTotals.corrupted++;
+            return CORRUPT;
+        }
+        final int seq = frame[frame.length - TRAILER_SIZE] & 0xFF;
+        final int ahead = mLastInbound < 0 ? 1 : (seq - mLastInbound) & 0xFF;
+        if (ahead == 0 || ahead > SEQUENCE_WINDOW) {
+            mConnectionStats.duplicated++;
+            mDeviceTotals.duplicated++;
+            return DUPLICATE;
+        }
+        mLastInbound = seq;
+        mConnectionStats.received++;
+        mDeviceTotals.received++;
+        if (ahead > 1) {
+            mConnectionStats.lost += ahead - 1;
+            mDeviceTotals.lost += ahead - 1;
+            return GAP;
+        }
+        return OK;
+    }
+
+    /**
+     * Checks a read.
+     *
+     * @return false if the frame is corrupt.
+     */
+    public synchronized boolean onRead(byte[] frame) {
+        if (isIntact(frame)) return true;
+        mConnectionStats.corrupted++;
+        mDeviceTotals.corrupted++;
+        return false;
+    }
+
+    /**
+     * Appends the trailer to an outbound frame.  The result is reused by the next call with a
+     * frame of the same length, which is fine as only one write is ever in flight.  The
+     * sequence number only moves on with {@link #onSent()}, so a write that fails to start is
+     * sealed with the same number again.
+     */
+    public synchronized byte[] seal(byte[] frame) {
+        final int length = frame.length + TRAILER_SIZE;
+        byte[] sealed = length < mSealed.length ? mSealed[length] : null;
+        if (sealed == null) {
+            sealed = new byte[length];
+            if (length < mSealed.length) {
+                mSealed[length] = sealed;
+            }
+        }
+        System.arraycopy(frame, 0, sealed, 0, frame.length);
+        sealed[frame.length] = (byte) mNextOutbound;
+        final int crc = crc16(sealed, 0, frame.length + 1);
+        sealed[length - 2] = (byte) (crc >>> 8);
+        sealed[length - 1] = (byte) crc;
+        return sealed;
+    }
+
+    /**
+     * The frame sealed last is on its way to the device: the next one gets the next sequence
+     * number.
+     */
+    public synchronized void onSent() {
+        mNextOutbound = (mNextOutbound + 1) & 0xFF;
+    }
+
+    /**
+     * @return Counts for the current or last connection.  A snapshot.
+     */
+    public synchronized Stats getConnectionStats() {
+        return copy(mConnectionStats);
+    }
+
+    /**
+     * @return Counts over every connection to the device since the app started, or null.
+     */
+    public synchronized Stats getDeviceStats(String address) {
+        Stats stats = mDeviceStats.get(address);
+        return stats != null ? copy(stats) : null;
+    }
+
+    private static Stats copy(Stats stats) {
+        Stats copy = new Stats();
+        copy.received = stats.received;
+        copy.lost = stats.lost;
+        copy.duplicated = stats.duplicated;
+        copy.corrupted = stats.corrupted;
+        return copy;
+    }
+}
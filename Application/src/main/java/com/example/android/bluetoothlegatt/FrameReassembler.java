@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Reference implementation of the device side of {@link FrameSegmenter}.  It is written the
+ * way the firmware has to do it: a fixed number of slots, fixed-size buffers, no allocation per
+ * frame and a received-segment bitmap, so it ports line by line to C.
+ */
+public class FrameReassembler {
+    public static final int SLOTS = 2;
+
+    private final int mSegmentSize;
+    private final byte[][] mBuffers = new byte[SLOTS][];
+    private final int[] mIds = new int[SLOTS];
+    private final int[] mTotals = new int[SLOTS];
+    private final int[] mLengths = new int[SLOTS];
+    private final long[][] mReceived = new long[SLOTS][4];
+    private final int[] mCounts = new int[SLOTS];
+    private final long[] mAges = new long[SLOTS];
+    private long mClock;
+
+    /**
+     * @param frameSize The largest frame the link delivers, i.e. ATT MTU - 3.
+     */
+    public FrameReassembler(int frameSize) {
+        mSegmentSize = frameSize - FrameSegmenter.HEADER_SIZE;
+        for (int i = 0; i < SLOTS; i++) {
+            mBuffers[i] = new byte[mSegmentSize * FrameSegmenter.MAX_SEGMENTS];
+            mIds[i] = -1;
+        }
+    }
+
+    /**
+     * Feeds one frame.
+     *
+     * @return The length of the completed payload, which can then be fetched with
+     *         {@link #getPayload(int)} using the same message id, or -1 if the message is
+     *         still incomplete or the frame is not a segment.
+     */
+    public int onFrame(byte[] frame, int length) {
+        if (length < FrameSegmenter.HEADER_SIZE || frame[0] != FrameSegmenter.TYPE_SEGMENT) {
+            return -1;
+        }
+        int id = frame[1] & 0xFF;
+        int index = frame[2] & 0xFF;
+        int total = frame[3] & 0xFF;
+        int dataLength = length - FrameSegmenter.HEADER_SIZE;
+        if (total == 0 || index >= total || dataLength > mSegmentSize) {
+            return -1;
+        }
+
+        int slot = findSlot(id, total);
+        long[] received = mReceived[slot];
+        if ((received[index >> 6] & (1L << (index & 63))) != 0) {
+            return -1;
+        }
+        received[index >> 6] |= 1L << (index & 63);
+        System.arraycopy(frame, FrameSegmenter.HEADER_SIZE, mBuffers[slot],
+                index * mSegmentSize, dataLength);
+        if (index == total - 1) {
+            mLengths[slot] = index * mSegmentSize + dataLength;
+        }
+        mAges[slot] = ++mClock;
+        if (++mCounts[slot] < total) {
+            return -1;
+        }
+        return mLengths[slot];
+    }
+
+    /**
+     * Returns the buffer holding the completed message and releases its slot.  The buffer stays
+     * valid until the next call to {@link #onFrame(byte[], int)}.
+     */
+    public byte[] getPayload(int id) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (mIds[slot] == id && mCounts[slot] == mTotals[slot]) {
+                mIds[slot] = -1;
+                return mBuffers[slot];
+            }
+        }
+        return null;
+    }
+
+    private int findSlot(int id, int total) {
+        int oldest = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (mIds[slot] == id && mTotals[slot] == total) {
+                return slot;
+            }
+            if (mIds[slot] == -1) {
+                oldest = slot;
+                mAges[slot] = -1;
+            } else if (mAges[slot] < mAges[oldest]) {
+                oldest = slot;
+            }
+        }
+        // A new message evicts the least recently touched one; its missing segments are lost.
+        mIds[oldest] = id;
+        mTotals[oldest] = total;
+        mCounts[oldest] = 0;
+        mLengths[oldest] = 0;
+        for (int i = 0; i < mReceived[oldest].length; i++) {
+            mReceived[oldest][i] = 0;
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.nio.charset.Charset;
+
+/**
+ * Splits a message that does not fit a single frame into a run of segment frames:
+ *
+ * <pre>
+ * 0x03 SEGMENT  id(1) index(1) total(1) data...
+ * </pre>
+ *
+ * All segments of one message share the id; the device stitches the data back together in
+ * index order (see {@link FrameReassembler}).  The reassembled payload is
+ *
+ * <pre>
+ * kind(1) senderLength(1) sender(UTF-8) body(UTF-8)
+ * </pre>
+ */
+public class FrameSegmenter {
+    public static final byte TYPE_SEGMENT = 0x03;
+    public static final int HEADER_SIZE = 4;
+    public static final int MAX_SEGMENTS = 255;
+
+    public static final byte KIND_SMS = 0x01;
+    public static final byte KIND_CALL = 0x02;
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Builds the message payload.  The sender and body are cut on character boundaries so a
+     * CJK character is never split, and the body is shortened to what fits into
+     * {@link #MAX_SEGMENTS} segments of the given frame size.
+     */
+    public static byte[] encodeMessage(byte kind, String sender, String body, int frameSize) {
+        byte[] senderBytes = truncate(sender == null ? "" : sender, 255);
+        int room = MAX_SEGMENTS * (frameSize - HEADER_SIZE) - 2 - senderBytes.length;
+        byte[] bodyBytes = truncate(body == null ? "" : body, room);
+
+        byte[] payload = new byte[2 + senderBytes.length + bodyBytes.length];
+        payload[0] = kind;
+        payload[1] = (byte) senderBytes.length;
+        System.arraycopy(senderBytes, 0, payload, 2, senderBytes.length);
+        System.arraycopy(bodyBytes, 0, payload, 2 + senderBytes.length, bodyBytes.length);
+        return payload;
+    }
+
+    /**
+     * Splits a payload into segment frames of at most frameSize bytes each.
+     */
+    public static byte[][] segment(int messageId, byte[] payload, int frameSize) {
+        int room = frameSize - HEADER_SIZE;
+        int total = Math.max(1, (payload.length + room - 1) / room);
+        if (total > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("Payload too large: " + payload.length);
+        }
+
+        byte[][] frames = new byte[total][];
+        for (int index = 0; index < total; index++) {
+            int offset = index * room;
+            int length = Math.min(room, payload.length - offset);
+            byte[] frame = new byte[HEADER_SIZE + length];
+            frame[0] = TYPE_SEGMENT;
+            frame[1] = (byte) messageId;
+            frame[2] = (byte) index;
+            frame[3] = (byte) total;
+            System.arraycopy(payload, offset, frame, HEADER_SIZE, length);
+            frames[index] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * Encodes text as UTF-8, dropping whole characters from the end until it fits.
+     */
+    public static byte[] truncate(String text, int maxBytes) {
+        byte[] bytes = text.getBytes(UTF_8);
+        if (bytes.length <= maxBytes) {
+            return bytes;
+        }
+        int end = Math.max(0, maxBytes);
+        // Back up over continuation bytes (10xxxxxx) to the start of the cut character.
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        byte[] result = new byte[end];
+        System.arraycopy(bytes, 0, result, 0, end);
+        return result;
+    }
+}
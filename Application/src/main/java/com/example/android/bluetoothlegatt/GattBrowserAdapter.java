@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.TextView;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Expandable list of the services and characteristics of the connected device, bound straight
+ * from the live GATT tree.  Nothing is built up front: a row is only formatted when the list
+ * asks for it, UUID strings and names are resolved once per UUID and cached, and hex values are
+ * formatted once per value received.
+ */
+public class GattBrowserAdapter extends BaseExpandableListAdapter {
+    // Coalesce bursts of values, e.g. from a read-all pass, into one refresh.
+    private static final long REFRESH_DELAY = 100;
+
+    private final LayoutInflater mInflater;
+    private final List<BluetoothGattService> mServices;
+    private final AssignedNumbers mAssignedNumbers;
+    private final String mUnknownService;
+    private final String mUnknownCharacteristic;
+
+    // UUID -> {name, uuid string}
+    private final HashMap<UUID, String[]> mNames = new HashMap<UUID, String[]>();
+    // Formatted value per characteristic, dropped whenever a new value arrives.
+    private final HashMap<BluetoothGattCharacteristic, String> mValues =
+            new HashMap<BluetoothGattCharacteristic, String>();
+
+    private final TimerWheel.Timer mRefresh = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            notifyDataSetChanged();
+        }
+    });
+
+    static class ViewHolder {
+        TextView name;
+        TextView detail;
+    }
+
+    public GattBrowserAdapter(Context context, List<BluetoothGattService> services) {
+        mInflater = LayoutInflater.from(context);
+        mServices = services;
+        mAssignedNumbers = AssignedNumbers.getInstance(context);
+        mUnknownService = context.getString(R.string.unknown_service);
+        mUnknownCharacteristic = context.getString(R.string.unknown_characteristic);
+    }
+
+    /**
+     * A characteristic got a new value; its row is refreshed shortly.  Main thread only.
+     */
+    public void onValueChanged(UUID uuid) {
+        boolean changed = false;
+        for (BluetoothGattService service : mServices) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if (characteristic.getUuid().equals(uuid)) {
+                    mValues.remove(characteristic);
+                    changed = true;
+                }
+            }
+        }
+        TimerWheel timers = BluetoothLeService.getTimers();
+        if (changed && !timers.isPending(mRefresh)) {
+            timers.schedule(mRefresh, REFRESH_DELAY, 0);
+        }
+    }
+
+    /**
+     * Stops pending refreshes, once the list no longer shows this adapter.
+     */
+    public void release() {
+        BluetoothLeService.getTimers().cancel(mRefresh);
+    }
+
+    @Override
+    public int getGroupCount() {
+        return mServices.size();
+    }
+
+    @Override
+    public int getChildrenCount(int groupPosition) {
+        return mServices.get(groupPosition).getCharacteristics().size();
+    }
+
+    @Override
+    public BluetoothGattService getGroup(int groupPosition) {
+        return mServices.get(groupPosition);
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getChild(int groupPosition, int childPosition) {
+        return mServices.get(groupPosition).getCharacteristics().get(childPosition);
+    }
+
+    @Override
+    public long getGroupId(int groupPosition) {
+        return groupPosition;
+    }
+
+    @Override
+    public long getChildId(int groupPosition, int childPosition) {
+        return childPosition;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return false;
+    }
+
+    @Override
+    public View getGroupView(int groupPosition, boolean isExpanded, View view,
+                             ViewGroup parent) {
+        if (view == null) {
+            view = newRow(parent);
+        }
+        ViewHolder viewHolder = (ViewHolder) view.getTag();
+        String[] name = name(getGroup(groupPosition).getUuid(), mUnknownService);
+        viewHolder.name.setText(name[0]);
+        viewHolder.detail.setText(name[1]);
+        return view;
+    }
+
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+                             View view, ViewGroup parent) {
+        if (view == null) {
+            view = newRow(parent);
+        }
+        ViewHolder viewHolder = (ViewHolder) view.getTag();
+        BluetoothGattCharacteristic characteristic = getChild(groupPosition, childPosition);
+        String[] name = name(characteristic.getUuid(), mUnknownCharacteristic);
+        viewHolder.name.setText(name[0]);
+        String value = value(characteristic);
+        viewHolder.detail.setText(value != null ? name[1] + "\n" + value : name[1]);
+        return view;
+    }
+
+    @Override
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return true;
+    }
+
+    private View newRow(ViewGroup parent) {
+        View view = mInflater.inflate(android.R.layout.simple_expandable_list_item_2, parent,
+                false);
+        ViewHolder viewHolder = new ViewHolder();
+        viewHolder.name = (TextView) view.findViewById(android.R.id.text1);
+        viewHolder.detail = (TextView) view.findViewById(android.R.id.text2);
+        view.setTag(viewHolder);
+        return view;
+    }
+
+    private String[] name(UUID uuid, String unknown) {
+        String[] name = mNames.get(uuid);
+        if (name == null) {
+            String string = uuid.toString();
+            String assigned = mAssignedNumbers.lookup(uuid);
+            name = new String[] {
+                    assigned != null ? assigned : SampleGattAttributes.lookup(string, unknown),
+                    string};
+            mNames.put(uuid, name);
+        }
+        return name;
+    }
+
+    private String value(BluetoothGattCharacteristic characteristic) {
+        String value = mValues.get(characteristic);
+        if (value == null) {
+            byte[] data = characteristic.getValue();
+            if (data == null || data.length == 0) return null;
+            final StringBuilder stringBuilder = new StringBuilder(data.length * 3);
+            for (byte byteChar : data)
+                stringBuilder.append(String.format("%02X ", byteChar));
+            value = stringBuilder.toString();
+            mValues.put(characteristic, value);
+        }
+        return value;
+    }
+}
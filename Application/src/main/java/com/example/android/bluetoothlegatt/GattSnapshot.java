@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The values of every readable characteristic and every descriptor of a device, read back to
+ * back by {@code BluetoothLeService#takeSnapshot}.  Each entry keeps the raw bytes; decoding
+ * into text is left to {@link Entry#getDecoded()}, off the GATT callback.
+ *
+ * A snapshot that ran out of its time budget or lost the link is still handed out: entries that
+ * were not read by then are {@link #STATUS_TIMED_OUT}.
+ */
+public class GattSnapshot {
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_OK = 1;
+    public static final int STATUS_FAILED = 2;
+    public static final int STATUS_TIMED_OUT = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Values that are UTF-8 strings, by 16-bit assigned number.
+    private static final int[] STRING_UUIDS = {
+            0x2A00, 0x2A24, 0x2A25, 0x2A26, 0x2A27, 0x2A28, 0x2A29, 0x2901,
+    };
+
+    public interface Callback {
+        /**
+         * Called once on the main thread, complete or not.
+         */
+        void onSnapshot(GattSnapshot snapshot);
+    }
+
+    /**
+     * One characteristic, or one descriptor of a characteristic.
+     */
+    public static class Entry {
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        int status = STATUS_PENDING;
+        byte[] value;
+        long started;
+        long latency = -1;
+
+        Entry(BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor) {
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+        }
+
+        public UUID getServiceUuid() {
+            final BluetoothGattService service = characteristic.getService();
+            return service != null ? service.getUuid() : null;
+        }
+
+        public UUID getCharacteristicUuid() {
+            return characteristic.getUuid();
+        }
+
+        /**
+         * @return The descriptor's UUID, or null for the characteristic's own value.
+         */
+        public UUID getDescriptorUuid() {
+            return descriptor != null ? descriptor.getUuid() : null;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The raw value, or null if it wasn't read.
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+        /**
+         * @return Milliseconds from starting the read until its callback, or -1.
+         */
+        public long getLatency() {
+            return latency;
+        }
+
+        public String getDecoded() {
+            return value != null
+                    ? decode(descriptor != null ? descriptor.getUuid() : characteristic.getUuid(),
+                            value)
+                    : null;
+        }
+
+        @Override
+        public String toString() {
+            final String name = getCharacteristicUuid()
+                    + (descriptor != null ? "/" + getDescriptorUuid() : "");
+            switch (status) {
+                case STATUS_OK:
+                    return name + " = " + getDecoded() + " (" + latency + " ms)";
+                case STATUS_FAILED:
+                    return name + " failed";
+                default:
+                    return name + " timed out";
+            }
+        }
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final long mStarted = SystemClock.elapsedRealtime();
+    private long mElapsed = -1;
+    private int mPending;
+    private Entry mOutstanding;
+
+    /**
+     * Lists what to read: every readable characteristic, then each of its descriptors.
+     * Descriptors don't tell whether they are readable, so those that aren't end up failed.
+     */
+    GattSnapshot(List<BluetoothGattService> services) {
+        for (BluetoothGattService service : services) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                    mEntries.add(new Entry(characteristic, null));
+                }
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    mEntries.add(new Entry(characteristic, descriptor));
+                }
+            }
+        }
+        mPending = mEntries.size();
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * @return true if every entry was read or failed within the budget.
+     */
+    public synchronized boolean isComplete() {
+        return mElapsed >= 0 && mPending == 0;
+    }
+
+    public synchronized boolean isFinished() {
+        return mElapsed >= 0;
+    }
+
+    /**
+     * @return Milliseconds the snapshot took, or -1 while it is still running.
+     */
+    public synchronized long getElapsed() {
+        return mElapsed;
+    }
+
+    public synchronized int getReadCount() {
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (entry.status == STATUS_OK) count++;
+        }
+        return count;
+    }
+
+    // The read of an entry was started; its callback is the next one of the right kind.
+    synchronized void onStarted(Entry entry) {
+        mOutstanding = entry;
+        entry.started = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Offers a read callback.
+     *
+     * @param attribute The characteristic or descriptor it is for.
+     * @return true if it was the snapshot's read.
+     */
+    synchronized boolean onRead(Object attribute, boolean success, byte[] value) {
+        final Entry entry = mOutstanding;
+        if (entry == null || (entry.descriptor != null
+                ? entry.descriptor != attribute : entry.characteristic != attribute)) {
+            return false;
+        }
+        mOutstanding = null;
+        if (entry.status != STATUS_PENDING) return true;
+        entry.latency = SystemClock.elapsedRealtime() - entry.started;
+        if (success) {
+            entry.status = STATUS_OK;
+            entry.value = value != null ? value.clone() : new byte[0];
+        } else {
+            entry.status = STATUS_FAILED;
+        }
+        mPending--;
+        return true;
+    }
+
+    // The read couldn't be started or its callback never came.
+    synchronized void onFailed(Entry entry) {
+        if (mOutstanding == entry) {
+            mOutstanding = null;
+        }
+        if (entry.status != STATUS_PENDING) return;
+        entry.status = STATUS_FAILED;
+        mPending--;
+    }
+
+    synchronized int getPending() {
+        return mPending;
+    }
+
+    /**
+     * Ends the snapshot; anything not read yet timed out.
+     *
+     * @return false if it had already ended.
+     */
+    synchronized boolean finish() {
+        if (mElapsed >= 0) return false;
+        mElapsed = SystemClock.elapsedRealtime() - mStarted;
+        mOutstanding = null;
+        for (Entry entry : mEntries) {
+            if (entry.status == STATUS_PENDING) {
+                entry.status = STATUS_TIMED_OUT;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders a value as text: strings for the assigned numbers that are strings, the
+     * subscription state of a client characteristic configuration, the battery level, and hex
+     * for anything else.
+     */
+    public static String decode(UUID uuid, byte[] value) {
+        final long msb = uuid.getMostSignificantBits();
+        final int assigned = (msb & 0xFFFF0000FFFFFFFFL) == 0x0000000000001000L
+                && uuid.getLeastSignificantBits() == 0x800000805F9B34FBL
+                ? (int) (msb >>> 32) : -1;
+        for (int string : STRING_UUIDS) {
+            if (assigned == string) {
+                return "\"" + new String(value, UTF_8) + "\"";
+            }
+        }
+        if (assigned == 0x2902 && value.length >= 2) {
+            final int bits = (value[0] & 0xFF) | ((value[1] & 0xFF) << 8);
+            if (bits == 0) return "off";
+            return (((bits & 0x01) != 0 ? "notify " : "")
+                    + ((bits & 0x02) != 0 ? "indicate" : "")).trim();
+        }
+        if (assigned == 0x2A19 && value.length == 1) {
+            return (value[0] & 0xFF) + "%";
+        }
+        final StringBuilder builder = new StringBuilder(value.length * 3);
+        for (byte b : value) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16)).append(' ');
+        }
+        return builder.toString().trim().toUpperCase();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Decodes the Heart Rate Measurement characteristic (0x2A37):
+ *
+ * <pre>
+ * flags(1) heartRate(1 or 2) [energyExpended(2)] [rrInterval(2)...]
+ * </pre>
+ *
+ * Flag bit 0 makes the heart rate 16 bits wide, bits 1 and 2 report sensor contact, bit 3 adds
+ * the energy expended in kJ and bit 4 adds RR intervals in 1/1024 s, oldest first.  All values
+ * are little endian.
+ *
+ * One instance is decoded into over and over; nothing is allocated unless a measurement carries
+ * more RR intervals than any before.
+ */
+public class HeartRateMeasurement {
+    public static final int CONTACT_UNSUPPORTED = 0;
+    public static final int CONTACT_NOT_DETECTED = 1;
+    public static final int CONTACT_DETECTED = 2;
+
+    private static final int FLAG_UINT16 = 0x01;
+    private static final int FLAG_CONTACT_DETECTED = 0x02;
+    private static final int FLAG_CONTACT_SUPPORTED = 0x04;
+    private static final int FLAG_ENERGY_EXPENDED = 0x08;
+    private static final int FLAG_RR_INTERVALS = 0x10;
+
+    private int mFlags;
+    private int mHeartRate;
+    private int mEnergyExpended = -1;
+    // Enough for a default 20 byte value.
+    private int[] mRrIntervals = new int[9];
+    private int mRrCount;
+
+    /**
+     * @return false if the value is too short for what its flags announce.
+     */
+    public boolean decode(byte[] value) {
+        if (value == null || value.length < 2) return false;
+        final int flags = value[0] & 0xFF;
+        int i = 1;
+        final int heartRate;
+        if ((flags & FLAG_UINT16) != 0) {
+            if (value.length < 3) return false;
+            heartRate = uint16(value, i);
+            i += 2;
+        } else {
+            heartRate = value[i++] & 0xFF;
+        }
+        int energyExpended = -1;
+        if ((flags & FLAG_ENERGY_EXPENDED) != 0) {
+            if (value.length < i + 2) return false;
+            energyExpended = uint16(value, i);
+            i += 2;
+        }
+        mRrCount = 0;
+        if ((flags & FLAG_RR_INTERVALS) != 0) {
+            final int count = (value.length - i) / 2;
+            if (count > mRrIntervals.length) {
+                mRrIntervals = new int[count];
+            }
+            for (; mRrCount < count; i += 2) {
+                mRrIntervals[mRrCount++] = uint16(value, i);
+            }
+        }
+        mFlags = flags;
+        mHeartRate = heartRate;
+        mEnergyExpended = energyExpended;
+        return true;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return Beats per minute.
+     */
+    public int getHeartRate() {
+        return mHeartRate;
+    }
+
+    public int getSensorContact() {
+        if ((mFlags & FLAG_CONTACT_SUPPORTED) == 0) return CONTACT_UNSUPPORTED;
+        return (mFlags & FLAG_CONTACT_DETECTED) != 0 ? CONTACT_DETECTED : CONTACT_NOT_DETECTED;
+    }
+
+    /**
+     * @return Kilojoules since the last reset, or -1 if not in this measurement.
+     */
+    public int getEnergyExpended() {
+        return mEnergyExpended;
+    }
+
+    public int getRrCount() {
+        return mRrCount;
+    }
+
+    /**
+     * @return The i-th RR interval, in 1/1024 s.
+     */
+    public int getRrInterval(int i) {
+        return mRrIntervals[i];
+    }
+
+    /**
+     * @return The RR intervals in milliseconds, rounded.
+     */
+    public int[] getRrIntervalsMillis() {
+        final int[] millis = new int[mRrCount];
+        for (int i = 0; i < mRrCount; i++) {
+            millis[i] = (mRrIntervals[i] * 1000 + 512) / 1024;
+        }
+        return millis;
+    }
+
+    private static int uint16(byte[] value, int offset) {
+        return (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8);
+    }
+}
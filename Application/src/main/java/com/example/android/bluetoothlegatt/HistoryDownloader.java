@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+import java.util.UUID;
+
+/**
+ * Drives the bulk history backfill protocol on its own characteristic, {@link #CHANNEL_UUID},
+ * which the phone writes and the device notifies.  Telemetry frames on {@code READ_UUID} start
+ * with the heart rate, so any first byte is possible there; keeping history off that
+ * characteristic is what tells the two apart.  All frames are 20 bytes, like the rest of the
+ * device protocol:
+ *
+ * <pre>
+ * phone -> device  0x10 REQUEST   start(3) count(3)   send chunks [start, start + count)
+ * phone -> device  0x11 ACK       seq(3)              every chunk below seq has been stored
+ * phone -> device  0x12 RESEND    seq(3)              chunk seq is missing, send it again
+ * device -> phone  0xA0 CHUNK     seq(3) len(1) data  one chunk of up to 15 history bytes
+ * device -> phone  0xA1 END       seq(3)              the device has no history past seq
+ * </pre>
+ *
+ * The device may keep at most {@link #WINDOW} chunks in flight past the last ACK, and the
+ * phone stops polling telemetry while a download runs, so the chunks have the link to
+ * themselves.  The last
+ * acknowledged chunk is persisted per device address, so an interrupted download resumes from
+ * there after the next reconnect instead of starting over.
+ *
+ * Everything runs on the handler's thread, except {@link #onNotification(byte[])}, which may be
+ * called from the binder thread and hands the frame over.
+ */
+public class HistoryDownloader {
+    private final static String TAG = HistoryDownloader.class.getSimpleName();
+
+    public static final UUID CHANNEL_UUID =
+            UUID.fromString("0000ff02-0000-1000-8000-00805f9b34fb");
+
+    public static final byte TYPE_REQUEST = 0x10;
+    public static final byte TYPE_ACK = 0x11;
+    public static final byte TYPE_RESEND = 0x12;
+    public static final byte TYPE_CHUNK = (byte) 0xA0;
+    public static final byte TYPE_END = (byte) 0xA1;
+
+    public static final int FRAME_SIZE = 20;
+    public static final int CHUNK_PAYLOAD = FRAME_SIZE - 5;
+    public static final int WINDOW = 32;
+    // The most a request can ask for; the device ends it with END where its history ends.
+    public static final long MAX_CHUNKS = 0xFFFFFF;
+
+    // Re-request the oldest missing chunk when nothing arrives for this long.
+    private static final long STALL_TIMEOUT = 1000;
+    private static final long STALL_SLACK = 250;
+
+    public static final String PREFERENCES_NAME = "history";
+    private static final String KEY_ACKED = "acked_";
+    private static final String KEY_END = "end_";
+
+    public interface Link {
+        boolean send(byte[] frame);
+    }
+
+    public interface Listener {
+        void onProgress(long receivedChunks, long totalChunks, long bytesPerSecond);
+        void onComplete(File file, long totalChunks);
+        void onFailed(String address);
+    }
+
+    private final Handler mHandler;
+    private final Link mLink;
+    private final Listener mListener;
+    private final SharedPreferences mPreferences;
+    private final File mDirectory;
+    private final TimerWheel mTimers;
+
+    private String mAddress;
+    private RandomAccessFile mFile;
+    // Read on the binder thread to claim frames.
+    private volatile boolean mActive;
+    private boolean mConnected;
+
+    // Chunks [mAcked, mEnd) are still outstanding; mReceived is indexed relative to mAcked.
+    private long mAcked;
+    private long mEnd;
+    private long mHighest;
+    private final BitSet mReceived = new BitSet(WINDOW * 2);
+
+    private long mSessionStart;
+    private long mSessionBytes;
+    private long mLastProgress;
+
+    private final TimerWheel.Timer mStallCheck = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            if (!mActive || !mConnected) return;
+            if (SystemClock.elapsedRealtime() - mLastProgress >= STALL_TIMEOUT) {
+                Log.d(TAG, "Stalled at " + mAcked + ", re-requesting");
+                requestMissing();
+            }
+        }
+    });
+
+    public HistoryDownloader(Handler handler, SharedPreferences preferences, File directory,
+                             TimerWheel timers, Link link, Listener listener) {
+        mHandler = handler;
+        mPreferences = preferences;
+        mDirectory = directory;
+        mTimers = timers;
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * Starts (or restarts) a download of chunks [start, start + count) from the given device.
+     * Has no effect on the radio until {@link #onConnected(String)} is called.
+     *
+     * @return false if the history file could not be opened, in which case the listener has
+     *         been told and nothing is persisted.
+     */
+    public boolean start(String address, long start, long count) {
+        cancel();
+        mAddress = address;
+        mAcked = start;
+        mEnd = start + count;
+        if (!open()) {
+            mAddress = null;
+            mListener.onFailed(address);
+            return false;
+        }
+        persist();
+        if (mConnected) {
+            resume();
+        }
+        return true;
+    }
+
+    public void cancel() {
+        if (mAddress != null) {
+            mPreferences.edit().remove(KEY_ACKED + mAddress).remove(KEY_END + mAddress).apply();
+        }
+        stop();
+        mAddress = null;
+    }
+
+    public boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Called once services have been discovered.  Resumes a download that was interrupted by a
+     * disconnect, including one persisted by a previous process.
+     */
+    public void onConnected(String address) {
+        mConnected = true;
+        if (!address.equals(mAddress)) {
+            stop();
+            mAddress = address;
+            mAcked = mPreferences.getLong(KEY_ACKED + address, -1);
+            mEnd = mPreferences.getLong(KEY_END + address, -1);
+            if (mAcked < 0 || mEnd <= mAcked) {
+                mAddress = null;
+                return;
+            }
+            if (!open()) {
+                // Keep the persisted position; the next connection tries again.
+                mAddress = null;
+                mListener.onFailed(address);
+                return;
+            }
+        }
+        if (mFile != null) {
+            resume();
+        }
+    }
+
+    public void onDisconnected() {
+        mConnected = false;
+        mActive = false;
+        mTimers.cancel(mStallCheck);
+    }
+
+    /**
+     * Takes the downloader off the timer wheel and closes its file, for its owner going away.
+     * The position stays persisted, so the next instance resumes the download.
+     */
+    public void release() {
+        mConnected = false;
+        stop();
+    }
+
+    /**
+     * Offers a notification to the downloader.  May be called on any thread; a frame that is
+     * claimed is handled on the handler's thread.
+     *
+     * @param uuid The characteristic that notified; only {@link #CHANNEL_UUID} is history.
+     * @return true if the frame belonged to the history protocol and was consumed.
+     */
+    public boolean onNotification(UUID uuid, final byte[] data) {
+        if (!CHANNEL_UUID.equals(uuid)) return false;
+        if (!mActive || data == null || data.length < 4) return false;
+        if (data[0] != TYPE_END && (data[0] != TYPE_CHUNK || data.length < 5)) return false;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handleFrame(data);
+            }
+        });
+        return true;
+    }
+
+    private void handleFrame(byte[] data) {
+        // Cancelled or disconnected since the frame was claimed.
+        if (!mActive) return;
+        if (data[0] == TYPE_END) {
+            long last = readSeq(data, 1);
+            if (last < mEnd) {
+                mEnd = last;
+                persist();
+            }
+            advance();
+            return;
+        }
+
+        long seq = readSeq(data, 1);
+        int len = data[4] & 0xFF;
+        if (len > CHUNK_PAYLOAD || len > data.length - 5) {
+            Log.w(TAG, "Malformed chunk " + seq);
+            return;
+        }
+        if (seq < mAcked || seq >= mEnd || seq >= mAcked + WINDOW * 2) {
+            // Duplicate of something already stored, or outside anything we asked for.
+            return;
+        }
+        int index = (int) (seq - mAcked);
+        if (mReceived.get(index)) return;
+
+        try {
+            mFile.seek(seq * CHUNK_PAYLOAD);
+            mFile.write(data, 5, len);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to store chunk " + seq, e);
+            return;
+        }
+        mReceived.set(index);
+        mSessionBytes += len;
+        mLastProgress = SystemClock.elapsedRealtime();
+        if (seq > mHighest) {
+            // Anything skipped between the previous highest chunk and this one was lost.
+            for (long missing = Math.max(mHighest + 1, mAcked); missing < seq; missing++) {
+                if (!mReceived.get((int) (missing - mAcked))) {
+                    mLink.send(frame(TYPE_RESEND, missing, 0));
+                }
+            }
+            mHighest = seq;
+        }
+        advance();
+    }
+
+    public long getBytesPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mSessionStart;
+        return elapsed > 0 ? mSessionBytes * 1000 / elapsed : 0;
+    }
+
+    private void resume() {
+        mActive = true;
+        mReceived.clear();
+        mHighest = mAcked - 1;
+        mSessionStart = SystemClock.elapsedRealtime();
+        mSessionBytes = 0;
+        mLastProgress = mSessionStart;
+        Log.i(TAG, "Requesting history " + mAcked + ".." + mEnd + " from " + mAddress);
+        mLink.send(frame(TYPE_REQUEST, mAcked, mEnd - mAcked));
+        mTimers.schedulePeriodic(mStallCheck, STALL_TIMEOUT, STALL_SLACK);
+    }
+
+    private void requestMissing() {
+        // Nothing has arrived for a while, so nothing past the highest chunk is in flight
+        // either: a lost tail of the window counts as missing too.
+        long last = Math.min(mEnd, mAcked + WINDOW);
+        for (long seq = mAcked; seq < last; seq++) {
+            if (!mReceived.get((int) (seq - mAcked))) {
+                mLink.send(frame(TYPE_RESEND, seq, 0));
+                return;
+            }
+        }
+        // Nothing is missing inside the window, the device may have lost our last ACK.
+        mLink.send(frame(TYPE_ACK, mAcked, 0));
+    }
+
+    private void advance() {
+        int contiguous = mReceived.nextClearBit(0);
+        if (contiguous > 0 && (contiguous >= WINDOW / 2 || mAcked + contiguous >= mEnd)) {
+            // Slide the window forward by everything stored contiguously.
+            mAcked += contiguous;
+            BitSet rest = mReceived.get(contiguous, Math.max(contiguous, mReceived.length()));
+            mReceived.clear();
+            mReceived.or(rest);
+            persist();
+            mLink.send(frame(TYPE_ACK, mAcked, 0));
+            mListener.onProgress(mAcked, mEnd, getBytesPerSecond());
+        }
+        if (mAcked >= mEnd) {
+            Log.i(TAG, "History complete, " + mSessionBytes + " bytes at "
+                    + getBytesPerSecond() + " B/s");
+            File file = new File(mDirectory, fileName(mAddress));
+            long total = mEnd;
+            cancel();
+            mListener.onComplete(file, total);
+        }
+    }
+
+    private boolean open() {
+        try {
+            mFile = new RandomAccessFile(new File(mDirectory, fileName(mAddress)), "rw");
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open history file", e);
+            mFile = null;
+            return false;
+        }
+    }
+
+    private void stop() {
+        mActive = false;
+        mTimers.cancel(mStallCheck);
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close history file", e);
+            }
+            mFile = null;
+        }
+    }
+
+    private void persist() {
+        mPreferences.edit()
+                .putLong(KEY_ACKED + mAddress, mAcked)
+                .putLong(KEY_END + mAddress, mEnd)
+                .apply();
+    }
+
+    private static String fileName(String address) {
+        return "history-" + address.replace(":", "") + ".bin";
+    }
+
+    private static long readSeq(byte[] data, int offset) {
+        return ((data[offset] & 0xFFL) << 16) | ((data[offset + 1] & 0xFFL) << 8)
+                | (data[offset + 2] & 0xFFL);
+    }
+
+    private static byte[] frame(byte type, long first, long second) {
+        byte[] data = new byte[FRAME_SIZE];
+        data[0] = type;
+        data[1] = (byte) (first >> 16);
+        data[2] = (byte) (first >> 8);
+        data[3] = (byte) first;
+        data[4] = (byte) (second >> 16);
+        data[5] = (byte) (second >> 8);
+        data[6] = (byte) second;
+        return data;
+    }
+}
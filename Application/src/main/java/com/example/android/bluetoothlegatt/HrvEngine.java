@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * Streaming heart rate variability over the beats of the last {@link #WINDOW} of RR intervals:
+ * RMSSD, SDNN and pNN50.
+ *
+ * Beats are kept in a ring along with running sums of the intervals, their squares, the squared
+ * successive differences and the differences over 50 ms, so adding a beat and evicting the ones
+ * that fell out of the window costs O(1) amortized.  Intervals are kept in the 1/1024 s units of
+ * the profile and summed as integers, so eviction never accumulates rounding error.
+ *
+ * A beat outside 300 to 2000 ms, or more than 20% off the recent average, is rejected as an
+ * artifact (a missed or extra beat).  Successive differences are only taken between beats that
+ * followed each other directly, never across a rejected beat or a loss of sensor contact.  After
+ * several rejections in a row the rhythm is taken to have changed and the average is reseeded.
+ */
+public class HrvEngine {
+    private static final int UNITS_PER_SECOND = 1024;
+    // Beats covering this much time are kept, in 1/1024 s.
+    private static final long WINDOW = 60 * UNITS_PER_SECOND;
+    // 60 s at 220 bpm.
+    private static final int CAPACITY = 256;
+
+    private static final int MIN_INTERVAL = 300 * UNITS_PER_SECOND / 1000;
+    private static final int MAX_INTERVAL = 2000 * UNITS_PER_SECOND / 1000;
+    private static final int MAX_DEVIATION_PERCENT = 20;
+    private static final int RESEED_AFTER = 3;
+    // Fewer beats than this give no figures.
+    private static final int MIN_BEATS = 10;
+
+    private final int[] mIntervals = new int[CAPACITY];
+    // Difference to the previous beat, where mHasDifference says there is one.
+    private final int[] mDifferences = new int[CAPACITY];
+    private final boolean[] mHasDifference = new boolean[CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    private long mSpan;
+    private long mSum;
+    private long mSumOfSquares;
+    private long mDifferenceSquares;
+    private int mDifferenceCount;
+    private int mNn50;
+
+    private int mAverage;
+    private int mRejectedRun;
+    private boolean mContiguous;
+    private long mAccepted;
+    private long mRejected;
+
+    /**
+     * Adds the beats of a measurement.  Without sensor contact, its beats are left out.
+     */
+    public void onMeasurement(HeartRateMeasurement measurement) {
+        if (measurement.getSensorContact() == HeartRateMeasurement.CONTACT_NOT_DETECTED) {
+            mContiguous = false;
+            return;
+        }
+        for (int i = 0; i < measurement.getRrCount(); i++) {
+            onInterval(measurement.getRrInterval(i));
+        }
+    }
+
+    /**
+     * Adds one RR interval, in 1/1024 s.
+     *
+     * @return false if it was rejected as an artifact.
+     */
+    public boolean onInterval(int interval) {
+        if (interval < MIN_INTERVAL || interval > MAX_INTERVAL || (mAverage > 0
+                && Math.abs(interval - mAverage) * 100 > mAverage * MAX_DEVIATION_PERCENT)) {
+            mRejected++;
+            mContiguous = false;
+            if (++mRejectedRun >= RESEED_AFTER) {
+                mAverage = 0;
+            }
+            return false;
+        }
+        mAccepted++;
+        mRejectedRun = 0;
+        mAverage = mAverage == 0 ? interval : mAverage + (interval - mAverage) / 8;
+
+        if (mSize == CAPACITY) {
+            evict();
+        }
+        final int slot = (mHead + mSize) % CAPACITY;
+        final int previous = (mHead + mSize - 1 + CAPACITY) % CAPACITY;
+        mIntervals[slot] = interval;
+        mHasDifference[slot] = mContiguous && mSize > 0;
+        if (mHasDifference[slot]) {
+            final int difference = interval - mIntervals[previous];
+            mDifferences[slot] = difference;
+            addDifference(difference, 1);
+        }
+        mSize++;
+        mSpan += interval;
+        mSum += interval;
+        mSumOfSquares += (long) interval * interval;
+        mContiguous = true;
+
+        while (mSpan > WINDOW) {
+            evict();
+        }
+        return true;
+    }
+
+    /**
+     * The beats stop being contiguous, e.g. the link was lost.
+     */
+    public void onGap() {
+        mContiguous = false;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+        mSpan = 0;
+        mSum = 0;
+        mSumOfSquares = 0;
+        mDifferenceSquares = 0;
+        mDifferenceCount = 0;
+        mNn50 = 0;
+        mAverage = 0;
+        mRejectedRun = 0;
+        mContiguous = false;
+    }
+
+    /**
+     * @return Root mean square of successive differences in ms, or NaN with too few beats.
+     */
+    public float getRmssd() {
+        if (mSize < MIN_BEATS || mDifferenceCount == 0) return Float.NaN;
+        return (float) (Math.sqrt((double) mDifferenceSquares / mDifferenceCount)
+                * 1000 / UNITS_PER_SECOND);
+    }
+
+    /**
+     * @return Standard deviation of the intervals in ms, or NaN with too few beats.
+     */
+    public float getSdnn() {
+        if (mSize < MIN_BEATS) return Float.NaN;
+        final double variance = (mSumOfSquares - (double) mSum * mSum / mSize) / (mSize - 1);
+        return (float) (Math.sqrt(Math.max(0, variance)) * 1000 / UNITS_PER_SECOND);
+    }
+
+    /**
+     * @return Percentage of successive differences over 50 ms, or NaN with too few beats.
+     */
+    public float getPnn50() {
+        if (mSize < MIN_BEATS || mDifferenceCount == 0) return Float.NaN;
+        return 100f * mNn50 / mDifferenceCount;
+    }
+
+    public int getBeatCount() {
+        return mSize;
+    }
+
+    public long getAcceptedCount() {
+        return mAccepted;
+    }
+
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    // Drops the oldest beat, and the difference of the next one to it.
+    private void evict() {
+        final int interval = mIntervals[mHead];
+        if (mHasDifference[mHead]) {
+            addDifference(mDifferences[mHead], -1);
+        }
+        mSpan -= interval;
+        mSum -= interval;
+        mSumOfSquares -= (long) interval * interval;
+        mHead = (mHead + 1) % CAPACITY;
+        mSize--;
+        if (mSize > 0 && mHasDifference[mHead]) {
+            addDifference(mDifferences[mHead], -1);
+            mHasDifference[mHead] = false;
+        }
+    }
+
+    private void addDifference(int difference, int sign) {
+        mDifferenceSquares += sign * (long) difference * difference;
+        mDifferenceCount += sign;
+        // Over 50 ms, in 1/1024 s: |d| * 1000 / 1024 > 50.
+        if (Math.abs(difference) * 1000 > 50 * UNITS_PER_SECOND) {
+            mNn50 += sign;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+
+/**
+ * Remembers every device the app has connected to, so the next launch can connect straight to
+ * the band by address instead of waiting for a scan to find it.  Each device is stored as one
+ * JSON value in a SharedPreferences file keyed by address.
+ */
+public class KnownDeviceRegistry {
+    private final static String TAG = KnownDeviceRegistry.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "known_devices";
+
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_RSSI = "rssi";
+    private static final String KEY_LAST_CONNECTED = "lastConnected";
+    private static final String KEY_LAST_SEEN = "lastSeen";
+
+    public static class KnownDevice {
+        public final String address;
+        public final String name;
+        public final int lastRssi;
+        public final long lastConnected;
+        // Wall clock time the device was last heard advertising or connected, 0 if never.
+        public final long lastSeen;
+
+        KnownDevice(String address, String name, int lastRssi, long lastConnected,
+                    long lastSeen) {
+            this.address = address;
+            this.name = name;
+            this.lastRssi = lastRssi;
+            this.lastConnected = lastConnected;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * @return When the device was last seen as elapsedRealtime, for
+         *         {@link ScanScheduler#setTarget(String, long)}; 0 if never or before boot.
+         */
+        public long getLastSeenElapsed() {
+            if (lastSeen == 0) return 0;
+            long elapsed = SystemClock.elapsedRealtime() - (System.currentTimeMillis() - lastSeen);
+            return Math.max(0, elapsed);
+        }
+    }
+
+    private final SharedPreferences mPreferences;
+
+    public KnownDeviceRegistry(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public KnownDevice get(String address) {
+        return parse(mPreferences.getString(address, null));
+    }
+
+    /**
+     * @return The most recently connected device, or null if there is none.
+     */
+    public KnownDevice getPreferred() {
+        KnownDevice preferred = null;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) continue;
+            KnownDevice device = parse((String) entry.getValue());
+            if (device != null
+                    && (preferred == null || device.lastConnected > preferred.lastConnected)) {
+                preferred = device;
+            }
+        }
+        return preferred;
+    }
+
+    /**
+     * Records a successful connection.  The attribute layout is not kept: the stack caches it
+     * for bonded devices, and a BluetoothGatt only hands out its services after discovery.
+     */
+    public void onConnected(String address, String name) {
+        KnownDevice previous = get(address);
+        long now = System.currentTimeMillis();
+        try {
+            JSONObject json = new JSONObject()
+                    .put(KEY_ADDRESS, address)
+                    .put(KEY_NAME, name != null ? name : previous != null ? previous.name : "")
+                    .put(KEY_RSSI, previous != null ? previous.lastRssi : 0)
+                    .put(KEY_LAST_CONNECTED, now)
+                    .put(KEY_LAST_SEEN, now);
+            mPreferences.edit().putString(address, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to store " + address, e);
+        }
+    }
+
+    /**
+     * Updates the last RSSI of a device that is already known, which was just seen.
+     */
+    public void updateRssi(String address, int rssi) {
+        String value = mPreferences.getString(address, null);
+        if (value == null) return;
+        try {
+            JSONObject json = new JSONObject(value).put(KEY_RSSI, rssi)
+                    .put(KEY_LAST_SEEN, System.currentTimeMillis());
+            mPreferences.edit().putString(address, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to update " + address, e);
+        }
+    }
+
+    /**
+     * Records that a device that is already known was heard advertising.
+     */
+    public void onSeen(String address) {
+        String value = mPreferences.getString(address, null);
+        if (value == null) return;
+        try {
+            JSONObject json = new JSONObject(value).put(KEY_LAST_SEEN, System.currentTimeMillis());
+            mPreferences.edit().putString(address, json.toString()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to update " + address, e);
+        }
+    }
+
+    private static KnownDevice parse(String value) {
+        if (value == null) return null;
+        try {
+            JSONObject json = new JSONObject(value);
+            return new KnownDevice(json.getString(KEY_ADDRESS), json.optString(KEY_NAME, ""),
+                    json.optInt(KEY_RSSI, 0), json.optLong(KEY_LAST_CONNECTED, 0),
+                    json.optLong(KEY_LAST_SEEN, 0));
+        } catch (JSONException e) {
+            Log.w(TAG, "Dropping unreadable entry", e);
+            return null;
+        }
+    }
+}
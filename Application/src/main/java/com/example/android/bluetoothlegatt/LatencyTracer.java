@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Latency of telemetry from the radio callback to the screen, in four
+ * {@code SystemClock.elapsedRealtimeNanos()} stamps per frame:
+ *
+ * <pre>
+ * radio     BluetoothLeService received the notification or read
+ * dispatch  the activity's receiver got the broadcast
+ * decode    parseNotification has set the views
+ * drawn     the frame showing those views has been drawn
+ * </pre>
+ *
+ * The last {@link #CAPACITY} frames are kept in a ring of primitive arrays, and every stage
+ * has a histogram with power-of-two microsecond buckets, so recording allocates nothing.
+ * {@link #export(File)} writes both out as CSV.
+ */
+public class LatencyTracer {
+    public static final int STAGE_DISPATCH = 0;
+    public static final int STAGE_DECODE = 1;
+    public static final int STAGE_DRAW = 2;
+    public static final int STAGE_TOTAL = 3;
+    private static final int STAGE_COUNT = 4;
+    private static final String[] STAGE_NAMES = {"dispatch", "decode", "draw", "total"};
+
+    public static final int CAPACITY = 4096;
+    // Bucket i holds latencies in [2^(i-1), 2^i) microseconds, the last one everything above.
+    private static final int BUCKETS = 24;
+
+    private static LatencyTracer sInstance;
+
+    private final long[] mRadio = new long[CAPACITY];
+    private final long[] mDispatch = new long[CAPACITY];
+    private final long[] mDecode = new long[CAPACITY];
+    private final long[] mDrawn = new long[CAPACITY];
+    private final long[][] mHistograms = new long[STAGE_COUNT][BUCKETS];
+    private long mCount;
+
+    public static synchronized LatencyTracer getInstance() {
+        if (sInstance == null) {
+            sInstance = new LatencyTracer();
+        }
+        return sInstance;
+    }
+
+    public synchronized void record(long radio, long dispatch, long decode, long drawn) {
+        final int i = (int) (mCount++ % CAPACITY);
+        mRadio[i] = radio;
+        mDispatch[i] = dispatch;
+        mDecode[i] = decode;
+        mDrawn[i] = drawn;
+        mHistograms[STAGE_DISPATCH][bucket(dispatch - radio)]++;
+        mHistograms[STAGE_DECODE][bucket(decode - dispatch)]++;
+        mHistograms[STAGE_DRAW][bucket(drawn - decode)]++;
+        mHistograms[STAGE_TOTAL][bucket(drawn - radio)]++;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return An upper bound of the given percentile of a stage's latency, in microseconds,
+     *         or 0 before the first frame.
+     */
+    public synchronized long getPercentile(int stage, float percentile) {
+        return percentile(mHistograms[stage], percentile);
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        for (long[] histogram : mHistograms) {
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Writes the histograms and the frames still in the ring as CSV: first one
+     * {@code #}-commented summary line per stage, then one line per frame with its stamps in
+     * nanoseconds.  Slow, call off the main thread.
+     */
+    public void export(File file) throws IOException {
+        final long[][] histograms = new long[STAGE_COUNT][];
+        final long[] radio;
+        final long[] dispatch;
+        final long[] decode;
+        final long[] drawn;
+        final int count;
+        final int first;
+        synchronized (this) {
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                histograms[stage] = mHistograms[stage].clone();
+            }
+            radio = mRadio.clone();
+            dispatch = mDispatch.clone();
+            decode = mDecode.clone();
+            drawn = mDrawn.clone();
+            count = (int) Math.min(mCount, CAPACITY);
+            first = (int) ((mCount - count) % CAPACITY);
+        }
+
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            if (count > 1) {
+                final long span = radio[(first + count - 1) % CAPACITY] - radio[first];
+                out.println("# frames " + count + ", input rate "
+                        + (span > 0 ? String.format("%.1f", (count - 1) * 1e9 / span) : "-")
+                        + " Hz");
+            }
+            for (int stage = 0; stage < STAGE_COUNT; stage++) {
+                out.println("# " + STAGE_NAMES[stage]
+                        + " p50 " + percentile(histograms[stage], 50)
+                        + " p90 " + percentile(histograms[stage], 90)
+                        + " p99 " + percentile(histograms[stage], 99)
+                        + " us, buckets " + join(histograms[stage]));
+            }
+            out.println("radio_ns,dispatch_ns,decode_ns,drawn_ns");
+            for (int n = 0; n < count; n++) {
+                final int i = (first + n) % CAPACITY;
+                out.println(radio[i] + "," + dispatch[i] + "," + decode[i] + "," + drawn[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    private static int bucket(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static long percentile(long[] histogram, float percentile) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) return 0;
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) return 1L << i;
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    private static String join(long[] values) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(values[i]);
+        }
+        return builder.toString();
+    }
+}
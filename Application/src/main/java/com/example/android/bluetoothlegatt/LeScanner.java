@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scanner backend.  On API 21 and above it uses {@code BluetoothLeScanner}, so that filters can
+ * be offloaded to the controller and results batched with a report delay; below that it falls
+ * back to {@code BluetoothAdapter.startLeScan}.  Each scan session keeps simple metrics:
+ * callbacks per second and process CPU time spent while scanning.
+ *
+ * Control methods are called on the UI thread; the counters are bumped on the scan callback
+ * thread, so they are atomic.
+ */
+public abstract class LeScanner {
+    private final static String TAG = LeScanner.class.getSimpleName();
+
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public interface Callback {
+        /**
+         * Called on a binder thread for every advertisement, also for those delivered in a
+         * batch.
+         */
+        void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    protected final BluetoothAdapter mAdapter;
+    protected final Callback mCallback;
+
+    protected final List<String> mAddresses = new ArrayList<String>();
+    protected final List<UUID> mServiceUuids = new ArrayList<UUID>();
+    protected int mMode = MODE_LOW_LATENCY;
+    protected long mReportDelay;
+
+    private boolean mScanning;
+    private long mSessionStart;
+    private long mSessionCpuStart;
+    private final AtomicInteger mCallbacks = new AtomicInteger();
+    private final AtomicInteger mAdvertisements = new AtomicInteger();
+
+    public static LeScanner create(BluetoothAdapter adapter, Callback callback) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new LollipopScanner(adapter, callback);
+        }
+        return new LegacyScanner(adapter, callback);
+    }
+
+    protected LeScanner(BluetoothAdapter adapter, Callback callback) {
+        mAdapter = adapter;
+        mCallback = callback;
+    }
+
+    /**
+     * Restricts the scan to the given devices.  Takes effect on the next {@link #start()}.
+     */
+    public void setAddresses(List<String> addresses) {
+        mAddresses.clear();
+        mAddresses.addAll(addresses);
+    }
+
+    /**
+     * Restricts the scan to devices advertising one of the given services.  Takes effect on the
+     * next {@link #start()}.
+     */
+    public void setServiceUuids(List<UUID> uuids) {
+        mServiceUuids.clear();
+        mServiceUuids.addAll(uuids);
+    }
+
+    public void setMode(int mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Asks the controller to hold results back for up to delayMillis and deliver them in one
+     * batch.  Ignored where batching is not supported.
+     */
+    public void setReportDelay(long delayMillis) {
+        mReportDelay = delayMillis;
+    }
+
+    public boolean isScanning() {
+        return mScanning;
+    }
+
+    public void start() {
+        if (mScanning) return;
+        mScanning = true;
+        mSessionStart = SystemClock.elapsedRealtime();
+        mSessionCpuStart = Process.getElapsedCpuTime();
+        mCallbacks.set(0);
+        mAdvertisements.set(0);
+        onStart();
+    }
+
+    public void stop() {
+        if (!mScanning) return;
+        mScanning = false;
+        onStop();
+        long elapsed = SystemClock.elapsedRealtime() - mSessionStart;
+        long cpu = Process.getElapsedCpuTime() - mSessionCpuStart;
+        final int callbacks = mCallbacks.get();
+        Log.i(TAG, "Scan session " + elapsed + " ms: " + callbacks + " callbacks ("
+                + (elapsed > 0 ? callbacks * 1000L / elapsed : 0) + "/s), "
+                + mAdvertisements.get() + " advertisements, " + cpu + " ms CPU");
+    }
+
+    public float getCallbacksPerSecond() {
+        long elapsed = SystemClock.elapsedRealtime() - mSessionStart;
+        return elapsed > 0 ? mCallbacks.get() * 1000f / elapsed : 0;
+    }
+
+    public long getSessionCpuTime() {
+        return Process.getElapsedCpuTime() - mSessionCpuStart;
+    }
+
+    protected abstract void onStart();
+
+    protected abstract void onStop();
+
+    protected void dispatch(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        mAdvertisements.incrementAndGet();
+        mCallback.onAdvertisement(device, rssi, scanRecord);
+    }
+
+    protected void countCallback() {
+        mCallbacks.incrementAndGet();
+    }
+
+    private static class LegacyScanner extends LeScanner {
+        private final BluetoothAdapter.LeScanCallback mLeScanCallback =
+                new BluetoothAdapter.LeScanCallback() {
+            @Override
+            public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                countCallback();
+                // Without controller filters, address filtering happens here.
+                if (!mAddresses.isEmpty() && !mAddresses.contains(device.getAddress())) return;
+                dispatch(device, rssi, scanRecord);
+            }
+        };
+
+        LegacyScanner(BluetoothAdapter adapter, Callback callback) {
+            super(adapter, callback);
+        }
+
+        @Override
+        protected void onStart() {
+            if (mServiceUuids.isEmpty()) {
+                mAdapter.startLeScan(mLeScanCallback);
+            } else {
+                mAdapter.startLeScan(mServiceUuids.toArray(new UUID[mServiceUuids.size()]),
+                        mLeScanCallback);
+            }
+        }
+
+        @Override
+        protected void onStop() {
+            mAdapter.stopLeScan(mLeScanCallback);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class LollipopScanner extends LeScanner {
+        private BluetoothLeScanner mScanner;
+
+        private final ScanCallback mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                countCallback();
+                deliver(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                countCallback();
+                for (ScanResult result : results) {
+                    deliver(result);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "Scan failed: " + errorCode);
+            }
+        };
+
+        LollipopScanner(BluetoothAdapter adapter, Callback callback) {
+            super(adapter, callback);
+        }
+
+        @Override
+        protected void onStart() {
+            mScanner = mAdapter.getBluetoothLeScanner();
+            if (mScanner == null) {
+                Log.w(TAG, "BluetoothLeScanner unavailable, is Bluetooth off?");
+                return;
+            }
+
+            List<ScanFilter> filters = new ArrayList<ScanFilter>();
+            for (String address : mAddresses) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            }
+            for (UUID uuid : mServiceUuids) {
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+            }
+
+            ScanSettings.Builder settings = new ScanSettings.Builder();
+            switch (mMode) {
+                case MODE_LOW_POWER:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+                    break;
+                case MODE_BALANCED:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+                    break;
+                default:
+                    settings.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+                    break;
+            }
+            if (mReportDelay > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+                settings.setReportDelay(mReportDelay);
+            }
+            if (!filters.isEmpty() && !mAdapter.isOffloadedFilteringSupported()) {
+                Log.d(TAG, "Scan filters are not offloaded on this controller.");
+            }
+            mScanner.startScan(filters, settings.build(), mScanCallback);
+        }
+
+        @Override
+        protected void onStop() {
+            if (mScanner == null) return;
+            mScanner.stopScan(mScanCallback);
+            mScanner = null;
+        }
+
+        private void deliver(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            dispatch(result.getDevice(), result.getRssi(), record != null ? record.getBytes() : null);
+        }
+    }
+}
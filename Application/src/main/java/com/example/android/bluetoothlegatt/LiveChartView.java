@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.ArrayList;
+
+/**
+ * Scrolling chart of the last {@link #setWindow(long) window} of one or more series, which share
+ * a vertical scale fitted to what is visible.
+ *
+ * Samples live in fixed-size rings of primitives.  Each pixel column is reduced to the min, max,
+ * first and last sample that fall into it, so any input rate draws as one vertical stroke per
+ * column plus a joint to the next, and spikes survive the decimation.  Drawing reuses
+ * preallocated arrays and allocates nothing.  The chart keeps scrolling at display rate while
+ * its newest sample is visible.
+ *
+ * Main thread only.
+ */
+public class LiveChartView extends View {
+    private static final long DEFAULT_WINDOW = 60 * 1000;
+    private static final int MAX_SERIES = 4;
+    // A flat series is drawn mid-height in a range at least this tall.
+    private static final float MIN_SPAN = 10;
+
+    /**
+     * A ring of (time, value) samples, oldest first.
+     */
+    public static class Series {
+        private final long[] mTimes;
+        private final float[] mValues;
+        private final Paint mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        private int mStart;
+        private int mSize;
+
+        /**
+         * @param capacity Samples kept; at least the input rate times the chart's window.
+         */
+        public Series(int capacity, int color, float strokeWidth) {
+            mTimes = new long[capacity];
+            mValues = new float[capacity];
+            mPaint.setColor(color);
+            mPaint.setStrokeWidth(strokeWidth);
+            mPaint.setStrokeCap(Paint.Cap.ROUND);
+        }
+
+        /**
+         * Adds a sample, overwriting the oldest one when full.
+         *
+         * @param time {@link SystemClock#elapsedRealtime()} of the sample; not before the last.
+         */
+        public void add(long time, float value) {
+            final int capacity = mTimes.length;
+            final int slot;
+            if (mSize < capacity) {
+                slot = (mStart + mSize++) % capacity;
+            } else {
+                slot = mStart;
+                mStart = (mStart + 1) % capacity;
+            }
+            mTimes[slot] = time;
+            mValues[slot] = value;
+        }
+
+        public void clear() {
+            mStart = 0;
+            mSize = 0;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        long getTime(int i) {
+            return mTimes[(mStart + i) % mTimes.length];
+        }
+
+        float getValue(int i) {
+            return mValues[(mStart + i) % mValues.length];
+        }
+
+        // The index of the first sample at or after the time, or size() if there is none.
+        int search(long time) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (getTime(middle) < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final ArrayList<Series> mSeries = new ArrayList<Series>(MAX_SERIES);
+    private long mWindow = DEFAULT_WINDOW;
+
+    // Per series and pixel column: min, max, first and last value, NaN where empty.
+    private int mColumns;
+    private float[] mMin = new float[0];
+    private float[] mMax = new float[0];
+    private float[] mFirst = new float[0];
+    private float[] mLast = new float[0];
+    // Two segments per column: the joint from the previous column and the min-max stroke.
+    private float[] mLines = new float[0];
+
+    public LiveChartView(Context context) {
+        super(context);
+    }
+
+    public LiveChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public LiveChartView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    public void addSeries(Series series) {
+        if (mSeries.size() == MAX_SERIES) {
+            throw new IllegalStateException("At most " + MAX_SERIES + " series");
+        }
+        mSeries.add(series);
+    }
+
+    /**
+     * @param window Milliseconds shown, ending now.
+     */
+    public void setWindow(long window) {
+        mWindow = window;
+        invalidate();
+    }
+
+    /**
+     * Call after adding samples.  Redraws once on the next frame, however many were added.
+     */
+    public void onSamplesAdded() {
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mColumns = Math.max(0, w - getPaddingLeft() - getPaddingRight());
+        mMin = new float[MAX_SERIES * mColumns];
+        mMax = new float[MAX_SERIES * mColumns];
+        mFirst = new float[MAX_SERIES * mColumns];
+        mLast = new float[MAX_SERIES * mColumns];
+        mLines = new float[8 * mColumns];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        final int columns = mColumns;
+        if (columns == 0) return;
+        final long now = SystemClock.elapsedRealtime();
+        final long start = now - mWindow;
+
+        float low = Float.POSITIVE_INFINITY;
+        float high = Float.NEGATIVE_INFINITY;
+        boolean live = false;
+        for (int k = 0; k < mSeries.size(); k++) {
+            final Series series = mSeries.get(k);
+            decimate(series, k * columns, start, columns);
+            final int size = series.size();
+            if (size > 0 && series.getTime(size - 1) >= start) {
+                live = true;
+            }
+            for (int c = k * columns; c < (k + 1) * columns; c++) {
+                if (mMin[c] < low) low = mMin[c];
+                if (mMax[c] > high) high = mMax[c];
+            }
+        }
+        if (low > high) return;
+        if (high - low < MIN_SPAN) {
+            final float middle = (high + low) / 2;
+            low = middle - MIN_SPAN / 2;
+            high = middle + MIN_SPAN / 2;
+        }
+
+        final float left = getPaddingLeft();
+        final float top = getPaddingTop();
+        final float scale = (getHeight() - getPaddingTop() - getPaddingBottom()) / (high - low);
+        for (int k = 0; k < mSeries.size(); k++) {
+            final int base = k * columns;
+            int count = 0;
+            float previous = Float.NaN;
+            for (int c = 0; c < columns; c++) {
+                final float min = mMin[base + c];
+                if (min != min) continue;
+                final float x = left + c;
+                if (previous == previous) {
+                    mLines[count++] = x - 1;
+                    mLines[count++] = top + (high - previous) * scale;
+                    mLines[count++] = x;
+                    mLines[count++] = top + (high - mFirst[base + c]) * scale;
+                }
+                mLines[count++] = x;
+                mLines[count++] = top + (high - min) * scale;
+                mLines[count++] = x;
+                mLines[count++] = top + (high - mMax[base + c]) * scale;
+                previous = mLast[base + c];
+            }
+            canvas.drawLines(mLines, 0, count, mSeries.get(k).mPaint);
+        }
+
+        if (live) {
+            // Keeps scrolling until the newest sample has left the window.
+            postInvalidateOnAnimation();
+        }
+    }
+
+    // Reduces the samples in [start, start + window) to per-column min, max, first and last.
+    private void decimate(Series series, int base, long start, int columns) {
+        for (int c = base; c < base + columns; c++) {
+            mMin[c] = Float.NaN;
+            mMax[c] = Float.NaN;
+        }
+        final int size = series.size();
+        final long window = mWindow;
+        for (int i = series.search(start); i < size; i++) {
+            final long offset = series.getTime(i) - start;
+            if (offset >= window) break;
+            final int c = base + (int) (offset * columns / window);
+            final float value = series.getValue(i);
+            if (mMin[c] != mMin[c]) {
+                mMin[c] = value;
+                mMax[c] = value;
+                mFirst[c] = value;
+            } else {
+                if (value < mMin[c]) mMin[c] = value;
+                if (value > mMax[c]) mMax[c] = value;
+            }
+            mLast[c] = value;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a firmware image to the device over its own characteristic, {@link #CHANNEL_UUID},
+ * which the phone writes and the device notifies; telemetry on {@code READ_UUID} may start with
+ * any byte, so it can't share one.  Offsets and sizes are 4 bytes, big endian:
+ *
+ * <pre>
+ * phone -> device  0x20 BEGIN   size(4) crc32(4)            an image of that size and CRC-32
+ * phone -> device  0x21 DATA    offset(4) data              image bytes, as large as the MTU allows
+ * phone -> device  0x22 CHECK   offset(4) length(4) crc(2)  CRC-16 of one block just sent
+ * phone -> device  0x23 FINISH  size(4) crc32(4)            the whole image was acknowledged
+ * device -> phone  0xB0 READY   offset(4)                   send from offset on
+ * device -> phone  0xB1 ACK     offset(4)                   everything below offset is verified
+ * device -> phone  0xB2 NAK     offset(4)                   the block at offset failed, resend
+ * device -> phone  0xB3 DONE    status(1)                   0 if the image was accepted
+ * </pre>
+ *
+ * DATA frames are written without response.  Every {@link #BLOCK_PACKETS} of them are followed
+ * by a CHECK with the CRC-16/CCITT-FALSE of that block, which the device answers with ACK or
+ * NAK.  At most {@link #WINDOW} DATA frames are in flight past the last ACK.  The device drops
+ * DATA that isn't at the offset it expects next, so a NAK or a stall simply rewinds to the
+ * last verified offset (go-back-N).  Frames still queued from before a rewind are stale, see
+ * {@link #getGeneration()}.  After {@link #MAX_RETRIES} rewinds in a row without an ACK the
+ * update fails.
+ *
+ * BEGIN is answered with the offset the device had already verified of the same image, so an
+ * update interrupted by a disconnect, or by the process dying, resumes from there after the next
+ * reconnect.  Only the first READY after a BEGIN is taken as that answer.  The image and the
+ * device are persisted per address.
+ *
+ * The image is memory mapped and read a frame at a time, never loaded into the heap.  While an
+ * update runs, the link asks for the high connection priority.
+ */
+public class OtaUpdater {
+    private final static String TAG = OtaUpdater.class.getSimpleName();
+
+    public static final UUID CHANNEL_UUID =
+            UUID.fromString("0000ff03-0000-1000-8000-00805f9b34fb");
+
+    public static final byte TYPE_BEGIN = 0x20;
+    public static final byte TYPE_DATA = 0x21;
+    public static final byte TYPE_CHECK = 0x22;
+    public static final byte TYPE_FINISH = 0x23;
+    public static final byte TYPE_READY = (byte) 0xB0;
+    public static final byte TYPE_ACK = (byte) 0xB1;
+    public static final byte TYPE_NAK = (byte) 0xB2;
+    public static final byte TYPE_DONE = (byte) 0xB3;
+
+    public static final int CONTROL_FRAME_SIZE = 20;
+    private static final int DATA_HEADER = 5;
+
+    public static final int BLOCK_PACKETS = 16;
+    public static final int WINDOW = BLOCK_PACKETS * 3;
+
+    // Rewind to the last ACK when nothing was verified for this long.
+    private static final long STALL_TIMEOUT = 2000;
+    private static final long STALL_SLACK = 250;
+    private static final long PROGRESS_INTERVAL = 250;
+    public static final int MAX_RETRIES = 5;
+
+    public static final String PREFERENCES_NAME = "ota";
+    private static final String KEY_IMAGE = "image_";
+    private static final String KEY_ACKED = "acked_";
+
+    public interface Link {
+        /**
+         * Queues a frame, written without response, in order with every frame before it.
+         */
+        boolean send(byte[] frame);
+
+        /**
+         * @return The largest frame that fits the negotiated MTU.
+         */
+        int getFrameSize();
+
+        void setHighPriority(boolean high);
+    }
+
+    public interface Listener {
+        void onProgress(long verifiedBytes, long totalBytes, long bytesPerSecond, long etaMillis);
+        void onComplete(boolean success);
+    }
+
+    private final Link mLink;
+    private final Listener mListener;
+    private final SharedPreferences mPreferences;
+    private final TimerWheel mTimers;
+
+    private String mAddress;
+    private File mImageFile;
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mImage;
+    private long mImageCrc;
+    private int mSize;
+    private boolean mConnected;
+    // Between BEGIN and READY.
+    private boolean mBeginSent;
+    // Between READY and DONE.
+    private boolean mActive;
+
+    // [mAcked, mSent) is in flight; the open block starts at mBlockStart.
+    private int mAcked;
+    private int mSent;
+    private int mBlockStart;
+    private int mBlockCrc;
+    private boolean mFinishSent;
+    // Rewinds since the last ACK.
+    private int mRetries;
+    // Read by the link without the lock, to tell stale frames.
+    private volatile int mGeneration;
+
+    private long mSessionStart;
+    private int mSessionFirst;
+    private long mLastAck;
+    private long mLastProgress;
+
+    private final TimerWheel.Timer mStallCheck = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OtaUpdater.this) {
+                if (!mActive || !mConnected) return;
+                if (SystemClock.elapsedRealtime() - mLastAck >= STALL_TIMEOUT) {
+                    Log.d(TAG, "Stalled at " + mAcked + ", rewinding");
+                    mLastAck = SystemClock.elapsedRealtime();
+                    retry(mAcked);
+                }
+            }
+        }
+    });
+
+    public OtaUpdater(SharedPreferences preferences, TimerWheel timers, Link link,
+                      Listener listener) {
+        mPreferences = preferences;
+        mTimers = timers;
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * Starts updating the given device with an image.  Has no effect on the radio until
+     * {@link #onConnected(String)} is called.
+     *
+     * @return false if the image can't be read.
+     */
+    public synchronized boolean start(String address, File image) {
+        cancel();
+        mAddress = address;
+        if (!open(image)) {
+            mAddress = null;
+            return false;
+        }
+        mPreferences.edit()
+                .putString(KEY_IMAGE + address, image.getAbsolutePath())
+                .putLong(KEY_ACKED + address, 0)
+                .apply();
+        if (mConnected) {
+            begin();
+        }
+        return true;
+    }
+
+    public synchronized void cancel() {
+        if (mAddress != null) {
+            mPreferences.edit().remove(KEY_IMAGE + mAddress).remove(KEY_ACKED + mAddress).apply();
+        }
+        stop();
+        mAddress = null;
+    }
+
+    public synchronized boolean isActive() {
+        return mImage != null;
+    }
+
+    /**
+     * Changes whenever the updater goes back to resend, or stops.  A frame sent under an older
+     * generation is stale: the link may drop it instead of writing it.  Never blocks.
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Called once services have been discovered.  Resumes an update that was interrupted,
+     * including one persisted by a previous process.
+     */
+    public synchronized void onConnected(String address) {
+        mConnected = true;
+        if (!address.equals(mAddress)) {
+            stop();
+            final String path = mPreferences.getString(KEY_IMAGE + address, null);
+            if (path == null) return;
+            mAddress = address;
+            if (!open(new File(path))) {
+                cancel();
+                return;
+            }
+        }
+        if (mImage != null) {
+            begin();
+        }
+    }
+
+    public synchronized void onDisconnected() {
+        mConnected = false;
+        mBeginSent = false;
+        mActive = false;
+        mTimers.cancel(mStallCheck);
+    }
+
+    /**
+     * Takes the updater off the timer wheel and closes the image, for its owner going away.
+     * The progress stays persisted, so the next instance resumes the update.
+     */
+    public synchronized void release() {
+        mConnected = false;
+        stop();
+    }
+
+    /**
+     * Offers a notification to the updater.
+     *
+     * @param uuid The characteristic that notified; only {@link #CHANNEL_UUID} is the update's.
+     * @return true if the frame belonged to the update protocol and was consumed.
+     */
+    public synchronized boolean onNotification(UUID uuid, byte[] data) {
+        if (!CHANNEL_UUID.equals(uuid)) return false;
+        if (mImage == null || data == null || data.length < 2) return false;
+        switch (data[0]) {
+            case TYPE_READY:
+                // Only the answer to our BEGIN may move the offset.
+                if (data.length < 5 || !mBeginSent) return false;
+                mBeginSent = false;
+                onReady(readInt(data, 1));
+                return true;
+            case TYPE_ACK:
+                if (data.length < 5 || !mActive) return false;
+                onAck(readInt(data, 1));
+                return true;
+            case TYPE_NAK:
+                if (data.length < 5 || !mActive) return false;
+                final int offset = readInt(data, 1);
+                Log.w(TAG, "Block at " + offset + " failed, resending");
+                if (offset >= mAcked && offset < mSent) {
+                    retry(offset);
+                }
+                return true;
+            case TYPE_DONE:
+                if (!mFinishSent) return false;
+                final boolean success = data[1] == 0;
+                Log.i(TAG, "Update " + (success ? "accepted" : "rejected, status " + data[1])
+                        + ", " + mSize + " bytes at " + getBytesPerSecond() + " B/s");
+                cancel();
+                mListener.onComplete(success);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Verified bytes per second since the update started or resumed.
+     */
+    public synchronized long getBytesPerSecond() {
+        final long elapsed = SystemClock.elapsedRealtime() - mSessionStart;
+        return elapsed > 0 ? (mAcked - mSessionFirst) * 1000L / elapsed : 0;
+    }
+
+    /**
+     * @return Milliseconds until the whole image is verified at the current rate, or -1.
+     */
+    public synchronized long getEta() {
+        final long rate = getBytesPerSecond();
+        return rate > 0 ? (mSize - mAcked) * 1000L / rate : -1;
+    }
+
+    private void begin() {
+        mActive = false;
+        mFinishSent = false;
+        final byte[] frame = new byte[CONTROL_FRAME_SIZE];
+        frame[0] = TYPE_BEGIN;
+        writeInt(frame, 1, mSize);
+        writeInt(frame, 5, (int) mImageCrc);
+        Log.i(TAG, "Updating " + mAddress + " with " + mImageFile.getName() + ", " + mSize
+                + " bytes");
+        mLink.setHighPriority(true);
+        mBeginSent = mLink.send(frame);
+    }
+
+    private void onReady(int offset) {
+        if (offset < 0 || offset > mSize) {
+            Log.w(TAG, "Device is ready at " + offset + " of " + mSize + ", starting over");
+            offset = 0;
+        }
+        final long persisted = mPreferences.getLong(KEY_ACKED + mAddress, 0);
+        if (offset != persisted) {
+            Log.d(TAG, "Device resumes at " + offset + ", last ACK seen was " + persisted);
+        }
+        mActive = true;
+        mAcked = offset;
+        mRetries = 0;
+        mSessionStart = SystemClock.elapsedRealtime();
+        mSessionFirst = offset;
+        mLastAck = mSessionStart;
+        mTimers.schedulePeriodic(mStallCheck, STALL_TIMEOUT, STALL_SLACK);
+        rewind(offset);
+    }
+
+    private void onAck(int offset) {
+        if (offset <= mAcked || offset > mSent) return;
+        mAcked = offset;
+        mRetries = 0;
+        mLastAck = SystemClock.elapsedRealtime();
+        mPreferences.edit().putLong(KEY_ACKED + mAddress, mAcked).apply();
+        if (mAcked == mSize || mLastAck - mLastProgress >= PROGRESS_INTERVAL) {
+            mLastProgress = mLastAck;
+            mListener.onProgress(mAcked, mSize, getBytesPerSecond(), getEta());
+        }
+        pump();
+    }
+
+    // Rewinds after a NAK or a stall, unless the device keeps failing.
+    private void retry(int offset) {
+        if (++mRetries > MAX_RETRIES) {
+            Log.e(TAG, "Giving up at " + mAcked + " of " + mSize + " after " + MAX_RETRIES
+                    + " retries");
+            cancel();
+            mListener.onComplete(false);
+            return;
+        }
+        rewind(offset);
+    }
+
+    // Goes back to offset, which must be the start of a block, and sends from there.
+    private void rewind(int offset) {
+        // Everything not written yet is resent anyway.
+        mGeneration++;
+        mSent = offset;
+        mBlockStart = offset;
+        mBlockCrc = 0xFFFF;
+        mFinishSent = false;
+        pump();
+    }
+
+    private void pump() {
+        if (!mActive) return;
+        final int payload = mLink.getFrameSize() - DATA_HEADER;
+        final int window = WINDOW * payload;
+        while (mSent < mSize && mSent - mAcked < window) {
+            final int length = Math.min(payload, mSize - mSent);
+            final byte[] frame = new byte[DATA_HEADER + length];
+            frame[0] = TYPE_DATA;
+            writeInt(frame, 1, mSent);
+            mImage.position(mSent);
+            mImage.get(frame, DATA_HEADER, length);
+            if (!mLink.send(frame)) return;
+            mBlockCrc = FrameIntegrity.crc16(mBlockCrc, frame, DATA_HEADER, length);
+            mSent += length;
+            if (mSent - mBlockStart >= BLOCK_PACKETS * payload || mSent == mSize) {
+                sendCheck();
+            }
+        }
+        if (mAcked == mSize && !mFinishSent) {
+            final byte[] frame = new byte[CONTROL_FRAME_SIZE];
+            frame[0] = TYPE_FINISH;
+            writeInt(frame, 1, mSize);
+            writeInt(frame, 5, (int) mImageCrc);
+            mLink.send(frame);
+            mFinishSent = true;
+            mTimers.cancel(mStallCheck);
+        }
+    }
+
+    private void sendCheck() {
+        final byte[] frame = new byte[CONTROL_FRAME_SIZE];
+        frame[0] = TYPE_CHECK;
+        writeInt(frame, 1, mBlockStart);
+        writeInt(frame, 5, mSent - mBlockStart);
+        frame[9] = (byte) (mBlockCrc >>> 8);
+        frame[10] = (byte) mBlockCrc;
+        mLink.send(frame);
+        mBlockStart = mSent;
+        mBlockCrc = 0xFFFF;
+    }
+
+    private boolean open(File image) {
+        try {
+            mFile = new RandomAccessFile(image, "r");
+            final long size = mFile.length();
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Unusable image size " + size);
+            }
+            mImage = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mSize = (int) size;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to map " + image, e);
+            stop();
+            return false;
+        }
+        mImageFile = image;
+        // Through a small buffer, so the image never sits in the heap as a whole.
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[4096];
+        mImage.position(0);
+        while (mImage.hasRemaining()) {
+            final int length = Math.min(buffer.length, mImage.remaining());
+            mImage.get(buffer, 0, length);
+            crc.update(buffer, 0, length);
+        }
+        mImageCrc = crc.getValue();
+        return true;
+    }
+
+    private void stop() {
+        if (mConnected && mImage != null) {
+            mLink.setHighPriority(false);
+        }
+        mGeneration++;
+        mBeginSent = false;
+        mActive = false;
+        mFinishSent = false;
+        mTimers.cancel(mStallCheck);
+        mImage = null;
+        mImageFile = null;
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close image", e);
+            }
+            mFile = null;
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
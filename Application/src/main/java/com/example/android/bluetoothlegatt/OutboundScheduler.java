@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Serializes every GATT operation of {@code BluetoothLeService} so that only one is outstanding
+ * at a time, as Android requires.  Operations are drained strictly by priority class, and each
+ * class has its own token bucket so a burst in one class can't flood the link.
+ *
+ * Operations may carry a key.  A keyed operation replaces any queued operation with the same key
+ * (the newer state supersedes the older one), and is dropped when its frame is identical to the
+ * last frame the device acknowledged under that key, which counts as completed.  Keyed operations are also held
+ * back for a short window so that quickly flapping state, e.g. RINGING then IDLE, collapses
+ * into a single frame.
+ */
+public class OutboundScheduler {
+    private final static String TAG = OutboundScheduler.class.getSimpleName();
+
+    public static final int PRIORITY_ALERT = 0;
+    public static final int PRIORITY_CONTROL = 1;
+    public static final int PRIORITY_SYNC = 2;
+    public static final int PRIORITY_POLLING = 3;
+    private static final int PRIORITY_COUNT = 4;
+
+    // Token bucket per priority class: burst size and the time to earn one token back.
+    private static final int[] BUCKET_SIZE = {4, 16, 64, 1};
+    private static final long[] REFILL_INTERVAL = {250, 20, 0, 500};
+
+    // A GATT operation whose callback never arrives must not wedge the queue.
+    private static final long OPERATION_TIMEOUT = 2000;
+    // A timeout firing a little late costs nothing, so let it share wakeups.
+    private static final long TIMEOUT_SLACK = 100;
+
+    // Keyed operations wait this long for a superseding operation before they are sent.
+    private static final long COALESCE_WINDOW = 200;
+
+    // An operation that can't be started, usually because the stack is busy, is retried this
+    // many times in all, this far apart, before it fails.
+    private static final int START_ATTEMPTS = 3;
+    private static final long START_RETRY_DELAY = 50;
+
+    /**
+     * A single GATT operation.  {@link #execute()} starts it and returns false if it could not
+     * be started; the owner then reports its completion through
+     * {@link OutboundScheduler#onOperationComplete(Object, boolean)}.
+     */
+    public static abstract class Operation {
+        final int mPriority;
+        final String mKey;
+        final byte[] mFrame;
+        long mNotBefore;
+        boolean mChained;
+        int mAttempts;
+
+        public Operation(int priority, String key, byte[] frame) {
+            mPriority = priority;
+            mKey = key;
+            mFrame = frame;
+        }
+
+        protected abstract boolean execute();
+
+        /**
+         * Called once the operation completed, failed to start or timed out, on whichever
+         * thread noticed.  The scheduler may be locked, so this must not block.
+         */
+        protected void onComplete(boolean success) {
+        }
+
+        /**
+         * @return The characteristic or descriptor the operation works on, which its GATT
+         *         callback reports back, or null if the callback names none.
+         */
+        protected Object getAttribute() {
+            return null;
+        }
+
+        /**
+         * A cancelled operation is dropped silently when its turn comes.
+         */
+        protected boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * Operations returning the same message are segments of it.  Once one of them fails to
+         * start, the segments queued behind it fail too: the device can't reassemble the
+         * message without it.
+         */
+        protected Object getMessage() {
+            return null;
+        }
+    }
+
+    private final Handler mHandler;
+    private final TimerWheel mTimers;
+    private final ArrayDeque<Operation>[] mQueues;
+    private final HashMap<String, Operation> mQueuedByKey = new HashMap<String, Operation>();
+    private final HashMap<String, byte[]> mLastSentByKey = new HashMap<String, byte[]>();
+    private final int[] mTokens = new int[PRIORITY_COUNT];
+    private final long[] mLastRefill = new long[PRIORITY_COUNT];
+    private Operation mInFlight;
+    // The last operation that timed out, until its late callback arrives: that callback must
+    // not complete the operation started after it.
+    private Operation mTimedOut;
+
+    private int mCoalesced;
+    private int mDeduplicated;
+
+    private final Runnable mPump = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    // Wakes the pump when a hold or token refill expires.
+    private final TimerWheel.Timer mPumpTimer = new TimerWheel.Timer(mPump);
+
+    private final TimerWheel.Timer mTimeout = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            final Operation operation;
+            synchronized (OutboundScheduler.this) {
+                if (mInFlight == null) return;
+                Log.w(TAG, "Operation timed out, priority " + mInFlight.mPriority);
+                operation = mInFlight;
+                mInFlight = null;
+                mTimedOut = operation;
+                forgetSent(operation);
+            }
+            operation.onComplete(false);
+            pump();
+        }
+    });
+
+    @SuppressWarnings("unchecked")
+    public OutboundScheduler(Handler handler, TimerWheel timers) {
+        mHandler = handler;
+        mTimers = timers;
+        mQueues = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<Operation>();
+            mTokens[i] = BUCKET_SIZE[i];
+        }
+    }
+
+    public synchronized void enqueue(Operation operation) {
+        long hold = 0;
+        if (operation.mKey != null) {
+            Operation queued = mQueuedByKey.remove(operation.mKey);
+            if (queued != null) {
+                mQueues[queued.mPriority].remove(queued);
+                mCoalesced++;
+            }
+            if (operation.mFrame != null
+                    && Arrays.equals(operation.mFrame, mLastSentByKey.get(operation.mKey))) {
+                mDeduplicated++;
+                // The device already has this frame.
+                operation.onComplete(true);
+                return;
+            }
+            mQueuedByKey.put(operation.mKey, operation);
+            hold = COALESCE_WINDOW;
+        }
+        operation.mNotBefore = SystemClock.uptimeMillis() + hold;
+        mQueues[operation.mPriority].add(operation);
+        mHandler.post(mPump);
+    }
+
+    /**
+     * Queues a keyed operation for the next pump, replacing any queued operation with the same
+     * key.  Unlike {@link #enqueue} there is no coalescing hold and no deduplication: the
+     * caller already sends at its own rate and only when something changed.
+     */
+    public synchronized void enqueueLatest(Operation operation) {
+        Operation queued = mQueuedByKey.remove(operation.mKey);
+        if (queued != null) {
+            mQueues[queued.mPriority].remove(queued);
+            mCoalesced++;
+        }
+        mQueuedByKey.put(operation.mKey, operation);
+        operation.mNotBefore = 0;
+        mQueues[operation.mPriority].add(operation);
+        mHandler.post(mPump);
+    }
+
+    /**
+     * Queues an operation ahead of everything else, e.g. a stop command.  It is the next one
+     * started once the operation in flight completes, and costs no token.  A queued operation
+     * with the same key is dropped, as this one overrides it.  The urgent operation itself is
+     * not tracked by its key, so operations queued after it under the key still replace each
+     * other.
+     */
+    public synchronized void enqueueUrgent(Operation operation) {
+        if (operation.mKey != null) {
+            Operation queued = mQueuedByKey.remove(operation.mKey);
+            if (queued != null) {
+                mQueues[queued.mPriority].remove(queued);
+            }
+        }
+        operation.mChained = true;
+        operation.mNotBefore = 0;
+        mQueues[PRIORITY_ALERT].addFirst(operation);
+        mHandler.post(mPump);
+    }
+
+    /**
+     * Queues a run of unkeyed operations that go out back to back, e.g. the segments of one
+     * message.  The whole run costs a single token of its priority class.
+     */
+    public synchronized void enqueueBurst(Operation[] operations) {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i].mChained = i > 0;
+            operations[i].mNotBefore = 0;
+            mQueues[operations[i].mPriority].add(operations[i]);
+        }
+        mHandler.post(mPump);
+    }
+
+    /**
+     * Must be called from the GATT callback that finishes the in-flight operation.
+     */
+    public void onOperationComplete() {
+        onOperationComplete(true);
+    }
+
+    /**
+     * Same as {@link #onOperationComplete()}, for callbacks that carry a status.
+     */
+    public void onOperationComplete(boolean success) {
+        onOperationComplete(null, success);
+    }
+
+    /**
+     * Same as {@link #onOperationComplete(boolean)}, naming the attribute the callback is for.
+     * The first callback for the attribute of an operation that timed out is that operation's
+     * late answer, and is ignored rather than taken for the operation in flight now.
+     */
+    public void onOperationComplete(Object attribute, boolean success) {
+        final Operation operation;
+        synchronized (this) {
+            if (mTimedOut != null && mTimedOut.getAttribute() == attribute) {
+                Log.w(TAG, "Late callback of a timed out operation ignored");
+                mTimedOut = null;
+                return;
+            }
+            operation = mInFlight;
+            mInFlight = null;
+            mTimers.cancel(mTimeout);
+            if (operation != null && operation.mKey != null && operation.mFrame != null) {
+                if (success) {
+                    mLastSentByKey.put(operation.mKey, operation.mFrame);
+                } else {
+                    // The device may have it or not; the next frame goes out either way.
+                    forgetSent(operation);
+                }
+            }
+        }
+        if (operation != null) {
+            operation.onComplete(success);
+        }
+        pump();
+    }
+
+    /**
+     * Drops everything queued, e.g. after a disconnect.  The device forgets its state too, so
+     * the deduplication history is cleared as well.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Operation> queue : mQueues) {
+            queue.clear();
+        }
+        mQueuedByKey.clear();
+        mLastSentByKey.clear();
+        mInFlight = null;
+        mTimedOut = null;
+        mTimers.cancel(mTimeout);
+        mTimers.cancel(mPumpTimer);
+        mHandler.removeCallbacks(mPump);
+    }
+
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (ArrayDeque<Operation> queue : mQueues) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public synchronized int getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized int getDeduplicatedCount() {
+        return mDeduplicated;
+    }
+
+    private synchronized void pump() {
+        mHandler.removeCallbacks(mPump);
+        mTimers.cancel(mPumpTimer);
+        if (mInFlight != null) return;
+
+        final long now = SystemClock.uptimeMillis();
+        long nextWake = Long.MAX_VALUE;
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            ArrayDeque<Operation> queue = mQueues[priority];
+            if (queue.isEmpty()) continue;
+
+            refill(priority, now);
+
+            Iterator<Operation> it = queue.iterator();
+            while (it.hasNext()) {
+                Operation operation = it.next();
+                if (operation.isCancelled()) {
+                    it.remove();
+                    untrack(operation);
+                    continue;
+                }
+                if (operation.mNotBefore > now) {
+                    nextWake = Math.min(nextWake, operation.mNotBefore);
+                    if (operation.mAttempts > 0) {
+                        // Waiting to retry; what is queued behind it keeps its place.
+                        break;
+                    }
+                    continue;
+                }
+                if (mTokens[priority] == 0 && !operation.mChained) {
+                    nextWake = Math.min(nextWake,
+                            mLastRefill[priority] + REFILL_INTERVAL[priority]);
+                    break;
+                }
+                it.remove();
+                final boolean tracked = untrack(operation);
+                if (!operation.execute()) {
+                    if (++operation.mAttempts < START_ATTEMPTS) {
+                        // Nothing else would start either; try again shortly, in order.
+                        operation.mNotBefore = now + START_RETRY_DELAY;
+                        queue.addFirst(operation);
+                        if (tracked) {
+                            mQueuedByKey.put(operation.mKey, operation);
+                        }
+                        mTimers.schedule(mPumpTimer, START_RETRY_DELAY, 0);
+                        return;
+                    }
+                    Log.w(TAG, "Unable to start operation, priority " + priority);
+                    operation.onComplete(false);
+                    if (operation.getMessage() != null) {
+                        abortMessage(operation.getMessage());
+                    }
+                    // The queue may have changed under the iterator.
+                    pump();
+                    return;
+                }
+                if (!operation.mChained) {
+                    mTokens[priority]--;
+                }
+                mInFlight = operation;
+                mTimers.schedule(mTimeout, OPERATION_TIMEOUT, TIMEOUT_SLACK);
+                return;
+            }
+        }
+        if (nextWake != Long.MAX_VALUE) {
+            mTimers.schedule(mPumpTimer, nextWake - now, 0);
+        }
+    }
+
+    // Forgets the operation's key, unless it belongs to a newer operation by now: an urgent
+    // operation is never tracked, and a later one under its key may be.
+    private boolean untrack(Operation operation) {
+        if (operation.mKey == null || mQueuedByKey.get(operation.mKey) != operation) return false;
+        mQueuedByKey.remove(operation.mKey);
+        return true;
+    }
+
+    private void forgetSent(Operation operation) {
+        if (operation.mKey != null) {
+            mLastSentByKey.remove(operation.mKey);
+        }
+    }
+
+    // Fails the queued segments of a message one of whose segments failed.
+    private void abortMessage(Object message) {
+        int aborted = 0;
+        for (ArrayDeque<Operation> queue : mQueues) {
+            Iterator<Operation> it = queue.iterator();
+            while (it.hasNext()) {
+                Operation operation = it.next();
+                if (operation.getMessage() == message) {
+                    it.remove();
+                    operation.onComplete(false);
+                    aborted++;
+                }
+            }
+        }
+        if (aborted > 0) {
+            Log.w(TAG, "Aborted " + aborted + " remaining segments");
+        }
+    }
+
+    private void refill(int priority, long now) {
+        if (REFILL_INTERVAL[priority] == 0) {
+            mTokens[priority] = BUCKET_SIZE[priority];
+            return;
+        }
+        long earned = (now - mLastRefill[priority]) / REFILL_INTERVAL[priority];
+        if (earned > 0) {
+            mTokens[priority] = (int) Math.min(BUCKET_SIZE[priority], mTokens[priority] + earned);
+            mLastRefill[priority] = mTokens[priority] == BUCKET_SIZE[priority]
+                    ? now : mLastRefill[priority] + earned * REFILL_INTERVAL[priority];
+        }
+    }
+}
@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Store-and-forward queue for frames and messages that must reach the device even if it is out
+ * of range when they are written, e.g. call and SMS alerts.
+ *
+ * Entries are appended to a file in the app's files directory and removed once written, so they
+ * survive disconnects and the process being killed.  Each entry has a time to live and is
+ * dropped unsent when that runs out.  A keyed entry supersedes the queued entries with the same
+ * key, or with a key below it: "call" replaces "call" and "call/number".
+ *
+ * While the device is ready, a new entry is sent right away.  When it becomes ready again, the
+ * whole backlog goes out as one burst, by priority and then age.  An entry whose write failed is
+ * kept for the next time.  Once {@link #MAX_ENTRIES} are queued, a new entry drops the oldest
+ * entry of the lowest priority, or is dropped itself if every queued entry matters more.
+ *
+ * Main thread only.  The file is read and written on a background thread, in order; calls made
+ * while it is still being loaded take effect once it is.
+ */
+public class OutboundStore {
+    private final static String TAG = OutboundStore.class.getSimpleName();
+
+    // Entry kind of a single frame; anything else is a FrameSegmenter message kind.
+    public static final byte KIND_FRAME = 0;
+
+    private static final String FILE_NAME = "outbox";
+    private static final int FILE_MAGIC = 0x4F424F58;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    public static final int MAX_ENTRIES = 256;
+    // Rewrite the file once it holds this many removed entries, and more than live ones.
+    private static final int COMPACT_THRESHOLD = 64;
+
+    public interface Link {
+        /**
+         * Queues the entry.  Completion is reported through {@link #onSent(Entry, boolean)}.
+         */
+        void send(Entry entry);
+
+        /**
+         * Queues the entries to go out back to back, in order.
+         */
+        void sendBurst(Entry[] entries);
+    }
+
+    public interface Listener {
+        /**
+         * The backlog flushed on becoming ready went out.
+         *
+         * @param sent Entries written successfully.
+         * @param depth Entries still queued, e.g. failed ones.
+         */
+        void onFlushed(int sent, int depth, long elapsed);
+    }
+
+    public static class Entry {
+        final long id;
+        final int priority;
+        final String key;
+        // Wall clock, as entries outlive reboots.
+        final long expires;
+        final byte kind;
+        final byte[] frame;
+        final String sender;
+        final String body;
+        boolean sending;
+        boolean failed;
+        boolean flushing;
+
+        Entry(long id, int priority, String key, long expires, byte kind, byte[] frame,
+              String sender, String body) {
+            this.id = id;
+            this.priority = priority;
+            this.key = key;
+            this.expires = expires;
+            this.kind = kind;
+            this.frame = frame;
+            this.sender = sender;
+            this.body = body;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        /**
+         * @return The frame of a {@link #KIND_FRAME} entry.
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        // Supersedes the other entry: same key, or the other's key is below this one.
+        boolean supersedes(Entry other) {
+            return key != null && other.key != null && (other.key.equals(key)
+                    || other.key.startsWith(key + "/"));
+        }
+    }
+
+    private static final Comparator<Entry> SEND_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.priority != b.priority) return a.priority < b.priority ? -1 : 1;
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+        }
+    };
+
+    private final File mFile;
+    private final Handler mHandler;
+    private final Executor mIo;
+    private final Link mLink;
+    private final Listener mListener;
+    // Live entries, oldest first.
+    private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>();
+    // I/O thread only.
+    private DataOutputStream mOut;
+    private long mNextId;
+    // Remove records in the file since it was last compacted.
+    private int mRemoved;
+    private boolean mReady;
+    // Calls made before the file was loaded, replayed after; null once it is.
+    private ArrayList<Runnable> mDeferred = new ArrayList<Runnable>();
+
+    private long mFlushStart;
+    private int mFlushRemaining;
+    private int mFlushSent;
+    private long mLastFlushDuration = -1;
+
+    public OutboundStore(File filesDir, Handler handler, Link link, Listener listener) {
+        this(filesDir, handler, Executors.newSingleThreadExecutor(), link, listener);
+    }
+
+    // The executor must run tasks one at a time, in order.
+    OutboundStore(File filesDir, Handler handler, Executor io, Link link, Listener listener) {
+        mFile = new File(filesDir, FILE_NAME);
+        mHandler = handler;
+        mIo = io;
+        mLink = link;
+        mListener = listener;
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Entry> entries = load();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(entries);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Closes the file once everything before is written.  The store must not be used after.
+     */
+    public void release() {
+        mDeferred = null;
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeQuietly();
+            }
+        });
+        if (mIo instanceof ExecutorService) {
+            ((ExecutorService) mIo).shutdown();
+        }
+    }
+
+    /**
+     * Queues a frame.
+     *
+     * @param key Supersedes queued entries with this key or below it.  May be null.
+     * @param ttl Milliseconds after which the frame is dropped if it hasn't been sent.
+     */
+    public void add(int priority, String key, long ttl, byte[] frame) {
+        add(priority, key, ttl, KIND_FRAME, frame, null, null);
+    }
+
+    /**
+     * Queues a message, segmented for the frame size of the link it is sent on.
+     */
+    public void addMessage(int priority, String key, long ttl, byte kind, String sender,
+                           String body) {
+        add(priority, key, ttl, kind, null, sender != null ? sender : "",
+                body != null ? body : "");
+    }
+
+    private void add(final int priority, final String key, final long ttl, final byte kind,
+                     final byte[] frame, final String sender, final String body) {
+        final long expires = System.currentTimeMillis() + ttl;
+        if (mDeferred != null) {
+            mDeferred.add(new Runnable() {
+                @Override
+                public void run() {
+                    add(priority, key, expires - System.currentTimeMillis(), kind, frame, sender,
+                            body);
+                }
+            });
+            return;
+        }
+        final Entry entry = new Entry(mNextId++, priority, key, expires, kind, frame, sender,
+                body);
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry queued = it.next();
+            if (entry.supersedes(queued)) {
+                // A superseded entry already in the scheduler may still go out; the device
+                // gets the newer state right after.
+                it.remove();
+                append(RECORD_REMOVE, queued);
+            }
+        }
+        if (mEntries.size() >= MAX_ENTRIES) {
+            final Entry victim = findEvictable();
+            if (victim.priority < entry.priority) {
+                Log.w(TAG, "Outbox full, dropping new entry " + entry.key + ", priority "
+                        + entry.priority);
+                return;
+            }
+            Log.w(TAG, "Outbox full, dropping entry " + victim.key + ", priority "
+                    + victim.priority);
+            mEntries.remove(victim.id);
+            append(RECORD_REMOVE, victim);
+        }
+        mEntries.put(entry.id, entry);
+        append(RECORD_ADD, entry);
+        if (mReady) {
+            entry.sending = true;
+            mLink.send(entry);
+        }
+    }
+
+    /**
+     * Ready once the device is connected and its subscriptions are restored; the backlog is
+     * flushed then.  Not ready forgets what was being sent: it goes out with the next flush.
+     */
+    public void setReady(boolean ready) {
+        if (mReady == ready) return;
+        mReady = ready;
+        // Flushed once loaded.
+        if (mDeferred != null) return;
+        if (!ready) {
+            for (Entry entry : mEntries.values()) {
+                entry.sending = false;
+                entry.failed = false;
+                entry.flushing = false;
+            }
+            mFlushRemaining = 0;
+            return;
+        }
+
+        flush();
+    }
+
+    private void flush() {
+        final long now = System.currentTimeMillis();
+        final ArrayList<Entry> backlog = new ArrayList<Entry>();
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.expires <= now) {
+                Log.d(TAG, "Dropping expired entry " + entry.key);
+                it.remove();
+                append(RECORD_REMOVE, entry);
+            } else if (!entry.sending) {
+                backlog.add(entry);
+            }
+        }
+        compactIfNeeded();
+        if (backlog.isEmpty()) return;
+
+        Collections.sort(backlog, SEND_ORDER);
+        for (Entry entry : backlog) {
+            entry.sending = true;
+            entry.flushing = true;
+        }
+        mFlushStart = SystemClock.elapsedRealtime();
+        mFlushRemaining = backlog.size();
+        mFlushSent = 0;
+        Log.i(TAG, "Flushing " + backlog.size() + " queued entries");
+        mLink.sendBurst(backlog.toArray(new Entry[backlog.size()]));
+    }
+
+    /**
+     * Must be called for every write of an entry.
+     *
+     * @param last Whether it was the entry's last write; a message takes several.
+     */
+    public void onSent(Entry entry, boolean success, boolean last) {
+        if (!success) {
+            entry.failed = true;
+        }
+        if (!last || !entry.sending) return;
+        final boolean delivered = !entry.failed;
+        entry.sending = false;
+        entry.failed = false;
+        if (delivered) {
+            if (mEntries.remove(entry.id) != null) {
+                append(RECORD_REMOVE, entry);
+            }
+        } else {
+            Log.w(TAG, "Unable to send entry " + entry.key + ", keeping it");
+        }
+        if (entry.flushing) {
+            entry.flushing = false;
+            if (delivered) mFlushSent++;
+            if (--mFlushRemaining == 0) {
+                mLastFlushDuration = SystemClock.elapsedRealtime() - mFlushStart;
+                mListener.onFlushed(mFlushSent, mEntries.size(), mLastFlushDuration);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    public int getDepth() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return Milliseconds the last flush took until every entry was written, or -1.
+     */
+    public long getLastFlushDuration() {
+        return mLastFlushDuration;
+    }
+
+    private void onLoaded(List<Entry> entries) {
+        if (mDeferred == null) return;
+        for (Entry entry : entries) {
+            mEntries.put(entry.id, entry);
+            mNextId = Math.max(mNextId, entry.id + 1);
+        }
+        final ArrayList<Runnable> deferred = mDeferred;
+        mDeferred = null;
+        for (Runnable call : deferred) {
+            call.run();
+        }
+        if (mReady) {
+            flush();
+        }
+    }
+
+    // The oldest entry of the lowest priority.
+    private Entry findEvictable() {
+        Entry victim = null;
+        for (Entry entry : mEntries.values()) {
+            if (victim == null || entry.priority > victim.priority) {
+                victim = entry;
+            }
+        }
+        return victim;
+    }
+
+    // The live entries in the file, oldest first.  Leaves the file compacted and open.
+    private List<Entry> load() {
+        final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        if (mFile.exists()) {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile)));
+                try {
+                    if (in.readInt() != FILE_MAGIC) {
+                        throw new IOException(mFile + " is not an outbox");
+                    }
+                    while (true) {
+                        final byte type;
+                        try {
+                            type = in.readByte();
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        final long id = in.readLong();
+                        if (type == RECORD_REMOVE) {
+                            entries.remove(id);
+                        } else {
+                            entries.put(id, readEntry(id, in));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (EOFException e) {
+                // The process died halfway through a record; everything before it holds.
+                Log.w(TAG, "Outbox ends in a partial record");
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the outbox", e);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expires <= now) it.remove();
+        }
+        final List<Entry> live = new ArrayList<Entry>(entries.values());
+        // Starts a clean file, without removed entries or a partial record.
+        writeCompacted(live);
+        return live;
+    }
+
+    private static Entry readEntry(long id, DataInputStream in) throws IOException {
+        final int priority = in.readByte();
+        final String key = in.readBoolean() ? in.readUTF() : null;
+        final long expires = in.readLong();
+        final byte kind = in.readByte();
+        if (kind == KIND_FRAME) {
+            final byte[] frame = new byte[in.readUnsignedShort()];
+            in.readFully(frame);
+            return new Entry(id, priority, key, expires, kind, frame, null, null);
+        }
+        final String sender = in.readUTF();
+        final String body = in.readUTF();
+        return new Entry(id, priority, key, expires, kind, null, sender, body);
+    }
+
+    private static void writeEntry(Entry entry, DataOutputStream out) throws IOException {
+        out.writeByte(entry.priority);
+        out.writeBoolean(entry.key != null);
+        if (entry.key != null) out.writeUTF(entry.key);
+        out.writeLong(entry.expires);
+        out.writeByte(entry.kind);
+        if (entry.kind == KIND_FRAME) {
+            out.writeShort(entry.frame.length);
+            out.write(entry.frame);
+        } else {
+            out.writeUTF(entry.sender);
+            out.writeUTF(entry.body);
+        }
+    }
+
+    private void append(final byte type, final Entry entry) {
+        if (type == RECORD_REMOVE) {
+            mRemoved++;
+        }
+        mIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mOut == null) return;
+                try {
+                    mOut.writeByte(type);
+                    mOut.writeLong(entry.id);
+                    if (type == RECORD_ADD) {
+                        writeEntry(entry, mOut);
+                    }
+                    mOut.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write the outbox, keeping it in memory only", e);
+                    closeQuietly();
+                }
+            }
+        });
+    }
+
+    private void compactIfNeeded() {
+        if (mRemoved >= COMPACT_THRESHOLD && mRemoved > mEntries.size()) {
+            mRemoved = 0;
+            final List<Entry> live = new ArrayList<Entry>(mEntries.values());
+            mIo.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeCompacted(live);
+                }
+            });
+        }
+    }
+
+    // Rewrites the file with only the given entries, and keeps it open for appending.  I/O
+    // thread only.
+    private void writeCompacted(List<Entry> entries) {
+        closeQuietly();
+        final File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                for (Entry entry : entries) {
+                    out.writeByte(RECORD_ADD);
+                    out.writeLong(entry.id);
+                    writeEntry(entry, out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true)));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the outbox, keeping it in memory only", e);
+        }
+    }
+
+    private void closeQuietly() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            // Nothing left to lose.
+        }
+        mOut = null;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.frameschema.Field;
+import com.example.android.frameschema.Frame;
+
+/**
+ * Starts or stops the band's incoming call alert, with the caller's number when known.
+ */
+@Frame(size = 20, opcode = 0x01)
+public class PhoneCallFrame {
+    public static final int NUMBER_SIZE = 17;
+
+    @Field(offset = 1)
+    boolean ringing;
+
+    @Field(offset = 2)
+    int numberLength;
+
+    // UTF-8, cut to NUMBER_SIZE bytes.
+    @Field(offset = 3, width = NUMBER_SIZE)
+    byte[] number;
+}
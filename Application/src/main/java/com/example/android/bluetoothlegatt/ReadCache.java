@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Characteristic values read recently, and the reads still outstanding, for
+ * {@code BluetoothLeService}.
+ *
+ * A read asked for while another read of the same characteristic is queued or in flight joins
+ * it instead of going to the radio again; both callers see the one result.  A value younger than
+ * the TTL is answered from memory.  Notifications and writes make the cached value stale.
+ */
+public class ReadCache {
+    public static final long DEFAULT_TTL = 500;
+
+    // A read whose result never came, e.g. timed out in the scheduler, stops blocking after this.
+    private static final long READ_EXPIRY = 5000;
+
+    public static final int MISS = 0;
+    public static final int HIT = 1;
+    public static final int JOINED = 2;
+
+    private static class Entry {
+        byte[] value;
+        long readTime;
+        long inFlightSince;
+    }
+
+    private final HashMap<BluetoothGattCharacteristic, Entry> mEntries =
+            new HashMap<BluetoothGattCharacteristic, Entry>();
+    private long mTtl = DEFAULT_TTL;
+
+    private int mHits;
+    private int mJoined;
+    private int mMisses;
+
+    /**
+     * @param ttl How long a value read from the device is served from memory, in milliseconds.
+     *            0 turns the cache off; reads are still shared while in flight.
+     */
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * Looks up a read before it is queued.
+     *
+     * @return {@link #HIT} if {@link #getValue} has a fresh value, {@link #JOINED} if a read is
+     *         already outstanding, or {@link #MISS} if the caller must read; the read then
+     *         counts as outstanding until {@link #onRead} or {@link #onReadFailed}.
+     */
+    public synchronized int lookup(BluetoothGattCharacteristic characteristic) {
+        final long now = SystemClock.elapsedRealtime();
+        Entry entry = mEntries.get(characteristic);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(characteristic, entry);
+        }
+        if (entry.value != null && now - entry.readTime < mTtl) {
+            mHits++;
+            return HIT;
+        }
+        if (entry.inFlightSince != 0 && now - entry.inFlightSince < READ_EXPIRY) {
+            mJoined++;
+            return JOINED;
+        }
+        entry.inFlightSince = now;
+        mMisses++;
+        return MISS;
+    }
+
+    public synchronized byte[] getValue(BluetoothGattCharacteristic characteristic) {
+        Entry entry = mEntries.get(characteristic);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized void onRead(BluetoothGattCharacteristic characteristic, byte[] value) {
+        Entry entry = mEntries.get(characteristic);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(characteristic, entry);
+        }
+        entry.value = value;
+        entry.readTime = SystemClock.elapsedRealtime();
+        entry.inFlightSince = 0;
+    }
+
+    public synchronized void onReadFailed(BluetoothGattCharacteristic characteristic) {
+        Entry entry = mEntries.get(characteristic);
+        if (entry != null) {
+            entry.inFlightSince = 0;
+        }
+    }
+
+    /**
+     * The value changed on the device, by a notification or a write.
+     */
+    public synchronized void invalidate(BluetoothGattCharacteristic characteristic) {
+        Entry entry = mEntries.get(characteristic);
+        if (entry != null) {
+            entry.value = null;
+        }
+    }
+
+    /**
+     * Forgets every value and outstanding read, e.g. after a disconnect.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * @return The share of reads that didn't go to the radio, answered from memory or joined to
+     *         an outstanding read, or 0 before the first read.
+     */
+    public synchronized float getHitRatio() {
+        final int total = mHits + mJoined + mMisses;
+        return total > 0 ? (float) (mHits + mJoined) / total : 0;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getJoined() {
+        return mJoined;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+}
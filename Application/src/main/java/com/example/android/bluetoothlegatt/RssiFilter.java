@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+/**
+ * One dimensional Kalman filter over the RSSI of a single device, plus a log-distance path loss
+ * estimate of how far away the device is.  Raw RSSI jumps by 10 dB between consecutive
+ * advertisements, which is useless for ranking; the filtered value settles within a second or so
+ * and still follows a band that is carried away.
+ */
+public class RssiFilter {
+    // How much the true RSSI is expected to drift between two samples, and how noisy a single
+    // sample is, both as variances in dB^2.
+    private static final float PROCESS_NOISE = 0.5f;
+    private static final float MEASUREMENT_NOISE = 16f;
+
+    // Expected RSSI at one metre when the advertisement carries no TX power level, and the
+    // usual loss between the advertised TX power and one metre.
+    private static final int DEFAULT_MEASURED_POWER = -59;
+    private static final int LOSS_AT_ONE_METRE = 41;
+    // Indoor path loss exponent.
+    private static final float PATH_LOSS_EXPONENT = 2.5f;
+
+    private float mEstimate;
+    private float mCovariance = -1;
+
+    public float update(int rssi) {
+        if (mCovariance < 0) {
+            mEstimate = rssi;
+            mCovariance = MEASUREMENT_NOISE;
+            return mEstimate;
+        }
+        float predicted = mCovariance + PROCESS_NOISE;
+        float gain = predicted / (predicted + MEASUREMENT_NOISE);
+        mEstimate += gain * (rssi - mEstimate);
+        mCovariance = (1 - gain) * predicted;
+        return mEstimate;
+    }
+
+    public float getEstimate() {
+        return mEstimate;
+    }
+
+    /**
+     * @param txPower The advertised TX power level, or {@link AdvertisementParser#NO_TX_POWER}.
+     *
+     * @return The estimated distance in metres.
+     */
+    public float getDistance(int txPower) {
+        int measuredPower = txPower == AdvertisementParser.NO_TX_POWER
+                ? DEFAULT_MEASURED_POWER : txPower - LOSS_AT_ONE_METRE;
+        return (float) Math.pow(10, (measuredPower - mEstimate) / (10 * PATH_LOSS_EXPONENT));
+    }
+}
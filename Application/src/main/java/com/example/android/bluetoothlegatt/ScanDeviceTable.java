@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Collects advertisements into a table keyed by device address.  Scan callbacks only touch the
+ * table under a short lock; a background thread expires stale entries and, at a fixed refresh
+ * rate, publishes an immutable snapshot to the UI thread when something has changed.  Rows are
+ * ranked by estimated distance, nearest first, from the filtered RSSI of each device.
+ */
+public class ScanDeviceTable {
+    // How often a snapshot is published to the UI.
+    private static final long REFRESH_INTERVAL = 250;
+    // Devices not heard from for this long drop out of the list.
+    private static final long EXPIRY = 10000;
+    // A device without a matching name is asked for its name again after this long, since the
+    // name may only become known once a scan response has been received.
+    private static final long REJECT_RECHECK = 2000;
+
+    /**
+     * A published row.  Rows are never modified after publication, so the adapter can compare
+     * them against the previous snapshot field by field.
+     */
+    public static class Row {
+        public final BluetoothDevice device;
+        public final String name;
+        public final String address;
+        public final int rssi;
+        public final float distance;
+        public final int count;
+        public final long lastSeen;
+        // Company identifier from the manufacturer specific data, or -1.
+        public final int manufacturerId;
+
+        Row(Entry entry) {
+            device = entry.device;
+            name = entry.name;
+            address = entry.address;
+            rssi = Math.round(entry.filter.getEstimate());
+            distance = entry.filter.getDistance(entry.fields.txPower);
+            count = entry.count;
+            lastSeen = entry.lastSeen;
+            manufacturerId = entry.fields.manufacturerId;
+        }
+
+        public boolean sameAs(Row other) {
+            return other != null && address.equals(other.address) && rssi == other.rssi
+                    && count == other.count && manufacturerId == other.manufacturerId;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with the current table contents, nearest device first.
+         */
+        void onSnapshot(List<Row> rows);
+    }
+
+    private static class Entry {
+        final BluetoothDevice device;
+        final String address;
+        final AdvertisementParser.Fields fields;
+        final RssiFilter filter = new RssiFilter();
+        String name;
+        int count;
+        long lastSeen;
+
+        Entry(BluetoothDevice device, String name, String address,
+              AdvertisementParser.Fields fields) {
+            this.device = device;
+            this.name = name;
+            this.address = address;
+            this.fields = fields;
+        }
+    }
+
+    private static final Comparator<Row> NEAREST_FIRST = new Comparator<Row>() {
+        @Override
+        public int compare(Row a, Row b) {
+            return Float.compare(a.distance, b.distance);
+        }
+    };
+
+    private final String mPrefix;
+    private final Handler mUiHandler;
+    private final Listener mListener;
+
+    // Everything down to mDirty, entries included, is guarded by this: it is written on the scan
+    // callback thread and read on the publishing thread.
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Addresses that were seen but don't match the prefix, with the time they were last
+    // rejected.  They expire like the entries, so passing crowds don't pile up here.
+    private final HashMap<String, Long> mRejected = new HashMap<String, Long>();
+    private final ArrayList<Entry> mOrder = new ArrayList<Entry>();
+    // Scratch fields for advertisers that are not in the table (yet).  Handed to the entry
+    // when one is created, so a fresh one is only allocated per new device.
+    private AdvertisementParser.Fields mScratch = new AdvertisementParser.Fields();
+    private boolean mDirty;
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+            final Handler handler = mHandler;
+            if (handler != null) {
+                handler.postDelayed(this, REFRESH_INTERVAL);
+            }
+        }
+    };
+
+    public ScanDeviceTable(String prefix, Handler uiHandler, Listener listener) {
+        mPrefix = prefix;
+        mUiHandler = uiHandler;
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mThread != null) return;
+        mThread = new HandlerThread("ScanDeviceTable");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mPublish);
+    }
+
+    public void stop() {
+        if (mThread == null) return;
+        mHandler.removeCallbacks(mPublish);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mRejected.clear();
+        mOrder.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Records one advertisement.  Safe to call from any thread, typically the scan callback.
+     */
+    public void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        final String address = device.getAddress();
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            Entry entry = mEntries.get(address);
+            if (entry == null) {
+                Long rejected = mRejected.get(address);
+                if (rejected != null && now - rejected < REJECT_RECHECK) return;
+                AdvertisementParser.parse(scanRecord, mScratch);
+                // Prefer the advertised name; getName() is a binder call.
+                String name = mScratch.name != null ? mScratch.name : device.getName();
+                if (name == null || !name.startsWith(mPrefix)) {
+                    mRejected.put(address, now);
+                    return;
+                }
+                mRejected.remove(address);
+                entry = new Entry(device, name, address, mScratch);
+                mScratch = new AdvertisementParser.Fields();
+                mEntries.put(address, entry);
+                mOrder.add(entry);
+            } else if (AdvertisementParser.parse(scanRecord, entry.fields)
+                    && entry.fields.name != null) {
+                entry.name = entry.fields.name;
+            }
+            entry.filter.update(rssi);
+            entry.count++;
+            entry.lastSeen = now;
+            mDirty = true;
+        }
+    }
+
+    private void publish() {
+        final ArrayList<Row> rows;
+        synchronized (this) {
+            final long now = SystemClock.elapsedRealtime();
+            Iterator<Entry> it = mOrder.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (now - entry.lastSeen > EXPIRY) {
+                    it.remove();
+                    mEntries.remove(entry.address);
+                    mDirty = true;
+                }
+            }
+            Iterator<Long> rejected = mRejected.values().iterator();
+            while (rejected.hasNext()) {
+                if (now - rejected.next() > EXPIRY) {
+                    rejected.remove();
+                }
+            }
+            if (!mDirty) return;
+            mDirty = false;
+
+            rows = new ArrayList<Row>(mOrder.size());
+            for (Entry entry : mOrder) {
+                rows.add(new Row(entry));
+            }
+        }
+        // The sort is stable, so devices at the same distance keep their discovery order.
+        Collections.sort(rows, NEAREST_FIRST);
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onSnapshot(rows);
+            }
+        });
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Owns every start and stop of the {@link LeScanner}.
+ *
+ * Android (7.0 and later) silently turns a scan into an opportunistic one, i.e. no results,
+ * when an app starts more than 5 scans within 30 seconds.  The scheduler keeps a process-wide
+ * record of recent starts and defers a start rather than exceed that budget, so bouncing
+ * between screens can no longer kill scanning.
+ *
+ * Without a target it runs one interactive low latency window.  With a target it adapts: a
+ * device seen recently is probably still close, so a short low latency window is used; otherwise
+ * it duty-cycles balanced windows with rests in between, at most one start per throttle period.
+ * Either way scanning stops as soon as the target is heard.
+ */
+public class ScanScheduler {
+    private final static String TAG = ScanScheduler.class.getSimpleName();
+
+    private static final int THROTTLE_STARTS = 5;
+    private static final long THROTTLE_PERIOD = 30000;
+
+    private static final long BROWSE_WINDOW = 10000;
+    private static final long RECENT_WINDOW = 5000;
+    private static final long DUTY_WINDOW = 10000;
+    private static final long DUTY_REST = 20000;
+    // Window edges need not be exact.
+    private static final long WINDOW_SLACK = 500;
+    private static final int DUTY_CYCLES = 6;
+    // A target seen this recently is assumed to be within range.
+    private static final long RECENTLY_SEEN = 60000;
+
+    // Start times of the last scans, shared by every scheduler in the process.
+    private static final long[] sStarts = new long[THROTTLE_STARTS];
+    private static int sNextStart;
+
+    public interface Listener {
+        void onScanStateChanged(boolean scanning);
+
+        void onTargetFound(String address, long timeToDiscover);
+    }
+
+    private final LeScanner mScanner;
+    private final Handler mHandler;
+    private final TimerWheel mTimers;
+    private final Listener mListener;
+
+    private volatile String mTarget;
+    private volatile long mTargetLastSeen;
+    private boolean mRequested;
+    private int mCycle;
+
+    private long mRequestTime;
+    private long mWindowStart;
+    private long mRadioOnTime;
+
+    private final TimerWheel.Timer mStartWindow = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            startWindow();
+        }
+    });
+
+    private final TimerWheel.Timer mEndWindow = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    });
+
+    private final Runnable mFound = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRequested) return;
+            long timeToDiscover = SystemClock.elapsedRealtime() - mRequestTime;
+            Log.i(TAG, "Found " + mTarget + " after " + timeToDiscover + " ms");
+            String target = mTarget;
+            cancel();
+            mListener.onTargetFound(target, timeToDiscover);
+        }
+    };
+
+    /**
+     * @param handler Handler of the thread the scheduler lives on, the same one the timers run on.
+     */
+    public ScanScheduler(LeScanner scanner, Handler handler, TimerWheel timers,
+                         Listener listener) {
+        mScanner = scanner;
+        mHandler = handler;
+        mTimers = timers;
+        mListener = listener;
+    }
+
+    /**
+     * Sets the device being looked for, or null to just browse.
+     *
+     * @param lastSeen When the device was last seen (elapsedRealtime), 0 if never.
+     */
+    public void setTarget(String address, long lastSeen) {
+        mTarget = address;
+        mTargetLastSeen = lastSeen;
+    }
+
+    public void request() {
+        if (mRequested) return;
+        mRequested = true;
+        mCycle = 0;
+        mRequestTime = SystemClock.elapsedRealtime();
+        startWindow();
+    }
+
+    public void cancel() {
+        mRequested = false;
+        mTimers.cancel(mStartWindow);
+        mTimers.cancel(mEndWindow);
+        mHandler.removeCallbacks(mFound);
+        stopScanner();
+    }
+
+    public boolean isScanning() {
+        return mScanner.isScanning();
+    }
+
+    /**
+     * Total time the scanner has been on, over the lifetime of this scheduler.
+     */
+    public long getRadioOnTime() {
+        long current = mScanner.isScanning() ? SystemClock.elapsedRealtime() - mWindowStart : 0;
+        return mRadioOnTime + current;
+    }
+
+    /**
+     * To be called for every advertisement, from any thread.
+     */
+    public void onAdvertisement(String address) {
+        String target = mTarget;
+        if (target != null && target.equals(address)) {
+            // Heard just now, so the next window for it, should there be one, is a short one.
+            mTargetLastSeen = SystemClock.elapsedRealtime();
+            mHandler.post(mFound);
+        }
+    }
+
+    private void startWindow() {
+        if (!mRequested || mScanner.isScanning()) return;
+
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (sStarts) {
+            long oldest = sStarts[sNextStart];
+            if (oldest != 0 && now - oldest < THROTTLE_PERIOD) {
+                long wait = THROTTLE_PERIOD - (now - oldest);
+                Log.d(TAG, "Scan start budget used up, deferring " + wait + " ms");
+                mTimers.schedule(mStartWindow, wait, 0);
+                return;
+            }
+            sStarts[sNextStart] = now;
+            sNextStart = (sNextStart + 1) % THROTTLE_STARTS;
+        }
+
+        long window;
+        if (mTarget == null) {
+            mScanner.setMode(LeScanner.MODE_LOW_LATENCY);
+            window = BROWSE_WINDOW;
+        } else if (mTargetLastSeen != 0 && now - mTargetLastSeen < RECENTLY_SEEN) {
+            mScanner.setMode(LeScanner.MODE_LOW_LATENCY);
+            window = RECENT_WINDOW;
+        } else {
+            mScanner.setMode(LeScanner.MODE_BALANCED);
+            window = DUTY_WINDOW;
+        }
+        mWindowStart = now;
+        mScanner.start();
+        mListener.onScanStateChanged(true);
+        mTimers.schedule(mEndWindow, window, WINDOW_SLACK);
+    }
+
+    private void endWindow() {
+        stopScanner();
+        // Keep duty cycling while a target is wanted but hasn't turned up.
+        if (mRequested && mTarget != null && ++mCycle < DUTY_CYCLES) {
+            mTimers.schedule(mStartWindow, DUTY_REST, WINDOW_SLACK);
+        } else {
+            mRequested = false;
+        }
+    }
+
+    private void stopScanner() {
+        if (!mScanner.isScanning()) return;
+        mScanner.stop();
+        mRadioOnTime += SystemClock.elapsedRealtime() - mWindowStart;
+        Log.d(TAG, "Radio on for " + mRadioOnTime + " ms in total");
+        mListener.onScanStateChanged(false);
+    }
+}
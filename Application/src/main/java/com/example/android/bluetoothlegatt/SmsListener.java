@@ -4,12 +4,42 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Bundle;
 import android.telephony.SmsMessage;
 
 public class SmsListener extends BroadcastReceiver {
     private SharedPreferences preferences;
 
+    /**
+     * Pulls the sender and full body out of an SMS_RECEIVED intent.  A long SMS arrives as
+     * several PDUs which are joined back together here.
+     *
+     * @return {sender, body}, or null if the intent carries no message.
+     */
+    public static String[] readMessage(Intent intent) {
+        Bundle bundle = intent.getExtras();
+        if (bundle == null) return null;
+
+        Object[] pdus = (Object[]) bundle.get("pdus");
+        if (pdus == null || pdus.length == 0) return null;
+
+        String format = bundle.getString("format");
+        String from = null;
+        StringBuilder body = new StringBuilder();
+        for (Object pdu : pdus) {
+            SmsMessage msg = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && format != null
+                    ? SmsMessage.createFromPdu((byte[]) pdu, format)
+                    : SmsMessage.createFromPdu((byte[]) pdu);
+            if (msg == null) continue;
+            if (from == null) {
+                from = msg.getOriginatingAddress();
+            }
+            body.append(msg.getMessageBody());
+        }
+        return new String[] {from, body.toString()};
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         // TODO: This method is called when the BroadcastReceiver is receiving
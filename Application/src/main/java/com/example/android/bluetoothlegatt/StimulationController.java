@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Real-time control of the band's stimulation, over the {@code WRITE_UUID} characteristic:
+ *
+ * <pre>
+ * phone -> device  0x02 STIMULATION  start(1) mode(1) strength(1)
+ * </pre>
+ *
+ * Commands go out at a fixed rate of at most one per {@link #COMMAND_PERIOD}, and only when the
+ * output changed.  Only the newest command is ever queued, so holding "+" never builds up a
+ * backlog: the device gets the latest strength at the next tick.  Raising the strength ramps
+ * up along a profile at {@link #RAMP_RATE}; lowering it applies at the next tick.
+ *
+ * Stop is different: it is written with response at the head of the outbound queue, bypassing
+ * the command rate, and re-sent until the device acknowledges it.  If the link drops while
+ * stimulating, a stop is sent first thing after the reconnect.
+ *
+ * Latency bound, from a call here until the frame is on the air: a strength change waits for
+ * the next tick (at most {@link #COMMAND_PERIOD}, none when idle), then for the operation in
+ * flight and any alert frames queued ahead.  Each of those takes one connection interval, at
+ * most {@code OutboundScheduler}'s operation timeout.  Commands never queue behind each other.
+ * A stop only waits for the operation in flight.
+ *
+ * Main thread only.
+ */
+public class StimulationController {
+    private final static String TAG = StimulationController.class.getSimpleName();
+
+    public static final byte TYPE_STIMULATION = 0x02;
+    public static final int FRAME_SIZE = 20;
+
+    public static final int MODE_1 = 13;
+    public static final int MODE_2 = 15;
+    public static final int MODE_3 = 18;
+
+    public static final int STRENGTH_MIN = 4;
+    public static final int STRENGTH_MAX = 240;
+
+    public static final int RAMP_NONE = 0;
+    public static final int RAMP_LINEAR = 1;
+    // Smoothstep: starts and ends gently, at most 1.5 times the linear slope in between.
+    public static final int RAMP_SMOOTH = 2;
+
+    public static final long COMMAND_PERIOD = 50;
+    // Strength units per second while ramping up.
+    public static final int RAMP_RATE = 60;
+
+    private static final long STOP_RETRY = 100;
+
+    public interface Link {
+        /**
+         * Queues a command, replacing any command of ours that hasn't been sent yet.
+         *
+         * @return false if there is no connection.
+         */
+        boolean send(byte[] frame);
+
+        /**
+         * Queues a command ahead of everything else, written with response.  The outcome must
+         * be reported through {@link #onStopComplete(boolean)}, on the main thread.
+         *
+         * @return false if there is no connection.
+         */
+        boolean sendStop(byte[] frame);
+    }
+
+    private final Link mLink;
+    private final TimerWheel mTimers;
+
+    private boolean mRunning;
+    private int mMode = MODE_1;
+    private int mTarget = STRENGTH_MIN * 2;
+    private int mProfile = RAMP_SMOOTH;
+
+    // The strength being output, and the ramp it follows towards mTarget.
+    private int mOutput;
+    private int mRampFrom;
+    private long mRampStart;
+    private long mRampDuration;
+
+    private byte[] mLastSent;
+    private boolean mStopPending;
+
+    private final TimerWheel.Timer mTick = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    });
+
+    private final TimerWheel.Timer mStopRetry = new TimerWheel.Timer(new Runnable() {
+        @Override
+        public void run() {
+            sendStop();
+        }
+    });
+
+    public StimulationController(TimerWheel timers, Link link) {
+        mTimers = timers;
+        mLink = link;
+    }
+
+    public static byte[] packData(boolean isStart, int mode, int strength) {
+        StimulationFrame frame = new StimulationFrame();
+        frame.start = isStart;
+        frame.mode = mode;
+        frame.strength = strength;
+        return StimulationFrameCodec.encode(frame);
+    }
+
+    /**
+     * @return The strength clamped to [{@link #STRENGTH_MIN}, {@link #STRENGTH_MAX}], or 0.
+     */
+    public static int clampStrength(int strength) {
+        if (strength <= 0) return 0;
+        return Math.max(STRENGTH_MIN, Math.min(STRENGTH_MAX, strength));
+    }
+
+    /**
+     * Starts stimulating, ramping up from zero to the current strength.
+     */
+    public void start() {
+        mStopPending = false;
+        mTimers.cancel(mStopRetry);
+        if (!mRunning) {
+            mRunning = true;
+            mOutput = 0;
+        }
+        rampTo(mTarget);
+        kick();
+    }
+
+    /**
+     * Stops stimulating right away, ahead of anything else queued for the device.
+     */
+    public void stop() {
+        mRunning = false;
+        mOutput = 0;
+        mRampDuration = 0;
+        mTimers.cancel(mTick);
+        mStopPending = true;
+        sendStop();
+    }
+
+    public void setMode(int mode) {
+        mMode = mode;
+        if (mRunning) kick();
+    }
+
+    /**
+     * Sets the strength, clamped.  While running, an increase ramps along the current
+     * profile and a decrease applies at the next tick.
+     */
+    public void setStrength(int strength) {
+        mTarget = clampStrength(strength);
+        if (!mRunning) return;
+        if (mTarget > mOutput) {
+            rampTo(mTarget);
+        } else {
+            mOutput = mTarget;
+            mRampDuration = 0;
+        }
+        kick();
+    }
+
+    public void setRampProfile(int profile) {
+        mProfile = profile;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    public int getStrength() {
+        return mTarget;
+    }
+
+    /**
+     * Outcome of the last stop written.
+     */
+    public void onStopComplete(boolean success) {
+        if (!mStopPending) return;
+        if (success) {
+            mStopPending = false;
+            Log.d(TAG, "Stop acknowledged");
+        } else {
+            mTimers.schedule(mStopRetry, STOP_RETRY, 0);
+        }
+    }
+
+    /**
+     * Services were discovered: the device stops if it was told to while the link was down.
+     */
+    public void onConnected() {
+        mLastSent = null;
+        if (mStopPending) {
+            sendStop();
+        } else if (mRunning) {
+            kick();
+        }
+    }
+
+    /**
+     * The link dropped.  Stimulation does not resume on its own after a reconnect.
+     */
+    public void onDisconnected() {
+        mTimers.cancel(mTick);
+        mTimers.cancel(mStopRetry);
+        mLastSent = null;
+        if (mRunning) {
+            mRunning = false;
+            mOutput = 0;
+            mRampDuration = 0;
+            mStopPending = true;
+        }
+    }
+
+    private void rampTo(int target) {
+        // Raising the target mid-ramp stretches the ramp instead of restarting its profile.
+        if (mRampDuration == 0) {
+            // Nothing between off and STRENGTH_MIN is a valid strength, so a ramp from off
+            // starts there.
+            mRampFrom = Math.max(mOutput, STRENGTH_MIN);
+            mRampStart = SystemClock.uptimeMillis();
+        }
+        mRampDuration = mProfile == RAMP_NONE ? 0 : (target - mRampFrom) * 1000L / RAMP_RATE;
+        // A step no bigger than one tick's worth of ramp, e.g. a press of "+", applies at once.
+        if (mRampDuration <= COMMAND_PERIOD) {
+            mOutput = target;
+            mRampDuration = 0;
+        }
+    }
+
+    // Sends the change right away when idle, then keeps ticking until the ramp is done.
+    private void kick() {
+        if (mTimers.isPending(mTick)) return;
+        tick();
+        if (mRunning) {
+            mTimers.schedulePeriodic(mTick, COMMAND_PERIOD, 0);
+        }
+    }
+
+    private void tick() {
+        if (mRampDuration > 0) {
+            final long elapsed = SystemClock.uptimeMillis() - mRampStart;
+            if (elapsed >= mRampDuration) {
+                mOutput = mTarget;
+                mRampDuration = 0;
+            } else {
+                final float t = (float) elapsed / mRampDuration;
+                final float shape = mProfile == RAMP_SMOOTH ? t * t * (3 - 2 * t) : t;
+                // Stretching the ramp lowers the shape at this point; never step back down.
+                mOutput = Math.max(mOutput,
+                        mRampFrom + Math.round((mTarget - mRampFrom) * shape));
+            }
+        }
+        final byte[] frame = packData(mRunning, mMode, mOutput);
+        if (!Arrays.equals(frame, mLastSent)) {
+            if (mLink.send(frame)) {
+                mLastSent = frame;
+            } else {
+                // No link; the next change or reconnect starts over.
+                mTimers.cancel(mTick);
+            }
+        } else if (mRampDuration == 0) {
+            // Nothing left to send until the next change.
+            mTimers.cancel(mTick);
+        }
+    }
+
+    private void sendStop() {
+        final byte[] frame = packData(false, mMode, 0);
+        if (mLink.sendStop(frame)) {
+            mLastSent = frame;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.frameschema.Field;
+import com.example.android.frameschema.Frame;
+
+/**
+ * A stimulation command, see {@link StimulationController}.
+ */
+@Frame(size = 20, opcode = StimulationController.TYPE_STIMULATION)
+public class StimulationFrame {
+    @Field(offset = 1)
+    boolean start;
+
+    @Field(offset = 2)
+    int mode;
+
+    @Field(offset = 3)
+    int strength;
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers which characteristics should notify, per device address, and writes their client
+ * characteristic configuration descriptors (CCCD).  Each characteristic is enabled for
+ * notifications if it supports them and for indications otherwise.
+ *
+ * Characteristics are told apart by their service's UUID, their own UUID and their instance id,
+ * since a device may expose the same characteristic in several services.  The desired set is
+ * persisted, so after every reconnect the whole set is restored as one run of
+ * descriptor writes that go out back to back.  The time from the start of such a run until the
+ * last descriptor write completes is reported as time-to-subscribed.
+ */
+public class SubscriptionManager {
+    private final static String TAG = SubscriptionManager.class.getSimpleName();
+
+    public static final String PREFERENCES_NAME = "subscriptions";
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG =
+            UUID.fromString(SampleGattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    public interface Link {
+        /**
+         * Writes values[i] to the CCCD of characteristics[i], in order and back to back.  Each
+         * write is reported through
+         * {@link #onDescriptorWrite(BluetoothGattCharacteristic, boolean)}.
+         */
+        void writeDescriptors(BluetoothGattCharacteristic[] characteristics, byte[][] values);
+    }
+
+    public interface Listener {
+        void onSubscribed(String address, int count, long elapsed);
+    }
+
+    private final SharedPreferences mPreferences;
+    private final Link mLink;
+    private final Listener mListener;
+
+    private String mAddress;
+    // The connected device's services, null while there is no connection.
+    private List<BluetoothGattService> mServices;
+
+    // Keys of the characteristics whose descriptor write hasn't completed yet.
+    private final HashSet<String> mPending = new HashSet<String>();
+    private long mBatchStart;
+    private int mBatchSize;
+    private long mTimeToSubscribed = -1;
+
+    public SubscriptionManager(SharedPreferences preferences, Link link, Listener listener) {
+        mPreferences = preferences;
+        mLink = link;
+        mListener = listener;
+    }
+
+    /**
+     * @return The CCCD value that subscribes to the characteristic: notifications when it
+     *         supports them, indications otherwise.  Null if it supports neither.
+     */
+    public static byte[] enableValue(BluetoothGattCharacteristic characteristic) {
+        final int properties = characteristic.getProperties();
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            return BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        if ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            return BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        return null;
+    }
+
+    /**
+     * @return The key a characteristic's subscription is kept under: service UUID,
+     *         characteristic UUID and instance id.
+     */
+    public static String key(BluetoothGattCharacteristic characteristic) {
+        final BluetoothGattService service = characteristic.getService();
+        return (service != null ? service.getUuid() : "") + "/" + characteristic.getUuid() + "/"
+                + characteristic.getInstanceId();
+    }
+
+    /**
+     * Subscribes to the characteristic now, if connected, and after every reconnect.
+     *
+     * @return false if the characteristic can't notify or indicate.
+     */
+    public boolean subscribe(BluetoothGattCharacteristic characteristic) {
+        final byte[] value = enableValue(characteristic);
+        if (value == null || characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG) == null) {
+            Log.w(TAG, "Can't subscribe to " + characteristic.getUuid());
+            return false;
+        }
+        final String key = key(characteristic);
+        synchronized (this) {
+            if (mAddress == null) return false;
+            Set<String> desired = load(mAddress);
+            if (desired.add(key)) {
+                save(mAddress, desired);
+            }
+            if (mServices == null) return true;
+            begin(1);
+            mPending.add(key);
+        }
+        mLink.writeDescriptors(new BluetoothGattCharacteristic[] {characteristic},
+                new byte[][] {value});
+        return true;
+    }
+
+    /**
+     * @return true if the characteristic is subscribed to on the current device, or will be
+     *         after the next reconnect.
+     */
+    public synchronized boolean isSubscribed(BluetoothGattCharacteristic characteristic) {
+        return mAddress != null && load(mAddress).contains(key(characteristic));
+    }
+
+    /**
+     * Unsubscribes from the characteristic and stops restoring it after reconnects.
+     */
+    public void unsubscribe(BluetoothGattCharacteristic characteristic) {
+        final String key = key(characteristic);
+        synchronized (this) {
+            if (mAddress == null) return;
+            Set<String> desired = load(mAddress);
+            // Also drops an entry stored by UUID alone, before keys carried the service.
+            if (desired.remove(key) | desired.remove(characteristic.getUuid().toString())) {
+                save(mAddress, desired);
+            }
+            mPending.remove(key);
+            if (mServices == null
+                    || characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG) == null) {
+                return;
+            }
+        }
+        mLink.writeDescriptors(new BluetoothGattCharacteristic[] {characteristic},
+                new byte[][] {BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE});
+    }
+
+    /**
+     * Service discovery completed: restores every desired subscription of the device in one
+     * batch.  The device forgets its CCCDs between connections unless bonded, so they are
+     * written every time.
+     */
+    public void onConnected(String address, List<BluetoothGattService> services) {
+        final ArrayList<BluetoothGattCharacteristic> characteristics =
+                new ArrayList<BluetoothGattCharacteristic>();
+        final ArrayList<byte[]> values = new ArrayList<byte[]>();
+        synchronized (this) {
+            mAddress = address;
+            mServices = services;
+            mPending.clear();
+            Set<String> desired = load(address);
+            if (desired.isEmpty()) return;
+            // Stored by UUID alone before keys carried the service; taken over by every
+            // characteristic with that UUID, as before.
+            final Set<String> adopted = new HashSet<String>();
+            final Set<String> legacy = new HashSet<String>();
+            for (BluetoothGattService service : services) {
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    final String key = key(characteristic);
+                    if (!desired.contains(key)) {
+                        final String uuid = characteristic.getUuid().toString();
+                        if (!desired.contains(uuid)) continue;
+                        adopted.add(key);
+                        legacy.add(uuid);
+                    }
+                    final byte[] value = enableValue(characteristic);
+                    if (value == null || characteristic.getDescriptor(
+                            CLIENT_CHARACTERISTIC_CONFIG) == null) continue;
+                    characteristics.add(characteristic);
+                    values.add(value);
+                }
+            }
+            if (!adopted.isEmpty()) {
+                desired.removeAll(legacy);
+                desired.addAll(adopted);
+                save(address, desired);
+            }
+            if (characteristics.isEmpty()) return;
+            begin(characteristics.size());
+            for (BluetoothGattCharacteristic characteristic : characteristics) {
+                mPending.add(key(characteristic));
+            }
+        }
+        Log.d(TAG, "Restoring " + characteristics.size() + " subscriptions of " + address);
+        mLink.writeDescriptors(
+                characteristics.toArray(new BluetoothGattCharacteristic[characteristics.size()]),
+                values.toArray(new byte[values.size()][]));
+    }
+
+    public synchronized void onDisconnected() {
+        mServices = null;
+        mPending.clear();
+    }
+
+    /**
+     * Must be called for every CCCD write that completed, or failed to start.
+     */
+    public void onDescriptorWrite(BluetoothGattCharacteristic characteristic, boolean success) {
+        final String key = key(characteristic);
+        final String address;
+        final int count;
+        final long elapsed;
+        synchronized (this) {
+            if (!mPending.remove(key)) return;
+            if (!success) {
+                Log.w(TAG, "Subscription to " + key + " failed");
+            }
+            if (!mPending.isEmpty()) return;
+            address = mAddress;
+            count = mBatchSize;
+            elapsed = SystemClock.elapsedRealtime() - mBatchStart;
+            mTimeToSubscribed = elapsed;
+            mBatchSize = 0;
+        }
+        mListener.onSubscribed(address, count, elapsed);
+    }
+
+    /**
+     * @return true while descriptor writes are outstanding; {@link Listener#onSubscribed} is
+     *         called once they completed.
+     */
+    public synchronized boolean isSubscribing() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * @return Milliseconds the last batch of subscriptions took to complete, or -1.
+     */
+    public synchronized long getTimeToSubscribed() {
+        return mTimeToSubscribed;
+    }
+
+    // Writes queued while a batch is in flight join it.
+    private void begin(int count) {
+        if (mPending.isEmpty()) {
+            mBatchStart = SystemClock.elapsedRealtime();
+            mBatchSize = 0;
+        }
+        mBatchSize += count;
+    }
+
+    private Set<String> load(String address) {
+        // The returned set must not be modified, so work on a copy.
+        return new HashSet<String>(mPreferences.getStringSet(address, new HashSet<String>()));
+    }
+
+    private void save(String address, Set<String> desired) {
+        mPreferences.edit().putStringSet(address, desired).apply();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import com.example.android.frameschema.Field;
+import com.example.android.frameschema.Frame;
+
+/**
+ * The telemetry frame the band sends on {@code READ_UUID}, notified or polled.  Older firmware
+ * sends only the first 13 bytes; the stimulation state then decodes as zero.  Decoded by the
+ * generated {@code TelemetryFrameCodec}.
+ */
+@Frame(size = 20, minSize = 13)
+public class TelemetryFrame {
+    @Field(offset = 0)
+    int heartRate;
+
+    // Blood pressure, mmHg.
+    @Field(offset = 1)
+    int systolic;
+
+    @Field(offset = 2)
+    int diastolic;
+
+    @Field(offset = 3, width = 4)
+    long steps;
+
+    // The band's clock; the year counts from 2000.
+    @Field(offset = 7)
+    int year;
+
+    @Field(offset = 8)
+    int month;
+
+    @Field(offset = 9)
+    int day;
+
+    @Field(offset = 10)
+    int hour;
+
+    @Field(offset = 11)
+    int minute;
+
+    @Field(offset = 12)
+    int second;
+
+    // One of StimulationController's MODE_* values.
+    @Field(offset = 13)
+    int mode;
+
+    @Field(offset = 18)
+    int strength;
+}
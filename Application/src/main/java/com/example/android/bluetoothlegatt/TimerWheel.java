@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel for every timeout, poll, retry and backoff in the app.
+ *
+ * Timers hash by deadline tick into a fixed ring of slots, each a doubly linked list, so
+ * scheduling and cancelling are O(1).  Only one message is ever posted to the handler: at the
+ * earliest deadline, and only while timers are live.  A timer may be given some slack, in which
+ * case its deadline is rounded up to a multiple of the slack so that timers with similar slack
+ * fire together and the process wakes up less often.
+ *
+ * Scheduling and cancelling may happen on any thread; tasks run on the handler's thread.
+ */
+public class TimerWheel {
+    // Deadlines are rounded up to whole ticks.
+    private static final long TICK = 10;
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private static final long MINUTE = 60000;
+
+    /**
+     * A reusable timer.  Scheduling a timer that is already pending moves it.
+     */
+    public static final class Timer {
+        private final Runnable mTask;
+        private long mPeriod;
+        private long mSlack;
+        // Deadline in ticks since the wheel's origin.
+        private long mDeadline;
+        private Timer mPrev;
+        private Timer mNext;
+        private boolean mLinked;
+        // Taken off the wheel as due, but not run yet.
+        private boolean mFired;
+
+        public Timer(Runnable task) {
+            mTask = task;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Timer[] mSlots = new Timer[WHEEL_SIZE];
+    private final long mOrigin;
+    // Last tick whose slot has been expired.
+    private long mCurrentTick;
+    // Tick the handler message is posted for, or -1.
+    private long mWakeTick = -1;
+    private int mLive;
+
+    private long mMinuteStart;
+    private int mWakeups;
+    private int mLastMinuteWakeups = -1;
+
+    // Only touched on the handler thread.
+    private final ArrayList<Timer> mDue = new ArrayList<Timer>();
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    public TimerWheel(Handler handler) {
+        mHandler = handler;
+        mOrigin = SystemClock.uptimeMillis();
+        mMinuteStart = mOrigin;
+    }
+
+    /**
+     * Runs the timer's task once, after at least delay and at most delay + slack milliseconds.
+     */
+    public synchronized void schedule(Timer timer, long delay, long slack) {
+        timer.mPeriod = 0;
+        insert(timer, delay, slack);
+    }
+
+    /**
+     * Runs the timer's task every period milliseconds, each time within slack of the deadline.
+     */
+    public synchronized void schedulePeriodic(Timer timer, long period, long slack) {
+        timer.mPeriod = period;
+        insert(timer, period, slack);
+    }
+
+    public synchronized void cancel(Timer timer) {
+        timer.mFired = false;
+        timer.mPeriod = 0;
+        if (!timer.mLinked) return;
+        unlink(timer);
+        if (mLive == 0 && mWakeTick != -1) {
+            mHandler.removeCallbacks(mTick);
+            mWakeTick = -1;
+        }
+    }
+
+    public synchronized boolean isPending(Timer timer) {
+        return timer.mLinked || timer.mFired;
+    }
+
+    public synchronized int getLiveTimers() {
+        return mLive;
+    }
+
+    /**
+     * @return How often the wheel woke the process during the last full minute, or so far in
+     *         the first one.
+     */
+    public synchronized int getWakeupsPerMinute() {
+        rollMinute(SystemClock.uptimeMillis());
+        return mLastMinuteWakeups >= 0 ? mLastMinuteWakeups : mWakeups;
+    }
+
+    private void insert(Timer timer, long delay, long slack) {
+        if (timer.mLinked) {
+            unlink(timer);
+        }
+        timer.mFired = false;
+        timer.mSlack = slack;
+
+        long now = SystemClock.uptimeMillis() - mOrigin;
+        long deadline = (now + Math.max(delay, 0) + TICK - 1) / TICK;
+        long slackTicks = slack / TICK;
+        if (slackTicks > 1) {
+            // Align to the slack so timers with similar slack share a wakeup.
+            deadline = (deadline + slackTicks - 1) / slackTicks * slackTicks;
+        }
+        if (deadline <= mCurrentTick) {
+            deadline = mCurrentTick + 1;
+        }
+        timer.mDeadline = deadline;
+
+        int slot = (int) (deadline & MASK);
+        timer.mPrev = null;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer;
+        }
+        mSlots[slot] = timer;
+        timer.mLinked = true;
+        mLive++;
+
+        if (mWakeTick == -1 || deadline < mWakeTick) {
+            wakeAt(deadline);
+        }
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mSlots[(int) (timer.mDeadline & MASK)] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mLinked = false;
+        mLive--;
+    }
+
+    private void wakeAt(long tick) {
+        mHandler.removeCallbacks(mTick);
+        mHandler.postAtTime(mTick, mOrigin + tick * TICK);
+        mWakeTick = tick;
+    }
+
+    private void expire() {
+        synchronized (this) {
+            mWakeTick = -1;
+            long uptime = SystemClock.uptimeMillis();
+            long now = (uptime - mOrigin) / TICK;
+            rollMinute(uptime);
+            mWakeups++;
+
+            // After a long gap every slot is visited once; the deadline check sorts it out.
+            long from = Math.max(mCurrentTick + 1, now - WHEEL_SIZE + 1);
+            for (long tick = from; tick <= now; tick++) {
+                Timer timer = mSlots[(int) (tick & MASK)];
+                while (timer != null) {
+                    Timer next = timer.mNext;
+                    if (timer.mDeadline <= now) {
+                        unlink(timer);
+                        timer.mFired = true;
+                        mDue.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+            mCurrentTick = Math.max(mCurrentTick, now);
+        }
+
+        for (int i = 0; i < mDue.size(); i++) {
+            Timer timer = mDue.get(i);
+            synchronized (this) {
+                // Cancelled or moved by an earlier task, or by another thread.
+                if (!timer.mFired) continue;
+                timer.mFired = false;
+                if (timer.mPeriod > 0) {
+                    insert(timer, timer.mPeriod, timer.mSlack);
+                }
+            }
+            timer.mTask.run();
+        }
+        mDue.clear();
+
+        synchronized (this) {
+            // Tasks may have added timers; the wakeup must still go to the earliest of all.
+            if (mLive > 0) {
+                long next = nextDeadline();
+                if (next != mWakeTick) {
+                    wakeAt(next);
+                }
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        // The first slot holding a timer due within one turn of the wheel has the earliest one.
+        for (long tick = mCurrentTick + 1; tick <= mCurrentTick + WHEEL_SIZE; tick++) {
+            for (Timer timer = mSlots[(int) (tick & MASK)]; timer != null; timer = timer.mNext) {
+                if (timer.mDeadline == tick) return tick;
+            }
+        }
+        // Everything is further out than one turn.
+        long earliest = Long.MAX_VALUE;
+        for (Timer head : mSlots) {
+            for (Timer timer = head; timer != null; timer = timer.mNext) {
+                earliest = Math.min(earliest, timer.mDeadline);
+            }
+        }
+        return earliest;
+    }
+
+    private void rollMinute(long uptime) {
+        long elapsed = uptime - mMinuteStart;
+        if (elapsed < MINUTE) return;
+        // A whole minute or more without a wakeup counts as zero.
+        mLastMinuteWakeups = elapsed < 2 * MINUTE ? mWakeups : 0;
+        mWakeups = 0;
+        mMinuteStart = uptime;
+    }
+}
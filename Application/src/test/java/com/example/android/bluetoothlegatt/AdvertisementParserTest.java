@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementParserTest {
+
+    @Test
+    public void parsesNameTxPowerAndManufacturerData() {
+        byte[] record = {
+                2, 0x01, 0x06,
+                2, 0x0A, (byte) -8,
+                5, (byte) 0xFF, 0x59, 0x00, 0x12, 0x34,
+                5, 0x09, 'B', 'a', 'n', 'd',
+                0, 0, 0
+        };
+        AdvertisementParser.Fields fields = new AdvertisementParser.Fields();
+        assertTrue(AdvertisementParser.parse(record, fields));
+        assertEquals(6, fields.flags);
+        assertEquals(-8, fields.txPower);
+        assertEquals(0x0059, fields.manufacturerId);
+        assertEquals(10, fields.manufacturerOffset);
+        assertEquals(2, fields.manufacturerLength);
+        assertEquals("Band", fields.name);
+    }
+
+    @Test
+    public void skipsAnUnchangedRecord() {
+        AdvertisementParser.Fields fields = new AdvertisementParser.Fields();
+        assertTrue(AdvertisementParser.parse(name("Band"), fields));
+        assertFalse(AdvertisementParser.parse(name("Band"), fields));
+        assertTrue(AdvertisementParser.parse(name("Bend"), fields));
+        assertEquals("Bend", fields.name);
+    }
+
+    @Test
+    public void parsesARecordWhoseHashCollides() {
+        // Same length and the same FNV-1a hash, different bytes.
+        AdvertisementParser.Fields fields = new AdvertisementParser.Fields();
+        assertTrue(AdvertisementParser.parse(name("FKY5Q2"), fields));
+        assertTrue(AdvertisementParser.parse(name("JQLL4Q"), fields));
+        assertEquals("JQLL4Q", fields.name);
+    }
+
+    @Test
+    public void noticesAChangeInAReusedArray() {
+        AdvertisementParser.Fields fields = new AdvertisementParser.Fields();
+        byte[] record = name("Band");
+        assertTrue(AdvertisementParser.parse(record, fields));
+        record[record.length - 1] = 'k';
+        assertTrue(AdvertisementParser.parse(record, fields));
+        assertEquals("Bank", fields.name);
+    }
+
+    private static byte[] name(String name) {
+        byte[] record = new byte[2 + name.length()];
+        record[0] = (byte) (1 + name.length());
+        record[1] = AdvertisementParser.TYPE_NAME_COMPLETE;
+        for (int i = 0; i < name.length(); i++) {
+            record[2 + i] = (byte) name.charAt(i);
+        }
+        return record;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Looks names up in the packed asset, against the YAML sources it was generated from.  Unit
+ * tests run in the module directory.
+ */
+public class AssignedNumbersTest {
+    private static final File ASSET = new File("src/main/assets/assigned_numbers.bin");
+    private static final File SOURCES = new File("../tools/assigned_numbers");
+
+    private static final Pattern ENTRY = Pattern.compile("^\\s*-\\s*uuid\\s*:\\s*(\\S+)\\s*$");
+    private static final Pattern NAME = Pattern.compile("^\\s*name\\s*:\\s*'(.*)'\\s*$");
+
+    private AssignedNumbers mNumbers;
+
+    @Before
+    public void setUp() throws IOException {
+        FileInputStream in = new FileInputStream(ASSET);
+        try {
+            mNumbers = new AssignedNumbers(in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, ASSET.length()));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void namesBaseUuids() {
+        assertEquals("Heart Rate", mNumbers.lookup(base(0x180D)));
+        assertEquals("Heart Rate Measurement", mNumbers.lookup(base(0x2A37)));
+        assertEquals("Client Characteristic Configuration", mNumbers.lookup(base(0x2902)));
+    }
+
+    @Test
+    public void namesVendorUuids() {
+        assertEquals("Nordic UART Service",
+                mNumbers.lookup(UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e")));
+    }
+
+    @Test
+    public void namesCompanies() {
+        assertEquals("Apple, Inc.", mNumbers.lookupCompany(0x004C));
+        assertEquals("Nordic Semiconductor ASA", mNumbers.lookupCompany(0x0059));
+        assertNull(mNumbers.lookupCompany(0xFFFF));
+        // Companies and 16-bit UUIDs share a table, but not their keys.
+        assertNull(mNumbers.lookupCompany(0x180D));
+    }
+
+    @Test
+    public void missesUnassignedUuids() {
+        assertNull(mNumbers.lookup(base(0xFFF0)));
+        // A 16-bit value outside the base UUID is not the same attribute.
+        assertNull(mNumbers.lookup(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fc")));
+        assertNull(mNumbers.lookup(UUID.fromString("6e400009-b5a3-f393-e0a9-e50e24dcca9e")));
+    }
+
+    @Test
+    public void missesEverythingWithoutTheAsset() {
+        assertNull(new AssignedNumbers(null).lookup(base(0x180D)));
+        assertNull(new AssignedNumbers(null).lookupCompany(0x004C));
+    }
+
+    @Test
+    public void namesEveryGeneratedEntry() throws IOException {
+        File[] files = SOURCES.listFiles();
+        int checked = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(".yaml")) continue;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), "UTF-8"));
+            try {
+                UUID uuid = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Matcher entry = ENTRY.matcher(line);
+                    if (entry.matches()) {
+                        uuid = parse(entry.group(1));
+                        continue;
+                    }
+                    Matcher name = NAME.matcher(line);
+                    if (name.matches() && uuid != null) {
+                        assertEquals(uuid.toString(), name.group(1).replace("''", "'"),
+                                mNumbers.lookup(uuid));
+                        uuid = null;
+                        checked++;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        assertTrue(checked > 400);
+    }
+
+    private static UUID parse(String value) {
+        return value.contains("-") ? UUID.fromString(value)
+                : base(Integer.parseInt(value.substring(2), 16));
+    }
+
+    private static UUID base(int value) {
+        return new UUID(((long) value << 32) | 0x1000L, 0x800000805F9B34FBL);
+    }
+}
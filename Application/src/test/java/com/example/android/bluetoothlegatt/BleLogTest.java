@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Logs into the shared ring and drains it on the test thread, as the drain thread would.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BleLogTest {
+    // Records without a payload take this many bytes in the file.
+    private static final int RECORD_SIZE = 48;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mPayload = new byte[BleLog.MAX_PAYLOAD];
+
+    @Before
+    public void setUp() throws IOException {
+        BleLog.setLevel(BleLog.DEBUG);
+        // The ring is process wide; start from an empty one.
+        BleLog.drain(new DataOutputStream(new ByteArrayOutputStream()), mPayload);
+    }
+
+    @After
+    public void tearDown() {
+        BleLog.setLevel(BleLog.INFO);
+    }
+
+    @Test
+    public void countsRecordsDroppedWhileTheRingIsFull() throws IOException {
+        final long dropped = BleLog.getDropped();
+        for (int i = 0; i < 3000; i++) {
+            BleLog.d(BleLog.EVENT_HEART_RATE, i, 0);
+        }
+        final long overflow = BleLog.getDropped() - dropped;
+        final long kept = BleLog.drain(new DataOutputStream(new ByteArrayOutputStream()),
+                mPayload) / RECORD_SIZE;
+
+        assertTrue(overflow > 0);
+        assertEquals(3000, kept + overflow);
+
+        // Draining made room again.
+        BleLog.d(BleLog.EVENT_HEART_RATE, 1, 0);
+        assertEquals(overflow, BleLog.getDropped() - dropped);
+    }
+
+    @Test
+    public void skipsRecordsBelowTheLevel() throws IOException {
+        BleLog.setLevel(BleLog.INFO);
+        BleLog.d(BleLog.EVENT_HEART_RATE, 60, 0);
+        BleLog.v(BleLog.EVENT_NOTIFICATION, 20, 0);
+
+        assertEquals(0, BleLog.drain(new DataOutputStream(new ByteArrayOutputStream()),
+                mPayload));
+    }
+
+    @Test
+    public void drainsRecordsInOrderAndDumpsThem() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            BleLog.d(BleLog.EVENT_HEART_RATE, 60 + i, i & 1);
+        }
+        BleLog.d(BleLog.EVENT_FRAME, new byte[] {0x48, (byte) 0x78, 0x50, (byte) 0xAB});
+        // Longer than a record holds, cut at MAX_PAYLOAD.
+        BleLog.d(BleLog.EVENT_FRAME, new byte[BleLog.MAX_PAYLOAD + 8]);
+        BleLog.log(BleLog.WARN, 42, 4, 1, -2, 3, -4, null);
+
+        final String[] lines = dump().split("\\r?\\n");
+
+        assertEquals(103, lines.length);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(lines[i], lines[i].matches("\\d+\\.\\d{6} D heart rate \\(bpm, flags\\): "
+                    + (60 + i) + ", " + (i & 1)));
+        }
+        assertTrue(lines[100], lines[100].endsWith(" D frame: 48 78 50 AB "));
+        StringBuilder zeros = new StringBuilder();
+        for (int i = 0; i < BleLog.MAX_PAYLOAD; i++) {
+            zeros.append("00 ");
+        }
+        assertTrue(lines[101], lines[101].endsWith(" D frame: " + zeros));
+        assertTrue(lines[102], lines[102].endsWith(" W event 42: 1, -2, 3, -4"));
+    }
+
+    @Test
+    public void refusesToDumpAnythingElse() throws IOException {
+        final File file = mFolder.newFile("other.log");
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+        try {
+            BleLog.dump(file, new PrintWriter(new StringWriter()));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private String dump() throws IOException {
+        final File file = new File(mFolder.getRoot(), "ble-0.log");
+        final DataOutputStream out = BleLog.open(file);
+        try {
+            BleLog.drain(out, mPayload);
+        } finally {
+            out.close();
+        }
+        final StringWriter text = new StringWriter();
+        final PrintWriter writer = new PrintWriter(text);
+        BleLog.dump(file, writer);
+        writer.flush();
+        return text.toString();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_CONNECTED;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_CONNECTING;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_DISCONNECTED;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_DISCONNECTING;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_DISCOVERING;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_READY;
+import static com.example.android.bluetoothlegatt.ConnectionStateMachine.STATE_SUBSCRIBING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+    private ConnectionStateMachine mState;
+
+    @Before
+    public void setUp() {
+        mState = new ConnectionStateMachine();
+    }
+
+    @Test
+    public void followsTheConnectionSequence() {
+        assertEquals(STATE_DISCONNECTED, mState.get());
+        assertTrue(mState.transition(STATE_DISCONNECTED, STATE_CONNECTING));
+        assertTrue(mState.transition(STATE_CONNECTING, STATE_CONNECTED));
+        assertTrue(mState.transition(STATE_CONNECTED, STATE_DISCOVERING));
+        assertFalse(mState.hasServices());
+        assertTrue(mState.transition(STATE_DISCOVERING, STATE_SUBSCRIBING));
+        assertTrue(mState.hasServices());
+        assertTrue(mState.transition(STATE_SUBSCRIBING, STATE_READY));
+        assertTrue(mState.transition(STATE_DISCONNECTING));
+        assertTrue(mState.transition(STATE_DISCONNECTED));
+        assertFalse(mState.hasServices());
+        assertEquals(0, mState.getRejectedCount());
+    }
+
+    @Test
+    public void rejectsIllegalTransitions() {
+        assertFalse(mState.transition(STATE_DISCONNECTED, STATE_READY));
+        assertFalse(mState.transition(STATE_CONNECTED));
+        assertEquals(STATE_DISCONNECTED, mState.get());
+        assertEquals(2, mState.getRejectedCount());
+
+        assertTrue(mState.transition(STATE_CONNECTING));
+        assertTrue(mState.transition(STATE_DISCONNECTING));
+        assertFalse(mState.transition(STATE_DISCONNECTING, STATE_CONNECTING));
+        assertEquals(3, mState.getRejectedCount());
+    }
+
+    @Test
+    public void staysPutWithoutCountingARejection() {
+        // Going down twice, e.g. on request and then from the callback, is not an error.
+        assertFalse(mState.transition(STATE_DISCONNECTED));
+        assertEquals(0, mState.getRejectedCount());
+        assertEquals(0, mState.getTransitionLog().length);
+    }
+
+    @Test
+    public void failsFromAStateItIsNotIn() {
+        assertTrue(mState.transition(STATE_CONNECTING));
+        // Legal, but the state has moved on.
+        assertFalse(mState.transition(STATE_DISCONNECTED, STATE_CONNECTING));
+        assertEquals(STATE_CONNECTING, mState.get());
+        assertEquals(0, mState.getRejectedCount());
+    }
+
+    @Test
+    public void logsTransitionsOldestFirst() {
+        mState.transition(STATE_CONNECTING);
+        mState.transition(STATE_CONNECTED);
+        mState.transition(STATE_DISCONNECTED);
+
+        String[] log = mState.getTransitionLog();
+        assertEquals(3, log.length);
+        assertTrue(log[0], log[0].endsWith("DISCONNECTED -> CONNECTING"));
+        assertTrue(log[1], log[1].endsWith("CONNECTING -> CONNECTED"));
+        assertTrue(log[2], log[2].endsWith("CONNECTED -> DISCONNECTED"));
+    }
+
+    @Test
+    public void keepsOnlyTheLastEntries() {
+        for (int i = 0; i < ConnectionStateMachine.LOG_SIZE; i++) {
+            mState.transition(STATE_CONNECTING);
+            mState.transition(STATE_DISCONNECTED);
+        }
+        mState.transition(STATE_CONNECTING);
+
+        String[] log = mState.getTransitionLog();
+        assertEquals(ConnectionStateMachine.LOG_SIZE, log.length);
+        assertTrue(log[0], log[0].endsWith("CONNECTING -> DISCONNECTED"));
+        assertTrue(log[log.length - 1], log[log.length - 1].endsWith("DISCONNECTED -> CONNECTING"));
+    }
+
+    @Test
+    public void letsOneOfRacingThreadsWin() throws InterruptedException {
+        final int threads = 8;
+        for (int round = 0; round < 200; round++) {
+            final ConnectionStateMachine state = new ConnectionStateMachine();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger winners = new AtomicInteger();
+            Thread[] racers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                racers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        if (state.transition(STATE_DISCONNECTED, STATE_CONNECTING)) {
+                            winners.incrementAndGet();
+                        }
+                    }
+                });
+                racers[i].start();
+            }
+            start.countDown();
+            for (Thread racer : racers) {
+                racer.join();
+            }
+            assertEquals(1, winners.get());
+            assertEquals(1, state.getTransitionLog().length);
+        }
+    }
+
+    @Test
+    public void neverLogsAnEntryBeforeItIsWritten() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger(4);
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20000; j++) {
+                        mState.transition(STATE_CONNECTING);
+                        mState.transition(STATE_DISCONNECTED);
+                    }
+                    running.decrementAndGet();
+                }
+            });
+            writers[i].start();
+        }
+        // An entry read before it is written would be all zero: DISCONNECTED -> DISCONNECTED,
+        // which is never a legal transition.
+        while (running.get() > 0) {
+            for (String line : mState.getTransitionLog()) {
+                assertFalse(line, line.endsWith("DISCONNECTED -> DISCONNECTED"));
+                assertTrue(line, line.endsWith("DISCONNECTED -> CONNECTING")
+                        || line.endsWith("CONNECTING -> DISCONNECTED"));
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(ConnectionStateMachine.LOG_SIZE, mState.getTransitionLog().length);
+    }
+}
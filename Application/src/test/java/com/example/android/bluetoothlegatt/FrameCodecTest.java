@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the codecs FrameProcessor generates against the frame layouts on the wire.
+ */
+public class FrameCodecTest {
+    private static final byte[] TELEMETRY = {
+            72, (byte) 120, 80, (byte) 0x80, 0x01, 0x02, 0x03, 21, 6, 15, 9, 30, 59,
+            StimulationController.MODE_2, 0, 0, 0, 0, (byte) 200, 0
+    };
+
+    @Test
+    public void decodesTelemetry() {
+        TelemetryFrame frame = new TelemetryFrame();
+        assertEquals(20, TelemetryFrameCodec.decode(TELEMETRY, frame));
+
+        assertEquals(72, frame.heartRate);
+        assertEquals(120, frame.systolic);
+        assertEquals(80, frame.diastolic);
+        // Unsigned, although the top bit is set.
+        assertEquals(0x80010203L, frame.steps);
+        assertEquals(21, frame.year);
+        assertEquals(6, frame.month);
+        assertEquals(15, frame.day);
+        assertEquals(9, frame.hour);
+        assertEquals(30, frame.minute);
+        assertEquals(59, frame.second);
+        assertEquals(StimulationController.MODE_2, frame.mode);
+        assertEquals(200, frame.strength);
+    }
+
+    @Test
+    public void zeroesFieldsMissingFromShortTelemetry() {
+        TelemetryFrame frame = new TelemetryFrame();
+        TelemetryFrameCodec.decode(TELEMETRY, frame);
+        assertEquals(13, TelemetryFrameCodec.decode(Arrays.copyOf(TELEMETRY, 13), frame));
+
+        assertEquals(59, frame.second);
+        assertEquals(0, frame.mode);
+        assertEquals(0, frame.strength);
+    }
+
+    @Test
+    public void rejectsTruncatedTelemetry() {
+        TelemetryFrame frame = new TelemetryFrame();
+        assertEquals(-1, TelemetryFrameCodec.decode(Arrays.copyOf(TELEMETRY, 12), frame));
+        assertEquals(-1, TelemetryFrameCodec.decode((byte[]) null, frame));
+    }
+
+    @Test
+    public void decodesBuffersAndArraysAlike() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + TELEMETRY.length);
+        buffer.position(4);
+        buffer.put(TELEMETRY);
+        buffer.position(4);
+
+        TelemetryFrame fromBuffer = new TelemetryFrame();
+        assertEquals(20, TelemetryFrameCodec.decode(buffer, fromBuffer));
+        // Absolute reads leave the position alone.
+        assertEquals(4, buffer.position());
+        assertArrayEquals(TELEMETRY, TelemetryFrameCodec.encode(fromBuffer));
+    }
+
+    @Test
+    public void encodesIntoBuffersOverOldContents() {
+        TelemetryFrame frame = new TelemetryFrame();
+        TelemetryFrameCodec.decode(TELEMETRY, frame);
+        ByteBuffer buffer = ByteBuffer.allocate(TELEMETRY.length);
+        Arrays.fill(buffer.array(), (byte) 0x5A);
+
+        TelemetryFrameCodec.encode(frame, buffer);
+        assertArrayEquals(TELEMETRY, buffer.array());
+    }
+
+    @Test
+    public void checksAndWritesTheOpcode() {
+        StimulationFrame frame = new StimulationFrame();
+        frame.start = true;
+        frame.mode = StimulationController.MODE_3;
+        frame.strength = 240;
+        byte[] data = StimulationFrameCodec.encode(frame);
+        assertEquals(StimulationController.FRAME_SIZE, data.length);
+        assertEquals(StimulationController.TYPE_STIMULATION, data[0]);
+        assertEquals(1, data[1]);
+        assertEquals(StimulationController.MODE_3, data[2]);
+        assertEquals((byte) 240, data[3]);
+
+        StimulationFrame decoded = new StimulationFrame();
+        assertEquals(20, StimulationFrameCodec.decode(data, decoded));
+        assertTrue(decoded.start);
+        assertEquals(240, decoded.strength);
+
+        data[0] = 0x01;
+        assertEquals(-1, StimulationFrameCodec.decode(data, decoded));
+    }
+
+    @Test
+    public void padsAndCutsByteArrays() {
+        PhoneCallFrame frame = new PhoneCallFrame();
+        frame.ringing = true;
+        frame.number = "5551234".getBytes(FrameSegmenter.UTF_8);
+        frame.numberLength = frame.number.length;
+        byte[] data = PhoneCallFrameCodec.encode(frame);
+        assertEquals(0x01, data[0]);
+        assertEquals(7, data[2]);
+        assertEquals('5', data[3]);
+        assertEquals(0, data[3 + 7]);
+
+        frame.number = new byte[PhoneCallFrame.NUMBER_SIZE + 5];
+        Arrays.fill(frame.number, (byte) '9');
+        data = PhoneCallFrameCodec.encode(frame);
+        assertEquals(20, data.length);
+        assertEquals('9', data[19]);
+
+        PhoneCallFrame decoded = new PhoneCallFrame();
+        PhoneCallFrameCodec.decode(data, decoded);
+        assertEquals(PhoneCallFrame.NUMBER_SIZE, decoded.number.length);
+        assertFalse(decoded.number[0] == 0);
+    }
+
+    @Test
+    public void encodesTheClock() {
+        DateTimeFrame frame = new DateTimeFrame();
+        frame.year = 26;
+        frame.month = 10;
+        frame.day = 19;
+        frame.hour = 23;
+        frame.minute = 5;
+        frame.second = 7;
+        assertArrayEquals(new byte[] {0x00, 26, 10, 19, 23, 5, 7, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0}, DateTimeFrameCodec.encode(frame));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameIntegrityTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private FrameIntegrity mIntegrity;
+
+    @Before
+    public void setUp() {
+        mIntegrity = new FrameIntegrity();
+        mIntegrity.onConnected(ADDRESS);
+    }
+
+    @Test
+    public void computesCrc16CcittFalse() {
+        byte[] check = "123456789".getBytes(FrameSegmenter.UTF_8);
+        assertEquals(0x29B1, FrameIntegrity.crc16(check, 0, check.length));
+        // Continuing over pieces gives the same result.
+        int crc = FrameIntegrity.crc16(check, 0, 4);
+        assertEquals(0x29B1, FrameIntegrity.crc16(crc, check, 4, check.length - 4));
+    }
+
+    @Test
+    public void sealsFramesThatVerify() {
+        byte[] frame = {0x02, 1, 13, 40};
+        byte[] sealed = mIntegrity.seal(frame);
+
+        assertEquals(frame.length + FrameIntegrity.TRAILER_SIZE, sealed.length);
+        assertArrayEquals(frame, Arrays.copyOf(sealed, frame.length));
+        assertEquals(0, sealed[frame.length]);
+        assertTrue(FrameIntegrity.isIntact(sealed));
+
+        sealed[1] ^= 0x10;
+        assertFalse(FrameIntegrity.isIntact(sealed));
+    }
+
+    @Test
+    public void advancesTheSequenceOnlyOnceSent() {
+        byte[] frame = {0x02, 1, 13, 40};
+        assertEquals(0, mIntegrity.seal(frame)[frame.length]);
+        // The write didn't start; the retry is sealed the same way.
+        assertEquals(0, mIntegrity.seal(frame)[frame.length]);
+        mIntegrity.onSent();
+        assertEquals(1, mIntegrity.seal(frame)[frame.length]);
+    }
+
+    @Test
+    public void wrapsTheSequence() {
+        byte[] frame = {0x01};
+        for (int i = 0; i < 256; i++) {
+            mIntegrity.onSent();
+        }
+        assertEquals(0, mIntegrity.seal(frame)[frame.length]);
+    }
+
+    @Test
+    public void countsGapsDuplicatesAndCorruption() {
+        FrameIntegrity device = new FrameIntegrity();
+        byte[][] sent = new byte[6][];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = device.seal(new byte[] {0x01, (byte) i}).clone();
+            device.onSent();
+        }
+
+        assertEquals(FrameIntegrity.OK, mIntegrity.onNotification(sent[0]));
+        assertEquals(FrameIntegrity.OK, mIntegrity.onNotification(sent[1]));
+        assertEquals(FrameIntegrity.DUPLICATE, mIntegrity.onNotification(sent[1]));
+        // 2 and 3 were lost.
+        assertEquals(FrameIntegrity.GAP, mIntegrity.onNotification(sent[4]));
+        // A late frame from before the gap is old news.
+        assertEquals(FrameIntegrity.DUPLICATE, mIntegrity.onNotification(sent[2]));
+        sent[5][1] ^= 0x01;
+        assertEquals(FrameIntegrity.CORRUPT, mIntegrity.onNotification(sent[5]));
+
+        FrameIntegrity.Stats stats = mIntegrity.getConnectionStats();
+        assertEquals(3, stats.getReceived());
+        assertEquals(2, stats.getLost());
+        assertEquals(2, stats.getDuplicated());
+        assertEquals(1, stats.getCorrupted());
+        assertEquals(2f / 6, stats.getLossRate(), 1e-6f);
+    }
+
+    @Test
+    public void keepsDeviceTotalsAcrossConnections() {
+        FrameIntegrity device = new FrameIntegrity();
+        byte[] first = device.seal(new byte[] {0x01}).clone();
+        assertEquals(FrameIntegrity.OK, mIntegrity.onNotification(first));
+
+        // Sequence numbers start over with the new connection.
+        mIntegrity.onConnected(ADDRESS);
+        assertEquals(FrameIntegrity.OK, mIntegrity.onNotification(first));
+
+        assertEquals(1, mIntegrity.getConnectionStats().getReceived());
+        assertEquals(2, mIntegrity.getDeviceStats(ADDRESS).getReceived());
+        assertEquals(null, mIntegrity.getDeviceStats("66:77:88:99:AA:BB"));
+    }
+
+    @Test
+    public void checksReadsForCorruptionOnly() {
+        byte[] sealed = mIntegrity.seal(new byte[] {0x01, 0x02}).clone();
+        assertTrue(mIntegrity.onRead(sealed));
+        assertTrue(mIntegrity.onRead(sealed));
+        sealed[0] = 0x03;
+        assertFalse(mIntegrity.onRead(sealed));
+        assertEquals(1, mIntegrity.getConnectionStats().getCorrupted());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips messages through FrameSegmenter and the device side in FrameReassembler.
+ */
+public class FrameSegmenterTest {
+    private static final int FRAME_SIZE = 20;
+
+    @Test
+    public void cutsCjkTextAtTheSegmentLimitOnACharacterBoundary() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            body.append((char) (0x4E00 + i));
+        }
+        byte[] payload = FrameSegmenter.encodeMessage(FrameSegmenter.KIND_SMS, "李雷",
+                body.toString(), FRAME_SIZE);
+        byte[][] frames = FrameSegmenter.segment(7, payload, FRAME_SIZE);
+
+        assertEquals(FrameSegmenter.MAX_SEGMENTS, frames.length);
+        int room = FrameSegmenter.MAX_SEGMENTS * (FRAME_SIZE - FrameSegmenter.HEADER_SIZE);
+        // Less than one character short of the limit.
+        assertTrue(payload.length <= room);
+        assertTrue(payload.length > room - 3);
+
+        byte[] received = reassemble(new FrameReassembler(FRAME_SIZE), 7, frames);
+        assertArrayEquals(payload, received);
+        assertEquals(FrameSegmenter.KIND_SMS, received[0]);
+        int senderLength = received[1] & 0xFF;
+        assertEquals("李雷",
+                new String(received, 2, senderLength, FrameSegmenter.UTF_8));
+        String text = new String(received, 2 + senderLength, received.length - 2 - senderLength,
+                FrameSegmenter.UTF_8);
+        // No replacement character from a split sequence at the end.
+        assertTrue(body.toString().startsWith(text));
+        assertEquals((room - 2 - 6) / 3, text.length());
+    }
+
+    @Test
+    public void reassemblesSegmentsOutOfOrderAndDuplicated() {
+        byte[] payload = FrameSegmenter.encodeMessage(FrameSegmenter.KIND_SMS, "+4915112345678",
+                "Running late, start without me. Übermorgen passt besser.", FRAME_SIZE);
+        byte[][] frames = FrameSegmenter.segment(42, payload, FRAME_SIZE);
+        assertTrue(frames.length > 3);
+
+        List<byte[]> arrivals = new ArrayList<byte[]>(Arrays.asList(frames));
+        arrivals.addAll(Arrays.asList(frames).subList(1, 3));
+        arrivals.add(frames[frames.length - 1]);
+        Collections.shuffle(arrivals, new Random(28));
+
+        FrameReassembler reassembler = new FrameReassembler(FRAME_SIZE);
+        int completions = 0;
+        int length = -1;
+        for (byte[] frame : arrivals) {
+            int result = reassembler.onFrame(frame, frame.length);
+            if (result >= 0) {
+                completions++;
+                length = result;
+            }
+        }
+        // A duplicate arriving after the last new segment must not complete it again.
+        assertEquals(1, completions);
+        assertArrayEquals(payload, Arrays.copyOf(reassembler.getPayload(42), length));
+    }
+
+    @Test
+    public void keepsMessagesApartWhenTheIdWraps() {
+        byte[] before = FrameSegmenter.encodeMessage(FrameSegmenter.KIND_SMS, "A",
+                "The last message before the id wraps around.", FRAME_SIZE);
+        byte[] after = FrameSegmenter.encodeMessage(FrameSegmenter.KIND_SMS, "B",
+                "The first message after the id wrapped, a bit longer than the other one.",
+                FRAME_SIZE);
+        // The service numbers messages as mMessageId++ & 0xFF.
+        int firstId = 255 & 0xFF;
+        int secondId = 256 & 0xFF;
+        byte[][] first = FrameSegmenter.segment(firstId, before, FRAME_SIZE);
+        byte[][] second = FrameSegmenter.segment(secondId, after, FRAME_SIZE);
+        assertEquals(0, second[0][1]);
+
+        // Both are in flight at once, their segments interleaved.
+        FrameReassembler reassembler = new FrameReassembler(FRAME_SIZE);
+        int firstLength = -1;
+        int secondLength = -1;
+        for (int i = 0; i < Math.max(first.length, second.length); i++) {
+            if (i < first.length) {
+                int result = reassembler.onFrame(first[i], first[i].length);
+                if (result >= 0) firstLength = result;
+            }
+            if (i < second.length) {
+                int result = reassembler.onFrame(second[i], second[i].length);
+                if (result >= 0) secondLength = result;
+            }
+        }
+        assertArrayEquals(before, Arrays.copyOf(reassembler.getPayload(firstId), firstLength));
+        assertArrayEquals(after, Arrays.copyOf(reassembler.getPayload(secondId), secondLength));
+
+        // Id 0 comes round again for a new message, which must not be merged with the old one.
+        byte[] again = FrameSegmenter.encodeMessage(FrameSegmenter.KIND_CALL, "C", null,
+                FRAME_SIZE);
+        assertArrayEquals(again,
+                reassemble(reassembler, secondId, FrameSegmenter.segment(512, again, FRAME_SIZE)));
+    }
+
+    private static byte[] reassemble(FrameReassembler reassembler, int id, byte[][] frames) {
+        int length = -1;
+        for (byte[] frame : frames) {
+            length = reassembler.onFrame(frame, frame.length);
+        }
+        assertTrue(length >= 0);
+        return Arrays.copyOf(reassembler.getPayload(id), length);
+    }
+}
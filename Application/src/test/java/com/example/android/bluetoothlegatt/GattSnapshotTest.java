@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a snapshot the way BluetoothLeService does: one read outstanding at a time, and a
+ * budget timer that ends it whatever state it is in.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class GattSnapshotTest {
+    private static final long READ_TIME = 100;
+
+    private BluetoothGattCharacteristic mManufacturer;
+    private BluetoothGattCharacteristic mBattery;
+    private BluetoothGattDescriptor mBatteryConfig;
+    private BluetoothGattDescriptor mControlDescription;
+    private GattSnapshot mSnapshot;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        BluetoothGattService deviceInformation = new BluetoothGattService(uuid(0x180A),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mManufacturer = new BluetoothGattCharacteristic(uuid(0x2A29),
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        deviceInformation.addCharacteristic(mManufacturer);
+
+        BluetoothGattService battery = new BluetoothGattService(uuid(0x180F),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mBattery = new BluetoothGattCharacteristic(uuid(0x2A19),
+                BluetoothGattCharacteristic.PROPERTY_READ
+                        | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        mBatteryConfig = new BluetoothGattDescriptor(uuid(0x2902),
+                BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
+        mBattery.addDescriptor(mBatteryConfig);
+        // Write only: its value is left out, its descriptor is not.
+        BluetoothGattCharacteristic control = new BluetoothGattCharacteristic(
+                UUID.fromString("0000ff02-0000-1000-8000-00805f9b34fb"),
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE);
+        mControlDescription = new BluetoothGattDescriptor(uuid(0x2901),
+                BluetoothGattDescriptor.PERMISSION_READ);
+        control.addDescriptor(mControlDescription);
+        battery.addCharacteristic(mBattery);
+        battery.addCharacteristic(control);
+
+        mSnapshot = new GattSnapshot(Arrays.asList(deviceInformation, battery));
+    }
+
+    @Test
+    public void listsReadableCharacteristicsAndEveryDescriptor() {
+        List<GattSnapshot.Entry> entries = mSnapshot.getEntries();
+
+        assertEquals(4, entries.size());
+        assertEquals(uuid(0x2A29), entries.get(0).getCharacteristicUuid());
+        assertNull(entries.get(0).getDescriptorUuid());
+        assertEquals(uuid(0x180A), entries.get(0).getServiceUuid());
+        assertEquals(uuid(0x2A19), entries.get(1).getCharacteristicUuid());
+        assertEquals(uuid(0x2902), entries.get(2).getDescriptorUuid());
+        assertEquals(uuid(0x2901), entries.get(3).getDescriptorUuid());
+        assertEquals(4, mSnapshot.getPending());
+        assertFalse(mSnapshot.isFinished());
+    }
+
+    @Test
+    public void completesWhenEveryReadCameBack() {
+        List<GattSnapshot.Entry> entries = mSnapshot.getEntries();
+        read(entries.get(0), mManufacturer, true, "Acme".getBytes());
+        read(entries.get(1), mBattery, true, new byte[] {87});
+        read(entries.get(2), mBatteryConfig, true, new byte[] {1, 0});
+        // Not readable after all.
+        read(entries.get(3), mControlDescription, false, null);
+
+        assertEquals(0, mSnapshot.getPending());
+        assertTrue(mSnapshot.finish());
+        assertTrue(mSnapshot.isComplete());
+        assertEquals(3, mSnapshot.getReadCount());
+        assertEquals(4 * READ_TIME, mSnapshot.getElapsed());
+        assertEquals("\"Acme\"", entries.get(0).getDecoded());
+        assertEquals("87%", entries.get(1).getDecoded());
+        assertEquals("notify", entries.get(2).getDecoded());
+        assertEquals(READ_TIME, entries.get(2).getLatency());
+        assertEquals(GattSnapshot.STATUS_FAILED, entries.get(3).getStatus());
+        // The service's budget timer comes too late to change anything.
+        assertFalse(mSnapshot.finish());
+    }
+
+    @Test
+    public void handsOutPartialResultsWhenTheBudgetRunsOut() {
+        final List<GattSnapshot.Entry> entries = mSnapshot.getEntries();
+        TimerWheel timers = new TimerWheel(new Handler());
+        timers.schedule(new TimerWheel.Timer(new Runnable() {
+            @Override
+            public void run() {
+                mSnapshot.finish();
+            }
+        }), 3 * READ_TIME - READ_TIME / 2, 0);
+
+        read(entries.get(0), mManufacturer, true, "Acme".getBytes());
+        read(entries.get(1), mBattery, true, new byte[] {87});
+        // The budget runs out while the descriptor read is outstanding.
+        mSnapshot.onStarted(entries.get(2));
+        ShadowLooper.idleMainLooper(READ_TIME, TimeUnit.MILLISECONDS);
+
+        assertTrue(mSnapshot.isFinished());
+        assertFalse(mSnapshot.isComplete());
+        assertEquals(3 * READ_TIME - READ_TIME / 2, mSnapshot.getElapsed());
+        assertEquals(2, mSnapshot.getReadCount());
+        assertEquals(GattSnapshot.STATUS_OK, entries.get(1).getStatus());
+        assertEquals(GattSnapshot.STATUS_TIMED_OUT, entries.get(2).getStatus());
+        assertEquals(GattSnapshot.STATUS_TIMED_OUT, entries.get(3).getStatus());
+        assertNull(entries.get(2).getValue());
+        assertEquals(-1, entries.get(2).getLatency());
+
+        // Its late callback is no longer the snapshot's, and the entry stays timed out.
+        assertFalse(mSnapshot.onRead(mBatteryConfig, true, new byte[] {1, 0}));
+        assertEquals(GattSnapshot.STATUS_TIMED_OUT, entries.get(2).getStatus());
+    }
+
+    @Test
+    public void leavesCallbacksForOtherAttributesAlone() {
+        GattSnapshot.Entry entry = mSnapshot.getEntries().get(1);
+        mSnapshot.onStarted(entry);
+
+        // A read the app queued itself, and the descriptor of the characteristic being read.
+        assertFalse(mSnapshot.onRead(mManufacturer, true, "Acme".getBytes()));
+        assertFalse(mSnapshot.onRead(mBatteryConfig, true, new byte[] {1, 0}));
+        assertEquals(GattSnapshot.STATUS_PENDING, entry.getStatus());
+
+        assertTrue(mSnapshot.onRead(mBattery, true, new byte[] {50}));
+        assertEquals("50%", entry.getDecoded());
+    }
+
+    @Test
+    public void countsAReadThatCouldNotStartAsFailed() {
+        GattSnapshot.Entry entry = mSnapshot.getEntries().get(0);
+        mSnapshot.onStarted(entry);
+        mSnapshot.onFailed(entry);
+
+        assertEquals(GattSnapshot.STATUS_FAILED, entry.getStatus());
+        assertEquals(3, mSnapshot.getPending());
+        // Nothing is outstanding any more.
+        assertFalse(mSnapshot.onRead(mManufacturer, true, "Acme".getBytes()));
+    }
+
+    @Test
+    public void finishesAnEmptySnapshotComplete() {
+        GattSnapshot snapshot = new GattSnapshot(Collections.<BluetoothGattService>emptyList());
+        assertTrue(snapshot.finish());
+        assertTrue(snapshot.isComplete());
+        assertEquals(0, snapshot.getReadCount());
+    }
+
+    // One read as the scheduler runs it: started, then answered a read time later.
+    private void read(GattSnapshot.Entry entry, Object attribute, boolean success, byte[] value) {
+        mSnapshot.onStarted(entry);
+        ShadowLooper.idleMainLooper(READ_TIME, TimeUnit.MILLISECONDS);
+        assertTrue(mSnapshot.onRead(attribute, success, value));
+    }
+
+    private static UUID uuid(int value) {
+        return new UUID(((long) value << 32) | 0x1000L, 0x800000805F9B34FBL);
+    }
+}
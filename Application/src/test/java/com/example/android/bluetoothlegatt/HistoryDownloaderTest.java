@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the downloader against a simulated device that streams its history over a lossy link.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class HistoryDownloaderTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int CHUNKS = 100;
+    // BluetoothLeService.READ_UUID, written out as the JVM's UUID parser is stricter.
+    private static final UUID TELEMETRY_UUID =
+            UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SharedPreferences mPreferences;
+    private TimerWheel mTimers;
+    private byte[] mHistory;
+    private SimulatedDevice mDevice;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mPreferences = RuntimeEnvironment.application.getSharedPreferences(
+                HistoryDownloader.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mTimers = new TimerWheel(new Handler());
+        // The last chunk is a short one.
+        mHistory = new byte[CHUNKS * HistoryDownloader.CHUNK_PAYLOAD - 7];
+        new Random(26).nextBytes(mHistory);
+        mDevice = new SimulatedDevice(mHistory);
+        mListener = new RecordingListener();
+    }
+
+    @Test
+    public void downloadsTheWholeHistory() throws IOException {
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        assertTrue(downloader.start(ADDRESS, 0, CHUNKS));
+        downloader.onConnected(ADDRESS);
+        mDevice.deliverAll();
+
+        assertNotNull(mListener.mFile);
+        assertEquals(CHUNKS, mListener.mTotal);
+        assertArrayEquals(mHistory, read(mListener.mFile));
+        assertFalse(downloader.isActive());
+    }
+
+    @Test
+    public void requestsChunksLostOnTheAir() throws IOException {
+        mDevice.mDrop.add(5L);
+        mDevice.mDrop.add(6L);
+        mDevice.mDrop.add(40L);
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        downloader.start(ADDRESS, 0, CHUNKS);
+        downloader.onConnected(ADDRESS);
+        mDevice.deliverAll();
+
+        assertEquals(3, mDevice.mResends);
+        assertArrayEquals(mHistory, read(mListener.mFile));
+    }
+
+    @Test
+    public void reRequestsWhenTheDownloadStalls() throws IOException {
+        mDevice.mDrop.add((long) CHUNKS - 1);
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        downloader.start(ADDRESS, 0, CHUNKS);
+        downloader.onConnected(ADDRESS);
+        mDevice.deliverAll();
+        assertNull(mListener.mFile);
+
+        // Nothing is missing below the last chunk received, so only the stall check notices.
+        ShadowLooper.idleMainLooper(2, TimeUnit.SECONDS);
+        mDevice.deliverAll();
+        assertArrayEquals(mHistory, read(mListener.mFile));
+    }
+
+    @Test
+    public void resumesFromTheLastAckAfterReconnecting() throws IOException {
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        downloader.start(ADDRESS, 0, CHUNKS);
+        downloader.onConnected(ADDRESS);
+        mDevice.deliver(50);
+        downloader.onDisconnected();
+        mDevice.disconnect();
+
+        // A new process picks the download up from the persisted position.
+        long acked = mDevice.mAcked;
+        assertTrue(acked > 0);
+        HistoryDownloader resumed = newDownloader(mFolder.getRoot());
+        mDevice.connect();
+        resumed.onConnected(ADDRESS);
+        assertEquals(acked, mDevice.mRequestedFrom);
+        mDevice.deliverAll();
+
+        assertEquals(2, mDevice.mRequests);
+        assertArrayEquals(mHistory, read(mListener.mFile));
+    }
+
+    @Test
+    public void reportsAFileThatCannotBeOpened() {
+        HistoryDownloader downloader = newDownloader(new File(mFolder.getRoot(), "missing"));
+        downloader.onConnected(ADDRESS);
+
+        assertFalse(downloader.start(ADDRESS, 0, CHUNKS));
+        assertEquals(ADDRESS, mListener.mFailed);
+        assertFalse(downloader.isActive());
+        assertEquals(0, mDevice.mRequests);
+    }
+
+    @Test
+    public void handlesNotificationsOnTheHandlerThread() {
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        downloader.start(ADDRESS, 0, CHUNKS);
+        downloader.onConnected(ADDRESS);
+        byte[] chunk = mDevice.mAir.poll();
+        int sent = mDevice.mReceived;
+
+        assertTrue(downloader.onNotification(HistoryDownloader.CHANNEL_UUID, chunk));
+        assertFalse(downloader.onNotification(HistoryDownloader.CHANNEL_UUID,
+                new byte[] {0x01, 0, 0, 0, 0}));
+        // Claimed, but not handled until the handler runs; by then it has been cancelled.
+        downloader.cancel();
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(sent, mDevice.mReceived);
+        assertFalse(downloader.onNotification(HistoryDownloader.CHANNEL_UUID, chunk));
+    }
+
+    @Test
+    public void leavesTelemetryAloneMidDownload() throws IOException {
+        HistoryDownloader downloader = newDownloader(mFolder.getRoot());
+        downloader.start(ADDRESS, 0, CHUNKS);
+        downloader.onConnected(ADDRESS);
+        mDevice.deliver(10);
+
+        // At 160 and 161 bpm the first byte of a telemetry frame reads as CHUNK and END.
+        for (int rate = 160; rate <= 161; rate++) {
+            TelemetryFrame frame = new TelemetryFrame();
+            frame.heartRate = rate;
+            frame.systolic = 0;
+            frame.diastolic = 2;
+            frame.steps = 0x05000000L;
+            byte[] telemetry = TelemetryFrameCodec.encode(frame);
+            assertEquals(HistoryDownloader.FRAME_SIZE, telemetry.length);
+            assertFalse(downloader.onNotification(TELEMETRY_UUID, telemetry));
+        }
+        ShadowLooper.runUiThreadTasks();
+        assertTrue(downloader.isActive());
+
+        mDevice.deliverAll();
+        assertEquals(CHUNKS, mListener.mTotal);
+        assertArrayEquals(mHistory, read(mListener.mFile));
+    }
+
+    private HistoryDownloader newDownloader(File directory) {
+        HistoryDownloader downloader = new HistoryDownloader(new Handler(), mPreferences,
+                directory, mTimers, mDevice, mListener);
+        mDevice.mDownloader = downloader;
+        return downloader;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long readSeq(byte[] frame, int offset) {
+        return ((frame[offset] & 0xFFL) << 16) | ((frame[offset + 1] & 0xFFL) << 8)
+                | (frame[offset + 2] & 0xFFL);
+    }
+
+    /**
+     * The device side of the protocol: keeps at most a window of chunks in flight past the last
+     * ACK, and loses the chunks in {@code mDrop} the first time they are sent.
+     */
+    private static final class SimulatedDevice implements HistoryDownloader.Link {
+        private final byte[] mHistory;
+        private final long mTotal;
+        final Set<Long> mDrop = new HashSet<Long>();
+        final ArrayDeque<byte[]> mAir = new ArrayDeque<byte[]>();
+        HistoryDownloader mDownloader;
+
+        private boolean mConnected = true;
+        private long mNext;
+        private long mEnd;
+        long mAcked;
+        long mRequestedFrom = -1;
+        int mRequests;
+        int mResends;
+        int mReceived;
+
+        SimulatedDevice(byte[] history) {
+            mHistory = history;
+            mTotal = (history.length + HistoryDownloader.CHUNK_PAYLOAD - 1)
+                    / HistoryDownloader.CHUNK_PAYLOAD;
+        }
+
+        @Override
+        public boolean send(byte[] frame) {
+            if (!mConnected) return false;
+            mReceived++;
+            long first = readSeq(frame, 1);
+            switch (frame[0]) {
+                case HistoryDownloader.TYPE_REQUEST:
+                    mRequests++;
+                    mRequestedFrom = first;
+                    mAcked = first;
+                    mNext = first;
+                    mEnd = Math.min(first + readSeq(frame, 4), mTotal);
+                    fill();
+                    break;
+                case HistoryDownloader.TYPE_ACK:
+                    mAcked = Math.max(mAcked, first);
+                    fill();
+                    break;
+                case HistoryDownloader.TYPE_RESEND:
+                    mResends++;
+                    mAir.add(chunk(first));
+                    break;
+            }
+            return true;
+        }
+
+        void disconnect() {
+            mConnected = false;
+            mAir.clear();
+        }
+
+        void connect() {
+            mConnected = true;
+        }
+
+        void deliver(int frames) {
+            for (int i = 0; i < frames && !mAir.isEmpty(); i++) {
+                mDownloader.onNotification(HistoryDownloader.CHANNEL_UUID, mAir.poll());
+                ShadowLooper.runUiThreadTasks();
+            }
+        }
+
+        void deliverAll() {
+            deliver(Integer.MAX_VALUE);
+        }
+
+        private void fill() {
+            while (mNext < mEnd && mNext < mAcked + HistoryDownloader.WINDOW) {
+                if (!mDrop.remove(mNext)) {
+                    mAir.add(chunk(mNext));
+                }
+                mNext++;
+            }
+        }
+
+        private byte[] chunk(long seq) {
+            int offset = (int) seq * HistoryDownloader.CHUNK_PAYLOAD;
+            int length = Math.min(HistoryDownloader.CHUNK_PAYLOAD, mHistory.length - offset);
+            byte[] frame = new byte[HistoryDownloader.FRAME_SIZE];
+            frame[0] = HistoryDownloader.TYPE_CHUNK;
+            frame[1] = (byte) (seq >> 16);
+            frame[2] = (byte) (seq >> 8);
+            frame[3] = (byte) seq;
+            frame[4] = (byte) length;
+            System.arraycopy(mHistory, offset, frame, 5, length);
+            return frame;
+        }
+    }
+
+    private static final class RecordingListener implements HistoryDownloader.Listener {
+        File mFile;
+        long mTotal;
+        String mFailed;
+
+        @Override
+        public void onProgress(long receivedChunks, long totalChunks, long bytesPerSecond) {
+        }
+
+        @Override
+        public void onComplete(File file, long totalChunks) {
+            mFile = file;
+            mTotal = totalChunks;
+        }
+
+        @Override
+        public void onFailed(String address) {
+            mFailed = address;
+        }
+    }
+}
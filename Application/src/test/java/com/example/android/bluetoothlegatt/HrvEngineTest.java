@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HrvEngineTest {
+    // 1/1024 s units.
+    private static final int MS_800 = 819;
+    private static final long WINDOW = 60 * 1024;
+
+    private HrvEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mEngine = new HrvEngine();
+    }
+
+    @Test
+    public void givesNoFiguresWithTooFewBeats() {
+        for (int i = 0; i < 9; i++) {
+            mEngine.onInterval(MS_800);
+        }
+        assertTrue(Float.isNaN(mEngine.getRmssd()));
+        assertTrue(Float.isNaN(mEngine.getSdnn()));
+        assertTrue(Float.isNaN(mEngine.getPnn50()));
+    }
+
+    @Test
+    public void computesTheFiguresOfAKnownSeries() {
+        // Alternating 800 and 880 ms: every successive difference is 80 ms.
+        for (int i = 0; i < 20; i++) {
+            assertTrue(mEngine.onInterval(i % 2 == 0 ? 800 * 1024 / 1000 : 880 * 1024 / 1000));
+        }
+        assertEquals(20, mEngine.getBeatCount());
+        assertEquals(80, mEngine.getRmssd(), 1);
+        assertEquals(100, mEngine.getPnn50(), 0.01f);
+        assertEquals(41, mEngine.getSdnn(), 1);
+    }
+
+    @Test
+    public void rejectsArtifacts() {
+        for (int i = 0; i < 10; i++) {
+            mEngine.onInterval(MS_800);
+        }
+        // Out of range, then a missed beat.
+        assertFalse(mEngine.onInterval(200));
+        assertFalse(mEngine.onInterval(2 * MS_800));
+        assertTrue(mEngine.onInterval(MS_800 + 40));
+        assertEquals(11, mEngine.getAcceptedCount());
+        assertEquals(2, mEngine.getRejectedCount());
+    }
+
+    @Test
+    public void reseedsAfterARhythmChange() {
+        for (int i = 0; i < 10; i++) {
+            mEngine.onInterval(MS_800);
+        }
+        // 500 ms is a valid interval, but far off 800 until the average starts over.
+        for (int i = 0; i < 3; i++) {
+            assertFalse(mEngine.onInterval(512));
+        }
+        assertTrue(mEngine.onInterval(512));
+    }
+
+    @Test
+    public void takesNoDifferencesAcrossGaps() {
+        for (int i = 0; i < 10; i++) {
+            mEngine.onInterval(MS_800);
+        }
+        mEngine.onGap();
+        mEngine.onInterval(MS_800 + 100);
+        // The jump across the gap doesn't count.
+        assertEquals(0, mEngine.getRmssd(), 0);
+        assertEquals(0, mEngine.getPnn50(), 0);
+    }
+
+    @Test
+    public void matchesARecomputationOverTheWindow() {
+        final Random random = new Random(49);
+        final List<int[]> beats = new ArrayList<int[]>();
+        boolean contiguous = false;
+        int average = MS_800;
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(50) == 0) {
+                mEngine.onGap();
+                contiguous = false;
+                continue;
+            }
+            average = Math.max(400, Math.min(1600, average + random.nextInt(21) - 10));
+            final int interval = random.nextInt(30) == 0
+                    ? average * 2 : average + random.nextInt(61) - 30;
+            if (mEngine.onInterval(interval)) {
+                beats.add(new int[] {interval, contiguous && !beats.isEmpty() ? 1 : 0});
+                contiguous = true;
+            } else {
+                contiguous = false;
+            }
+            if (i % 100 == 99) check(beats);
+        }
+    }
+
+    // Recomputes the figures from the beats that fit the window.
+    private void check(List<int[]> beats) {
+        int first = beats.size();
+        long span = 0;
+        while (first > 0 && span + beats.get(first - 1)[0] <= WINDOW) {
+            span += beats.get(--first)[0];
+        }
+        final int count = beats.size() - first;
+        double sum = 0;
+        double sumOfSquares = 0;
+        double differenceSquares = 0;
+        int differences = 0;
+        int nn50 = 0;
+        for (int i = first; i < beats.size(); i++) {
+            final int interval = beats.get(i)[0];
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+            if (i > first && beats.get(i)[1] != 0) {
+                final int difference = interval - beats.get(i - 1)[0];
+                differenceSquares += (double) difference * difference;
+                differences++;
+                if (Math.abs(difference) * 1000 > 50 * 1024) nn50++;
+            }
+        }
+        assertEquals(count, mEngine.getBeatCount());
+        final double sdnn = Math.sqrt((sumOfSquares - sum * sum / count) / (count - 1))
+                * 1000 / 1024;
+        assertEquals(sdnn, mEngine.getSdnn(), 0.01);
+        assertEquals(Math.sqrt(differenceSquares / differences) * 1000 / 1024,
+                mEngine.getRmssd(), 0.01);
+        assertEquals(100.0 * nn50 / differences, mEngine.getPnn50(), 0.01);
+    }
+}
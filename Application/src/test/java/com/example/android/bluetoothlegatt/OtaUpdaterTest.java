@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OtaUpdaterTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int FRAME_SIZE = 20;
+    private static final int BLOCK = OtaUpdater.BLOCK_PACKETS * (FRAME_SIZE - 5);
+    // BluetoothLeService.READ_UUID, written out as the JVM's UUID parser is stricter.
+    private static final UUID TELEMETRY_UUID =
+            UUID.fromString("0000ff01-0000-1000-8000-00805f9b34fb");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private OtaUpdater mUpdater;
+    // Frames sent, and the generation each was sent under.
+    private final List<byte[]> mSent = new ArrayList<byte[]>();
+    private final List<Integer> mGenerations = new ArrayList<Integer>();
+    private Boolean mResult;
+
+    @Before
+    public void setUp() throws IOException {
+        ShadowLooper.pauseMainLooper();
+        SharedPreferences preferences = RuntimeEnvironment.application.getSharedPreferences(
+                OtaUpdater.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mUpdater = new OtaUpdater(preferences, new TimerWheel(new Handler()),
+                new OtaUpdater.Link() {
+                    @Override
+                    public boolean send(byte[] frame) {
+                        mSent.add(frame);
+                        mGenerations.add(mUpdater.getGeneration());
+                        return true;
+                    }
+
+                    @Override
+                    public int getFrameSize() {
+                        return FRAME_SIZE;
+                    }
+
+                    @Override
+                    public void setHighPriority(boolean high) {
+                    }
+                },
+                new OtaUpdater.Listener() {
+                    @Override
+                    public void onProgress(long verifiedBytes, long totalBytes,
+                                           long bytesPerSecond, long etaMillis) {
+                    }
+
+                    @Override
+                    public void onComplete(boolean success) {
+                        mResult = success;
+                    }
+                });
+
+        byte[] image = new byte[BLOCK * 4];
+        new Random(44).nextBytes(image);
+        File file = mFolder.newFile("image.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(image);
+        out.close();
+        assertTrue(mUpdater.start(ADDRESS, file));
+        mUpdater.onConnected(ADDRESS);
+        assertEquals(OtaUpdater.TYPE_BEGIN, mSent.get(0)[0]);
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_READY, 0));
+    }
+
+    @Test
+    public void marksFramesQueuedBeforeARewindStale() {
+        final int before = mUpdater.getGeneration();
+        final int sent = mSent.size();
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_NAK, 0));
+
+        assertTrue(mUpdater.getGeneration() != before);
+        for (int i = 1; i < sent; i++) {
+            assertTrue(mGenerations.get(i) != mUpdater.getGeneration());
+        }
+        // The resend starts over at the NAKed block, under the new generation.
+        assertEquals(OtaUpdater.TYPE_DATA, mSent.get(sent)[0]);
+        assertEquals(0, readInt(mSent.get(sent), 1));
+        assertEquals(mUpdater.getGeneration(), (int) mGenerations.get(sent));
+    }
+
+    @Test
+    public void givesUpAfterTooManyNaks() {
+        for (int i = 0; i < OtaUpdater.MAX_RETRIES; i++) {
+            mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_NAK, 0));
+            assertNull(mResult);
+        }
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_NAK, 0));
+
+        assertEquals(Boolean.FALSE, mResult);
+        assertFalse(mUpdater.isActive());
+    }
+
+    @Test
+    public void countsRetriesSinceTheLastAck() {
+        for (int i = 0; i < OtaUpdater.MAX_RETRIES; i++) {
+            mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_NAK, 0));
+        }
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_ACK, BLOCK));
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_NAK, BLOCK));
+
+        assertNull(mResult);
+        assertTrue(mUpdater.isActive());
+    }
+
+    @Test
+    public void givesUpOnADeviceThatStaysSilent() {
+        ShadowLooper.idleMainLooper(3 * (OtaUpdater.MAX_RETRIES + 1), TimeUnit.SECONDS);
+
+        assertEquals(Boolean.FALSE, mResult);
+        assertFalse(mUpdater.isActive());
+    }
+
+    @Test
+    public void takesReadyOnlyAsTheAnswerToBegin() {
+        mUpdater.onNotification(OtaUpdater.CHANNEL_UUID, frame(OtaUpdater.TYPE_ACK, BLOCK));
+        final int generation = mUpdater.getGeneration();
+        final int sent = mSent.size();
+
+        // A second READY, with no BEGIN since, must not move the offset back.
+        assertFalse(mUpdater.onNotification(OtaUpdater.CHANNEL_UUID,
+                frame(OtaUpdater.TYPE_READY, 0)));
+        assertEquals(generation, mUpdater.getGeneration());
+        assertEquals(sent, mSent.size());
+
+        // After a reconnect, BEGIN is sent again and its READY taken.
+        mUpdater.onDisconnected();
+        mUpdater.onConnected(ADDRESS);
+        assertEquals(OtaUpdater.TYPE_BEGIN, mSent.get(sent)[0]);
+        assertTrue(mUpdater.onNotification(OtaUpdater.CHANNEL_UUID,
+                frame(OtaUpdater.TYPE_READY, BLOCK)));
+        assertEquals(BLOCK, readInt(mSent.get(sent + 1), 1));
+    }
+
+    @Test
+    public void leavesTelemetryAlone() {
+        final int generation = mUpdater.getGeneration();
+        final int sent = mSent.size();
+        // At 176 to 178 bpm the first byte of a telemetry frame reads as READY, ACK and NAK.
+        for (int rate = 176; rate <= 178; rate++) {
+            TelemetryFrame frame = new TelemetryFrame();
+            frame.heartRate = rate;
+            assertFalse(mUpdater.onNotification(TELEMETRY_UUID,
+                    TelemetryFrameCodec.encode(frame)));
+        }
+
+        assertEquals(generation, mUpdater.getGeneration());
+        assertEquals(sent, mSent.size());
+        assertNull(mResult);
+    }
+
+    private static byte[] frame(byte type, int offset) {
+        byte[] frame = new byte[5];
+        frame[0] = type;
+        frame[1] = (byte) (offset >> 24);
+        frame[2] = (byte) (offset >> 16);
+        frame[3] = (byte) (offset >> 8);
+        frame[4] = (byte) offset;
+        return frame;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
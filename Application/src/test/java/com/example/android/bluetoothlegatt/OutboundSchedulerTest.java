@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OutboundSchedulerTest {
+    private OutboundScheduler mScheduler;
+    // Operations in the order they were started.
+    private final List<TestOperation> mStarted = new ArrayList<TestOperation>();
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mScheduler = new OutboundScheduler(new Handler(), new TimerWheel(new Handler()));
+    }
+
+    @Test
+    public void startsOneOperationAtATimeByPriority() {
+        TestOperation polling = new TestOperation(OutboundScheduler.PRIORITY_POLLING);
+        TestOperation alert = new TestOperation(OutboundScheduler.PRIORITY_ALERT);
+        mScheduler.enqueue(polling);
+        mScheduler.enqueue(alert);
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(1, mStarted.size());
+        assertSame(alert, mStarted.get(0));
+
+        mScheduler.onOperationComplete();
+        assertSame(polling, mStarted.get(1));
+        assertEquals(Boolean.TRUE, alert.mResult);
+    }
+
+    @Test
+    public void coalescesKeyedOperations() {
+        TestOperation first = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {1});
+        TestOperation second = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {2});
+        mScheduler.enqueue(first);
+        mScheduler.enqueue(second);
+        ShadowLooper.runUiThreadTasks();
+        // Held back for a superseding operation.
+        assertTrue(mStarted.isEmpty());
+
+        ShadowLooper.idleMainLooper(250, TimeUnit.MILLISECONDS);
+        assertEquals(1, mStarted.size());
+        assertSame(second, mStarted.get(0));
+        assertEquals(1, mScheduler.getCoalescedCount());
+    }
+
+    @Test
+    public void deduplicatesTheLastFrameSentUnderAKey() {
+        mScheduler.enqueue(new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {1}));
+        ShadowLooper.idleMainLooper(250, TimeUnit.MILLISECONDS);
+        mScheduler.onOperationComplete();
+
+        TestOperation again = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {1});
+        mScheduler.enqueue(again);
+        ShadowLooper.idleMainLooper(250, TimeUnit.MILLISECONDS);
+        assertEquals(1, mStarted.size());
+        assertEquals(Boolean.TRUE, again.mResult);
+        assertEquals(1, mScheduler.getDeduplicatedCount());
+    }
+
+    @Test
+    public void resendsAFrameTheDeviceDidNotAcknowledge() {
+        TestOperation failed = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {1});
+        mScheduler.enqueue(failed);
+        ShadowLooper.idleMainLooper(250, TimeUnit.MILLISECONDS);
+        mScheduler.onOperationComplete(false);
+        assertEquals(Boolean.FALSE, failed.mResult);
+
+        TestOperation again = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "state",
+                new byte[] {1});
+        mScheduler.enqueue(again);
+        ShadowLooper.idleMainLooper(250, TimeUnit.MILLISECONDS);
+        assertEquals(2, mStarted.size());
+        assertSame(again, mStarted.get(1));
+        assertEquals(0, mScheduler.getDeduplicatedCount());
+    }
+
+    @Test
+    public void retriesAnOperationThatDoesNotStart() {
+        TestOperation operation = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        operation.mRefusals = 2;
+        mScheduler.enqueue(operation);
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+
+        assertEquals(3, operation.mAttempts);
+        assertEquals(1, mStarted.size());
+        assertNull(operation.mResult);
+    }
+
+    @Test
+    public void keepsTheOrderOfAMessageWhileRetrying() {
+        Object message = new Object();
+        TestOperation[] segments = {
+                new TestOperation(OutboundScheduler.PRIORITY_SYNC, message),
+                new TestOperation(OutboundScheduler.PRIORITY_SYNC, message)
+        };
+        segments[0].mRefusals = 1;
+        mScheduler.enqueueBurst(segments);
+        ShadowLooper.runUiThreadTasks();
+        // Runs the pump before the retry is due.
+        TestOperation poll = new TestOperation(OutboundScheduler.PRIORITY_POLLING);
+        mScheduler.enqueue(poll);
+        ShadowLooper.runUiThreadTasks();
+        assertSame(poll, mStarted.get(0));
+        mScheduler.onOperationComplete();
+        assertEquals(0, segments[1].mAttempts);
+
+        ShadowLooper.idleMainLooper(100, TimeUnit.MILLISECONDS);
+        assertSame(segments[0], mStarted.get(1));
+        mScheduler.onOperationComplete();
+        assertSame(segments[1], mStarted.get(2));
+    }
+
+    @Test
+    public void abortsTheRestOfAMessageThatCannotBeStarted() {
+        Object message = new Object();
+        TestOperation[] segments = new TestOperation[3];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new TestOperation(OutboundScheduler.PRIORITY_SYNC, message);
+        }
+        segments[0].mRefusals = Integer.MAX_VALUE;
+        TestOperation other = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        mScheduler.enqueueBurst(segments);
+        mScheduler.enqueue(other);
+        ShadowLooper.idleMainLooper(500, TimeUnit.MILLISECONDS);
+
+        for (TestOperation segment : segments) {
+            assertEquals(Boolean.FALSE, segment.mResult);
+        }
+        assertEquals(0, segments[1].mAttempts);
+        // Other messages go on.
+        assertEquals(1, mStarted.size());
+        assertSame(other, mStarted.get(0));
+    }
+
+    @Test
+    public void keepsReplacingKeyedOperationsQueuedBehindAnUrgentOne() {
+        TestOperation busy = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        mScheduler.enqueue(busy);
+        ShadowLooper.runUiThreadTasks();
+
+        TestOperation stop = new TestOperation(OutboundScheduler.PRIORITY_ALERT, "stim", null);
+        TestOperation first = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "stim", null);
+        TestOperation second = new TestOperation(OutboundScheduler.PRIORITY_CONTROL, "stim", null);
+        mScheduler.enqueueUrgent(stop);
+        mScheduler.enqueueLatest(first);
+        mScheduler.onOperationComplete();
+        assertSame(stop, mStarted.get(1));
+
+        // Starting the urgent operation must not forget the one queued after it.
+        mScheduler.enqueueLatest(second);
+        mScheduler.onOperationComplete();
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(3, mStarted.size());
+        assertSame(second, mStarted.get(2));
+        assertEquals(0, first.mAttempts);
+    }
+
+    @Test
+    public void failsAnOperationThatNeverCompletes() {
+        TestOperation stuck = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        TestOperation next = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        mScheduler.enqueue(stuck);
+        mScheduler.enqueue(next);
+        ShadowLooper.idleMainLooper(3, TimeUnit.SECONDS);
+
+        assertEquals(Boolean.FALSE, stuck.mResult);
+        assertSame(next, mStarted.get(1));
+    }
+
+    @Test
+    public void ignoresTheLateCallbackOfATimedOutOperation() {
+        Object characteristic = new Object();
+        TestOperation stuck = new TestOperation(OutboundScheduler.PRIORITY_CONTROL);
+        stuck.mAttribute = characteristic;
+        TestOperation stop = new TestOperation(OutboundScheduler.PRIORITY_ALERT, "stim", null);
+        stop.mAttribute = characteristic;
+        mScheduler.enqueue(stuck);
+        ShadowLooper.runUiThreadTasks();
+        ShadowLooper.idleMainLooper(3, TimeUnit.SECONDS);
+        assertEquals(Boolean.FALSE, stuck.mResult);
+
+        mScheduler.enqueueUrgent(stop);
+        ShadowLooper.runUiThreadTasks();
+        assertSame(stop, mStarted.get(1));
+        // The answer to the timed out write, not to the stop.
+        mScheduler.onOperationComplete(characteristic, true);
+        assertNull(stop.mResult);
+
+        mScheduler.onOperationComplete(characteristic, false);
+        assertEquals(Boolean.FALSE, stop.mResult);
+    }
+
+    @Test
+    public void completesTheOperationInFlightWhenTheLateCallbackIsForAnother() {
+        TestOperation stuck = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        stuck.mAttribute = new Object();
+        TestOperation next = new TestOperation(OutboundScheduler.PRIORITY_SYNC);
+        next.mAttribute = new Object();
+        mScheduler.enqueue(stuck);
+        mScheduler.enqueue(next);
+        ShadowLooper.idleMainLooper(3, TimeUnit.SECONDS);
+        assertSame(next, mStarted.get(1));
+
+        mScheduler.onOperationComplete(next.mAttribute, true);
+        assertEquals(Boolean.TRUE, next.mResult);
+    }
+
+    private class TestOperation extends OutboundScheduler.Operation {
+        private final Object mMessage;
+        Object mAttribute;
+        int mRefusals;
+        int mAttempts;
+        Boolean mResult;
+
+        TestOperation(int priority) {
+            this(priority, null, null, null);
+        }
+
+        TestOperation(int priority, Object message) {
+            this(priority, null, null, message);
+        }
+
+        TestOperation(int priority, String key, byte[] frame) {
+            this(priority, key, frame, null);
+        }
+
+        TestOperation(int priority, String key, byte[] frame, Object message) {
+            super(priority, key, frame);
+            mMessage = message;
+        }
+
+        @Override
+        protected boolean execute() {
+            mAttempts++;
+            if (mRefusals > 0) {
+                mRefusals--;
+                return false;
+            }
+            mStarted.add(this);
+            return true;
+        }
+
+        @Override
+        protected void onComplete(boolean success) {
+            mResult = success;
+        }
+
+        @Override
+        protected Object getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        protected Object getAttribute() {
+            return mAttribute;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class OutboundStoreTest {
+    private static final long TTL = 60000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Runs file I/O when the test says so, like a background thread that is slow to get to it.
+    private final List<Runnable> mIo = new ArrayList<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mIo.add(command);
+        }
+    };
+    private final List<OutboundStore.Entry> mSent = new ArrayList<OutboundStore.Entry>();
+    private final OutboundStore.Link mLink = new OutboundStore.Link() {
+        @Override
+        public void send(OutboundStore.Entry entry) {
+            mSent.add(entry);
+        }
+
+        @Override
+        public void sendBurst(OutboundStore.Entry[] entries) {
+            for (OutboundStore.Entry entry : entries) {
+                mSent.add(entry);
+            }
+        }
+    };
+    private final OutboundStore.Listener mListener = new OutboundStore.Listener() {
+        @Override
+        public void onFlushed(int sent, int depth, long elapsed) {
+        }
+    };
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void evictsTheOldestEntryOfTheLowestPriority() {
+        OutboundStore store = open();
+        store.add(OutboundScheduler.PRIORITY_SYNC, "sync/old", TTL, new byte[] {1});
+        store.add(OutboundScheduler.PRIORITY_ALERT, "alert/old", TTL, new byte[] {2});
+        store.add(OutboundScheduler.PRIORITY_SYNC, "sync/new", TTL, new byte[] {3});
+        for (int i = 3; i < OutboundStore.MAX_ENTRIES; i++) {
+            store.add(OutboundScheduler.PRIORITY_CONTROL, "control/" + i, TTL, new byte[] {4});
+        }
+        assertEquals(OutboundStore.MAX_ENTRIES, store.getDepth());
+
+        store.add(OutboundScheduler.PRIORITY_ALERT, "alert/new", TTL, new byte[] {5});
+        assertEquals(OutboundStore.MAX_ENTRIES, store.getDepth());
+        List<String> keys = flushedKeys(store);
+        assertTrue(keys.contains("alert/old"));
+        assertTrue(keys.contains("alert/new"));
+        assertTrue(keys.contains("sync/new"));
+        assertFalse(keys.contains("sync/old"));
+    }
+
+    @Test
+    public void dropsANewEntryThatMattersLeast() {
+        OutboundStore store = open();
+        for (int i = 0; i < OutboundStore.MAX_ENTRIES; i++) {
+            store.add(OutboundScheduler.PRIORITY_ALERT, "alert/" + i, TTL, new byte[] {1});
+        }
+        store.add(OutboundScheduler.PRIORITY_POLLING, "poll", TTL, new byte[] {2});
+
+        assertEquals(OutboundStore.MAX_ENTRIES, store.getDepth());
+        assertFalse(flushedKeys(store).contains("poll"));
+    }
+
+    @Test
+    public void keepsEntriesAcrossInstances() {
+        OutboundStore store = open();
+        store.add(OutboundScheduler.PRIORITY_ALERT, "call", TTL, new byte[] {1});
+        store.add(OutboundScheduler.PRIORITY_ALERT, "call/number", TTL, new byte[] {2});
+        store.addMessage(OutboundScheduler.PRIORITY_CONTROL, "sms", TTL,
+                FrameSegmenter.KIND_SMS, "Alice", "On my way");
+        // Superseded: only the newer call entry is left.
+        store.add(OutboundScheduler.PRIORITY_ALERT, "call", TTL, new byte[] {3});
+        store.release();
+        runIo();
+
+        OutboundStore reopened = open();
+        assertEquals(2, reopened.getDepth());
+        reopened.setReady(true);
+        assertEquals(2, mSent.size());
+        assertEquals(3, mSent.get(0).getFrame()[0]);
+        assertEquals("On my way", mSent.get(1).getBody());
+    }
+
+    @Test
+    public void takesCallsMadeWhileLoadingOnceLoaded() {
+        OutboundStore store = new OutboundStore(mFolder.getRoot(), new Handler(), mExecutor,
+                mLink, mListener);
+        store.setReady(true);
+        store.add(OutboundScheduler.PRIORITY_ALERT, "call", TTL, new byte[] {1});
+        assertTrue(mSent.isEmpty());
+
+        runIo();
+        ShadowLooper.runUiThreadTasks();
+        assertEquals(1, mSent.size());
+        assertEquals(1, store.getDepth());
+    }
+
+    @Test
+    public void removesDeliveredEntriesFromTheFile() {
+        OutboundStore store = open();
+        store.setReady(true);
+        store.add(OutboundScheduler.PRIORITY_ALERT, "call", TTL, new byte[] {1});
+        store.onSent(mSent.get(0), true, true);
+        assertEquals(0, store.getDepth());
+        store.release();
+        runIo();
+
+        assertEquals(0, open().getDepth());
+    }
+
+    // A store with its file loaded.
+    private OutboundStore open() {
+        OutboundStore store = new OutboundStore(mFolder.getRoot(), new Handler(), mExecutor,
+                mLink, mListener);
+        runIo();
+        ShadowLooper.runUiThreadTasks();
+        return store;
+    }
+
+    private void runIo() {
+        while (!mIo.isEmpty()) {
+            mIo.remove(0).run();
+        }
+    }
+
+    private List<String> flushedKeys(OutboundStore store) {
+        mSent.clear();
+        store.setReady(true);
+        List<String> keys = new ArrayList<String>();
+        for (OutboundStore.Entry entry : mSent) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ReadCacheTest {
+    private static final byte[] VALUE = {0x16, 72};
+
+    private ReadCache mCache;
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mCache = new ReadCache();
+        mCharacteristic = new BluetoothGattCharacteristic(
+                UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb"),
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+    }
+
+    @Test
+    public void joinsAnOutstandingRead() {
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+        assertEquals(ReadCache.JOINED, mCache.lookup(mCharacteristic));
+        assertEquals(0.5f, mCache.getHitRatio(), 0);
+    }
+
+    @Test
+    public void answersFromMemoryWithinTheTtl() {
+        mCache.lookup(mCharacteristic);
+        mCache.onRead(mCharacteristic, VALUE);
+        assertEquals(ReadCache.HIT, mCache.lookup(mCharacteristic));
+        assertArrayEquals(VALUE, mCache.getValue(mCharacteristic));
+
+        advance(ReadCache.DEFAULT_TTL);
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+    }
+
+    @Test
+    public void readsAgainAfterAChange() {
+        mCache.lookup(mCharacteristic);
+        mCache.onRead(mCharacteristic, VALUE);
+        mCache.invalidate(mCharacteristic);
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+    }
+
+    @Test
+    public void readsAgainAfterAFailedRead() {
+        mCache.lookup(mCharacteristic);
+        mCache.onReadFailed(mCharacteristic);
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+    }
+
+    @Test
+    public void stopsWaitingForAReadThatNeverCompletes() {
+        mCache.lookup(mCharacteristic);
+        advance(5000);
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+        assertEquals(2, mCache.getMisses());
+    }
+
+    @Test
+    public void onlySharesReadsWithoutATtl() {
+        mCache.setTtl(0);
+        mCache.lookup(mCharacteristic);
+        mCache.onRead(mCharacteristic, VALUE);
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+        assertEquals(ReadCache.JOINED, mCache.lookup(mCharacteristic));
+    }
+
+    @Test
+    public void forgetsEverythingOnClear() {
+        mCache.lookup(mCharacteristic);
+        mCache.onRead(mCharacteristic, VALUE);
+        mCache.clear();
+        assertNull(mCache.getValue(mCharacteristic));
+        assertEquals(ReadCache.MISS, mCache.lookup(mCharacteristic));
+    }
+
+    private static void advance(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the controller through a real {@link OutboundScheduler} against a simulated band that
+ * acknowledges each write one connection interval later.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StimulationControllerTest {
+    private static final long CONNECTION_INTERVAL = 30;
+    private static final String KEY = "stimulation";
+
+    private Handler mHandler;
+    private OutboundScheduler mScheduler;
+    private StimulationController mController;
+    private final List<Write> mReceived = new ArrayList<Write>();
+
+    private static class Write {
+        final long time;
+        final StimulationFrame frame = new StimulationFrame();
+
+        Write(byte[] data) {
+            time = SystemClock.uptimeMillis();
+            StimulationFrameCodec.decode(data, frame);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mHandler = new Handler();
+        TimerWheel timers = new TimerWheel(new Handler());
+        mScheduler = new OutboundScheduler(mHandler, timers);
+        mController = new StimulationController(timers, new StimulationController.Link() {
+            @Override
+            public boolean send(byte[] frame) {
+                mScheduler.enqueueLatest(new DeviceWrite(OutboundScheduler.PRIORITY_CONTROL,
+                        frame));
+                return true;
+            }
+
+            @Override
+            public boolean sendStop(byte[] frame) {
+                mScheduler.enqueueUrgent(new DeviceWrite(OutboundScheduler.PRIORITY_ALERT, frame) {
+                    @Override
+                    protected void onComplete(final boolean success) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mController.onStopComplete(success);
+                            }
+                        });
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    @Test
+    public void rampsFromTheLowestValidStrength() {
+        mController.setStrength(StimulationController.STRENGTH_MAX);
+        mController.start();
+        ShadowLooper.idleMainLooper(6, TimeUnit.SECONDS);
+
+        int previous = 0;
+        for (Write write : mReceived) {
+            assertTrue(write.frame.start);
+            assertTrue("strength " + write.frame.strength,
+                    write.frame.strength >= StimulationController.STRENGTH_MIN);
+            assertTrue(write.frame.strength >= previous);
+            previous = write.frame.strength;
+        }
+        assertEquals(StimulationController.STRENGTH_MIN, mReceived.get(0).frame.strength);
+        assertEquals(StimulationController.STRENGTH_MAX, previous);
+    }
+
+    @Test
+    public void sendsAtMostOneCommandPerPeriod() {
+        mController.setStrength(StimulationController.STRENGTH_MAX);
+        mController.start();
+        ShadowLooper.idleMainLooper(6, TimeUnit.SECONDS);
+
+        assertTrue(mReceived.size() > 2);
+        for (int i = 1; i < mReceived.size(); i++) {
+            assertTrue(mReceived.get(i).time - mReceived.get(i - 1).time
+                    >= StimulationController.COMMAND_PERIOD);
+        }
+    }
+
+    @Test
+    public void stopOvertakesQueuedCommands() {
+        mController.setStrength(StimulationController.STRENGTH_MAX);
+        mController.start();
+        ShadowLooper.idleMainLooper(1, TimeUnit.SECONDS);
+        mController.stop();
+        // A change made after stop must not reach the band either.
+        mController.setStrength(StimulationController.STRENGTH_MAX - 1);
+        ShadowLooper.idleMainLooper(1, TimeUnit.SECONDS);
+
+        Write last = mReceived.get(mReceived.size() - 1);
+        assertFalse(last.frame.start);
+        assertEquals(0, last.frame.strength);
+        int stops = 0;
+        for (Write write : mReceived) {
+            if (!write.frame.start) stops++;
+        }
+        assertEquals(1, stops);
+        assertFalse(mController.isRunning());
+    }
+
+    // A write the simulated band acknowledges one connection interval after it starts.
+    private class DeviceWrite extends OutboundScheduler.Operation {
+        DeviceWrite(int priority, byte[] frame) {
+            super(priority, KEY, frame);
+        }
+
+        @Override
+        protected boolean execute() {
+            mReceived.add(new Write(mFrame));
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    mScheduler.onOperationComplete(true);
+                }
+            }, CONNECTION_INTERVAL);
+            return true;
+        }
+    }
+}
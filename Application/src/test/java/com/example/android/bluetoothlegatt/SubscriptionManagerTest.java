@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SubscriptionManagerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE_A = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID SERVICE_B = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID MEASUREMENT =
+            UUID.fromString("00002a37-0000-1000-8000-00805f9b34fb");
+
+    private SharedPreferences mPreferences;
+    private SubscriptionManager mSubscriptions;
+    // Every batch of descriptor writes, in order.
+    private final List<BluetoothGattCharacteristic[]> mWrites =
+            new ArrayList<BluetoothGattCharacteristic[]>();
+    private final List<byte[][]> mValues = new ArrayList<byte[][]>();
+    private int mSubscribed;
+
+    private BluetoothGattService mServiceA;
+    private BluetoothGattService mServiceB;
+    private BluetoothGattCharacteristic mMeasurementA;
+    private BluetoothGattCharacteristic mMeasurementB;
+
+    @Before
+    public void setUp() {
+        mPreferences = RuntimeEnvironment.application.getSharedPreferences(
+                SubscriptionManager.PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mSubscriptions = new SubscriptionManager(mPreferences, new SubscriptionManager.Link() {
+            @Override
+            public void writeDescriptors(BluetoothGattCharacteristic[] characteristics,
+                                         byte[][] values) {
+                mWrites.add(characteristics);
+                mValues.add(values);
+            }
+        }, new SubscriptionManager.Listener() {
+            @Override
+            public void onSubscribed(String address, int count, long elapsed) {
+                mSubscribed = count;
+            }
+        });
+        // The same characteristic in two services.
+        mServiceA = new BluetoothGattService(SERVICE_A,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mMeasurementA = notifying(MEASUREMENT);
+        mServiceA.addCharacteristic(mMeasurementA);
+        mServiceB = new BluetoothGattService(SERVICE_B,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mMeasurementB = notifying(MEASUREMENT);
+        mServiceB.addCharacteristic(mMeasurementB);
+    }
+
+    @Test
+    public void restoresSubscriptionsAfterReconnecting() {
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertTrue(mWrites.isEmpty());
+
+        assertTrue(mSubscriptions.subscribe(mMeasurementA));
+        assertSame(mMeasurementA, mWrites.get(0)[0]);
+        assertArrayEquals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, mValues.get(0)[0]);
+        assertTrue(mSubscriptions.isSubscribing());
+        mSubscriptions.onDescriptorWrite(mMeasurementA, true);
+        assertFalse(mSubscriptions.isSubscribing());
+        assertEquals(1, mSubscribed);
+
+        mSubscriptions.onDisconnected();
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertEquals(Arrays.asList(mMeasurementA), Arrays.asList(mWrites.get(1)));
+    }
+
+    @Test
+    public void keepsTheSameUuidInAnotherServiceApart() {
+        mSubscriptions.onConnected(ADDRESS, services());
+        mSubscriptions.subscribe(mMeasurementA);
+        // The other service's characteristic completes nothing.
+        mSubscriptions.onDescriptorWrite(mMeasurementB, true);
+        assertTrue(mSubscriptions.isSubscribing());
+        mSubscriptions.onDescriptorWrite(mMeasurementA, true);
+        assertFalse(mSubscriptions.isSubscribing());
+
+        mSubscriptions.subscribe(mMeasurementB);
+        mSubscriptions.unsubscribe(mMeasurementA);
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertEquals(Arrays.asList(mMeasurementB),
+                Arrays.asList(mWrites.get(mWrites.size() - 1)));
+    }
+
+    @Test
+    public void stopsRestoringAfterUnsubscribing() {
+        mSubscriptions.onConnected(ADDRESS, services());
+        mSubscriptions.subscribe(mMeasurementA);
+        mSubscriptions.unsubscribe(mMeasurementA);
+        assertArrayEquals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE, mValues.get(1)[0]);
+        assertFalse(mSubscriptions.isSubscribing());
+
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertEquals(2, mWrites.size());
+    }
+
+    @Test
+    public void adoptsSubscriptionsStoredByUuidAlone() {
+        mPreferences.edit().putStringSet(ADDRESS,
+                new HashSet<String>(Collections.singleton(MEASUREMENT.toString()))).apply();
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertEquals(Arrays.asList(mMeasurementA, mMeasurementB), Arrays.asList(mWrites.get(0)));
+        assertEquals(new HashSet<String>(Arrays.asList(SubscriptionManager.key(mMeasurementA),
+                SubscriptionManager.key(mMeasurementB))),
+                mPreferences.getStringSet(ADDRESS, null));
+    }
+
+    @Test
+    public void refusesCharacteristicsThatCannotNotify() {
+        BluetoothGattCharacteristic readOnly = new BluetoothGattCharacteristic(MEASUREMENT,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        mServiceA.addCharacteristic(readOnly);
+        mSubscriptions.onConnected(ADDRESS, services());
+        assertFalse(mSubscriptions.subscribe(readOnly));
+        assertNull(mPreferences.getStringSet(ADDRESS, null));
+    }
+
+    private List<BluetoothGattService> services() {
+        return Arrays.asList(mServiceA, mServiceB);
+    }
+
+    private static BluetoothGattCharacteristic notifying(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(
+                SubscriptionManager.CLIENT_CHARACTERISTIC_CONFIG,
+                BluetoothGattDescriptor.PERMISSION_WRITE));
+        return characteristic;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.bluetoothlegatt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the wheel on the paused main looper, so time only moves when the test says so.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TimerWheelTest {
+    private TimerWheel mTimers;
+    private long mStart;
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+        mTimers = new TimerWheel(new Handler());
+        mStart = SystemClock.uptimeMillis();
+    }
+
+    @Test
+    public void alignsTimersWithSimilarSlackToOneWakeup() {
+        RecordingTask early = new RecordingTask();
+        RecordingTask late = new RecordingTask();
+        mTimers.schedule(new TimerWheel.Timer(early), 1030, 500);
+        mTimers.schedule(new TimerWheel.Timer(late), 1270, 500);
+
+        ShadowLooper.idleMainLooper(2000, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, early.runs.size());
+        assertEquals(1, late.runs.size());
+        // Both within their slack of the deadline, and together.
+        assertEquals(early.runs.get(0), late.runs.get(0));
+        assertTrue(early.runs.get(0) >= 1270);
+        assertTrue(early.runs.get(0) <= 1030 + 500);
+        assertEquals(1, mTimers.getWakeupsPerMinute());
+        assertEquals(0, mTimers.getLiveTimers());
+    }
+
+    @Test
+    public void keepsTimersWithoutSlackApart() {
+        RecordingTask first = new RecordingTask();
+        RecordingTask second = new RecordingTask();
+        mTimers.schedule(new TimerWheel.Timer(first), 1030, 0);
+        mTimers.schedule(new TimerWheel.Timer(second), 1270, 0);
+
+        ShadowLooper.idleMainLooper(2000, TimeUnit.MILLISECONDS);
+
+        assertEquals(1030, (long) first.runs.get(0));
+        assertEquals(1270, (long) second.runs.get(0));
+        assertEquals(2, mTimers.getWakeupsPerMinute());
+    }
+
+    @Test
+    public void skipsATimerCancelledByATaskDueAtTheSameTime() {
+        final TimerWheel.Timer[] timers = new TimerWheel.Timer[2];
+        final int[] runs = new int[2];
+        for (int i = 0; i < 2; i++) {
+            final int self = i;
+            timers[i] = new TimerWheel.Timer(new Runnable() {
+                @Override
+                public void run() {
+                    runs[self]++;
+                    mTimers.cancel(timers[1 - self]);
+                }
+            });
+        }
+        mTimers.schedule(timers[0], 100, 0);
+        mTimers.schedule(timers[1], 100, 0);
+
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+
+        // Whichever ran first took the other off, although it was already due.
+        assertEquals(1, runs[0] + runs[1]);
+        assertFalse(mTimers.isPending(timers[0]));
+        assertFalse(mTimers.isPending(timers[1]));
+    }
+
+    @Test
+    public void movesATimerRescheduledByATaskDueAtTheSameTime() {
+        final TimerWheel.Timer[] timers = new TimerWheel.Timer[2];
+        final RecordingTask[] tasks = new RecordingTask[2];
+        final boolean[] moved = new boolean[1];
+        for (int i = 0; i < 2; i++) {
+            final int self = i;
+            tasks[i] = new RecordingTask() {
+                @Override
+                public void run() {
+                    super.run();
+                    if (!moved[0]) {
+                        moved[0] = true;
+                        mTimers.schedule(timers[1 - self], 200, 0);
+                    }
+                }
+            };
+            timers[i] = new TimerWheel.Timer(tasks[i]);
+        }
+        mTimers.schedule(timers[0], 100, 0);
+        mTimers.schedule(timers[1], 100, 0);
+
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+
+        List<Long> runs = new ArrayList<Long>(tasks[0].runs);
+        runs.addAll(tasks[1].runs);
+        assertEquals(2, runs.size());
+        assertTrue(runs.contains(100L));
+        assertTrue(runs.contains(300L));
+        assertEquals(1, tasks[0].runs.size());
+    }
+
+    @Test
+    public void reschedulesItselfFromItsOwnTask() {
+        final TimerWheel.Timer[] timer = new TimerWheel.Timer[1];
+        final RecordingTask task = new RecordingTask() {
+            @Override
+            public void run() {
+                super.run();
+                if (runs.size() < 3) {
+                    mTimers.schedule(timer[0], 50, 0);
+                    assertTrue(mTimers.isPending(timer[0]));
+                }
+            }
+        };
+        timer[0] = new TimerWheel.Timer(task);
+        mTimers.schedule(timer[0], 100, 0);
+
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+
+        assertEquals(3, task.runs.size());
+        assertEquals(100, (long) task.runs.get(0));
+        assertEquals(150, (long) task.runs.get(1));
+        assertEquals(200, (long) task.runs.get(2));
+        assertFalse(mTimers.isPending(timer[0]));
+    }
+
+    @Test
+    public void reinsertsAPeriodicTimerAfterEveryRun() {
+        RecordingTask task = new RecordingTask();
+        TimerWheel.Timer timer = new TimerWheel.Timer(task);
+        mTimers.schedulePeriodic(timer, 100, 0);
+
+        ShadowLooper.idleMainLooper(1050, TimeUnit.MILLISECONDS);
+
+        assertEquals(10, task.runs.size());
+        for (int i = 0; i < task.runs.size(); i++) {
+            assertEquals(100 * (i + 1), (long) task.runs.get(i));
+        }
+        // Back on the wheel, still a single timer.
+        assertTrue(mTimers.isPending(timer));
+        assertEquals(1, mTimers.getLiveTimers());
+
+        mTimers.cancel(timer);
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+        assertEquals(10, task.runs.size());
+        assertEquals(0, mTimers.getLiveTimers());
+    }
+
+    @Test
+    public void stopsAPeriodicTimerCancelledFromItsOwnTask() {
+        final TimerWheel.Timer[] timer = new TimerWheel.Timer[1];
+        final RecordingTask task = new RecordingTask() {
+            @Override
+            public void run() {
+                super.run();
+                if (runs.size() == 3) {
+                    mTimers.cancel(timer[0]);
+                }
+            }
+        };
+        timer[0] = new TimerWheel.Timer(task);
+        mTimers.schedulePeriodic(timer[0], 100, 0);
+
+        ShadowLooper.idleMainLooper(1000, TimeUnit.MILLISECONDS);
+
+        // The next run was already inserted when the task cancelled it.
+        assertEquals(3, task.runs.size());
+        assertFalse(mTimers.isPending(timer[0]));
+        assertEquals(0, mTimers.getLiveTimers());
+    }
+
+    // Records when it ran, relative to the start of the test.
+    private class RecordingTask implements Runnable {
+        final List<Long> runs = new ArrayList<Long>();
+
+        @Override
+        public void run() {
+            runs.add(SystemClock.uptimeMillis() - mStart);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.bluetoothlegatt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Decodes telemetry with the generated {@code TelemetryFrameCodec} and with the hand-written
+ * equivalent it replaced.  Both store every field into the same reused frame, so the only
+ * difference is the code that gets there.  The generated codec must be at least as fast.
+ */
+@State(Scope.Thread)
+public class TelemetryDecodeBenchmark {
+    // A power of two; a quarter are the short frames older firmware sends.
+    private static final int FRAMES = 1024;
+
+    private final byte[][] mFrames = new byte[FRAMES][];
+    private final TelemetryFrame mFrame = new TelemetryFrame();
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(46);
+        for (int i = 0; i < FRAMES; i++) {
+            mFrames[i] = new byte[i % 4 == 0 ? TelemetryFrameCodec.MIN_SIZE
+                    : TelemetryFrameCodec.SIZE];
+            random.nextBytes(mFrames[i]);
+        }
+    }
+
+    @Benchmark
+    public TelemetryFrame generated() {
+        TelemetryFrameCodec.decode(nextFrame(), mFrame);
+        return mFrame;
+    }
+
+    @Benchmark
+    public TelemetryFrame handWritten() {
+        decode(nextFrame(), mFrame);
+        return mFrame;
+    }
+
+    private byte[] nextFrame() {
+        return mFrames[mNext++ & (FRAMES - 1)];
+    }
+
+    // The index-based parser the app had, storing into the frame instead of boxing.
+    private static int decode(byte[] data, TelemetryFrame out) {
+        if (data == null || data.length < 13) return -1;
+        out.heartRate = data[0] & 0xFF;
+        out.systolic = data[1] & 0xFF;
+        out.diastolic = data[2] & 0xFF;
+        out.steps = ((data[3] & 0xFF) << 24 | (data[4] & 0xFF) << 16 | (data[5] & 0xFF) << 8
+                | (data[6] & 0xFF)) & 0xFFFFFFFFL;
+        out.year = data[7] & 0xFF;
+        out.month = data[8] & 0xFF;
+        out.day = data[9] & 0xFF;
+        out.hour = data[10] & 0xFF;
+        out.minute = data[11] & 0xFF;
+        out.second = data[12] & 0xFF;
+        if (data.length >= 20) {
+            out.mode = data[13] & 0xFF;
+            out.strength = data[18] & 0xFF;
+        } else {
+            out.mode = 0;
+            out.strength = 0;
+        }
+        return Math.min(data.length, 20);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.frameschema;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * One field of a {@link Frame}.  The field may be a {@code boolean}, an integral primitive or a
+ * {@code byte[]}, and must not be private, as the generated codec accesses it directly.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Field {
+    int offset();
+
+    /**
+     * Width in bytes: up to the size of the Java type for integers, 1 for booleans, and the
+     * room reserved for a byte array.  Shorter arrays are padded with zeros, longer ones cut.
+     */
+    int width() default 1;
+
+    Endian endian() default Endian.BIG;
+
+    /**
+     * Sign-extends integers narrower than their Java type.
+     */
+    boolean signed() default false;
+
+    /**
+     * First and last protocol version that has the field.  In other versions it is left out of
+     * the frame: encoded as zeros and decoded as zero.
+     */
+    int since() default 0;
+
+    int until() default Integer.MAX_VALUE;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.frameschema;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a class as the layout of one fixed-size device frame.  {@link FrameProcessor}
+ * generates a {@code <Class>Codec} next to it with straight-line encoders and decoders over
+ * {@code ByteBuffer}; every field to be coded is annotated with {@link Field}.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface Frame {
+    /**
+     * Size of an encoded frame, in bytes.  Bytes no field covers are sent as zero.
+     */
+    int size();
+
+    /**
+     * Shortest frame that decodes, -1 for {@link #size()}.  Fields past the end of a shorter
+     * frame decode as zero.
+     */
+    int minSize() default -1;
+
+    /**
+     * Value of the first byte, which identifies the frame type, or -1 if the frame has none.
+     * Decoding a frame with another first byte fails.
+     */
+    int opcode() default -1;
+
+    /**
+     * The protocol version the codec's version-less methods use.  See {@link Field#since()}.
+     */
+    int version() default 1;
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.frameschema;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code <Class>Codec} for every class annotated with {@link Frame}:
+ *
+ * <pre>
+ * int decode(ByteBuffer in, [int version,] T out)   bytes decoded, or -1
+ * int decode(byte[] data, T out)
+ * void encode(T in, [int version,] ByteBuffer out)
+ * byte[] encode(T in)
+ * </pre>
+ *
+ * Buffers are read and written with absolute gets and puts from their position, which is left
+ * as it is.  Every field becomes its own shifts and masks, so the codec does no reflection, no
+ * loops except over byte arrays, and allocates nothing but the arrays it decodes into when
+ * they are missing.
+ */
+@SupportedAnnotationTypes({
+        "com.example.android.frameschema.Frame",
+        "com.example.android.frameschema.Field"
+})
+public class FrameProcessor extends AbstractProcessor {
+
+    private static class FieldInfo {
+        String name;
+        TypeKind kind;
+        boolean array;
+        int offset;
+        int width;
+        boolean little;
+        boolean signed;
+        int since;
+        int until;
+
+        int end() {
+            return offset + width;
+        }
+
+        boolean versioned() {
+            return since != 0 || until != Integer.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        // A field of a class that isn't a frame would silently never be coded.
+        for (Element element : round.getElementsAnnotatedWith(Field.class)) {
+            if (element.getEnclosingElement().getAnnotation(Frame.class) == null) {
+                error(element, "@Field only applies to fields of a @Frame class");
+            }
+        }
+        for (Element element : round.getElementsAnnotatedWith(Frame.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@Frame only applies to classes");
+                continue;
+            }
+            final TypeElement type = (TypeElement) element;
+            final Frame frame = type.getAnnotation(Frame.class);
+            final List<FieldInfo> fields = collect(type, frame);
+            if (fields == null) continue;
+            try {
+                write(type, frame, fields);
+            } catch (IOException e) {
+                error(type, "Unable to write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    // The fields to code, sorted by offset, or null after reporting an error.
+    private List<FieldInfo> collect(TypeElement type, Frame frame) {
+        boolean valid = true;
+        final int size = frame.size();
+        final int minSize = frame.minSize() < 0 ? size : frame.minSize();
+        if (size <= 0 || minSize > size || (frame.opcode() >= 0 && minSize < 1)) {
+            error(type, "Invalid size " + size + " or minSize " + minSize);
+            return null;
+        }
+        if (frame.opcode() > 0xFF) {
+            error(type, "Opcode " + frame.opcode() + " doesn't fit a byte");
+            return null;
+        }
+        final List<FieldInfo> fields = new ArrayList<FieldInfo>();
+        for (Element member : type.getEnclosedElements()) {
+            final Field annotation = member.getAnnotation(Field.class);
+            if (annotation == null) continue;
+            final VariableElement variable = (VariableElement) member;
+            final FieldInfo field = new FieldInfo();
+            field.name = variable.getSimpleName().toString();
+            field.offset = annotation.offset();
+            field.width = annotation.width();
+            field.little = annotation.endian() == Endian.LITTLE;
+            field.signed = annotation.signed();
+            field.since = annotation.since();
+            field.until = annotation.until();
+
+            final TypeMirror mirror = variable.asType();
+            if (mirror.getKind() == TypeKind.ARRAY) {
+                field.array = true;
+                field.kind = ((ArrayType) mirror).getComponentType().getKind();
+            } else {
+                field.kind = mirror.getKind();
+            }
+
+            final Set<Modifier> modifiers = variable.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                    || modifiers.contains(Modifier.FINAL)) {
+                error(variable, "Frame fields must not be private, static or final");
+                valid = false;
+            } else if (field.array ? field.kind != TypeKind.BYTE : !isSupported(field.kind)) {
+                error(variable, "Unsupported field type " + mirror);
+                valid = false;
+            } else if (field.width < 1 || (!field.array && field.width > maxWidth(field.kind))) {
+                error(variable, "Width " + field.width + " doesn't fit " + mirror);
+                valid = false;
+            } else if (field.offset < (frame.opcode() >= 0 ? 1 : 0) || field.end() > size) {
+                error(variable, "Field " + field.name + " is outside the frame");
+                valid = false;
+            }
+            fields.add(field);
+        }
+        Collections.sort(fields, new Comparator<FieldInfo>() {
+            @Override
+            public int compare(FieldInfo a, FieldInfo b) {
+                return a.offset - b.offset;
+            }
+        });
+        for (int i = 1; i < fields.size(); i++) {
+            if (fields.get(i).offset < fields.get(i - 1).end()) {
+                error(type, "Fields " + fields.get(i - 1).name + " and " + fields.get(i).name
+                        + " overlap");
+                valid = false;
+            }
+        }
+        return valid ? fields : null;
+    }
+
+    private void write(TypeElement type, Frame frame, List<FieldInfo> fields)
+            throws IOException {
+        final String packageName =
+                ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+        final String frameName = type.getSimpleName().toString();
+        final String codecName = frameName + "Codec";
+        final int size = frame.size();
+        final int minSize = frame.minSize() < 0 ? size : frame.minSize();
+        final StringBuilder out = new StringBuilder();
+
+        out.append("// Generated by ").append(FrameProcessor.class.getSimpleName())
+                .append(" from ").append(frameName).append(".java.  Do not edit.\n\n");
+        out.append("package ").append(packageName).append(";\n\n");
+        out.append("import java.nio.ByteBuffer;\n\n");
+        out.append("public final class ").append(codecName).append(" {\n");
+        out.append("    public static final int SIZE = ").append(size).append(";\n");
+        out.append("    public static final int MIN_SIZE = ").append(minSize).append(";\n");
+        out.append("    public static final int VERSION = ").append(frame.version())
+                .append(";\n\n");
+        out.append("    private ").append(codecName).append("() {\n    }\n\n");
+
+        // Version-less overloads, then a decoder and an encoder each for buffers and arrays.
+        out.append("    public static int decode(ByteBuffer in, ").append(frameName)
+                .append(" out) {\n");
+        out.append("        return decode(in, VERSION, out);\n    }\n\n");
+        out.append("    public static int decode(byte[] data, ").append(frameName)
+                .append(" out) {\n");
+        out.append("        return decode(data, VERSION, out);\n    }\n\n");
+        out.append("    public static void encode(").append(frameName)
+                .append(" in, ByteBuffer out) {\n");
+        out.append("        encode(in, VERSION, out);\n    }\n\n");
+        out.append("    public static byte[] encode(").append(frameName).append(" in) {\n");
+        out.append("        return encode(in, VERSION);\n    }\n\n");
+        writeDecoder(out, frameName, frame, fields, minSize, false);
+        writeDecoder(out, frameName, frame, fields, minSize, true);
+        writeEncoder(out, frameName, frame, fields, false);
+        writeEncoder(out, frameName, frame, fields, true);
+        // Drops the blank line after the last method.
+        out.setLength(out.length() - 1);
+        out.append("}\n");
+
+        final Writer writer = processingEnv.getFiler()
+                .createSourceFile(packageName + "." + codecName, type).openWriter();
+        try {
+            writer.write(out.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes {@code decode(ByteBuffer in, int version, T out)}, or the same over
+     * {@code byte[] data}.  The array version indexes the array directly, so nothing is wrapped.
+     */
+    private static void writeDecoder(StringBuilder out, String frameName, Frame frame,
+                                     List<FieldInfo> fields, int minSize, boolean array) {
+        final String source = array ? "data" : "in";
+        out.append("    public static int decode(").append(array ? "byte[] data" : "ByteBuffer in")
+                .append(", int version, ").append(frameName).append(" out) {\n");
+        if (array) {
+            // Checked on the array itself, so the JIT can drop the bounds checks below.
+            out.append("        if (data == null || data.length < MIN_SIZE) return -1;\n");
+            out.append("        final int p = 0;\n");
+            out.append("        final int n = Math.min(data.length, SIZE);\n");
+        } else {
+            out.append("        final int p = in.position();\n");
+            out.append("        final int n = Math.min(in.remaining(), SIZE);\n");
+            out.append("        if (n < MIN_SIZE) return -1;\n");
+        }
+        if (frame.opcode() >= 0) {
+            out.append("        if (").append(get(source, at(0))).append(" != (byte) ")
+                    .append(hex(frame.opcode())).append(") return -1;\n");
+        }
+        for (FieldInfo field : fields) {
+            String indent = "        ";
+            if (field.versioned()) {
+                out.append(indent).append("if (").append(versionCheck(field)).append(") {\n");
+                indent += "    ";
+            }
+            if (field.array) {
+                out.append(indent).append("if (out.").append(field.name)
+                        .append(" == null || out.").append(field.name).append(".length != ")
+                        .append(field.width).append(") {\n");
+                out.append(indent).append("    out.").append(field.name).append(" = new byte[")
+                        .append(field.width).append("];\n");
+                out.append(indent).append("}\n");
+                out.append(indent).append("for (int i = 0; i < ").append(field.width)
+                        .append("; i++) {\n");
+                final String element = get(source, at(field.offset) + " + i");
+                out.append(indent).append("    out.").append(field.name).append("[i] = ")
+                        .append(field.end() > minSize
+                                ? "i < n - " + field.offset + " ? " + element + " : 0"
+                                : element)
+                        .append(";\n");
+                out.append(indent).append("}\n");
+            } else {
+                String value = read(source, field);
+                if (field.end() > minSize) {
+                    value = "n >= " + field.end() + " ? " + value + " : " + zero(field.kind);
+                }
+                out.append(indent).append("out.").append(field.name).append(" = ")
+                        .append(value).append(";\n");
+            }
+            if (field.versioned()) {
+                out.append("        } else {\n");
+                out.append("            out.").append(field.name).append(" = ")
+                        .append(field.array ? "null" : zero(field.kind)).append(";\n");
+                out.append("        }\n");
+            }
+        }
+        out.append("        return n;\n    }\n\n");
+    }
+
+    /**
+     * Writes {@code encode(T in, int version, ByteBuffer out)}, or
+     * {@code byte[] encode(T in, int version)} filling a new array directly.
+     */
+    private static void writeEncoder(StringBuilder out, String frameName, Frame frame,
+                                     List<FieldInfo> fields, boolean array) {
+        final String target = array ? "data" : "out";
+        final int size = frame.size();
+        if (array) {
+            out.append("    public static byte[] encode(").append(frameName)
+                    .append(" in, int version) {\n");
+            out.append("        final byte[] data = new byte[SIZE];\n");
+            out.append("        final int p = 0;\n");
+        } else {
+            out.append("    public static void encode(").append(frameName)
+                    .append(" in, int version, ByteBuffer out) {\n");
+            out.append("        final int p = out.position();\n");
+        }
+        if (frame.opcode() >= 0) {
+            out.append("        ").append(put(target, at(0), "(byte) " + hex(frame.opcode())))
+                    .append(";\n");
+        }
+        // A buffer may hold anything: bytes no field covers are cleared.  A new array is zero.
+        if (!array) {
+            final boolean[] covered = new boolean[size];
+            covered[0] = frame.opcode() >= 0;
+            for (FieldInfo field : fields) {
+                for (int i = field.offset; i < field.end(); i++) {
+                    covered[i] = true;
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (!covered[i]) {
+                    out.append("        ").append(put(target, at(i), "(byte) 0")).append(";\n");
+                }
+            }
+        }
+        for (FieldInfo field : fields) {
+            String indent = "        ";
+            if (field.versioned()) {
+                out.append(indent).append("if (").append(versionCheck(field)).append(") {\n");
+                indent += "    ";
+            }
+            if (field.array) {
+                out.append(indent).append("{\n");
+                out.append(indent).append("    final byte[] value = in.").append(field.name)
+                        .append(";\n");
+                out.append(indent).append("    final int length = value != null"
+                        + " ? Math.min(value.length, ").append(field.width).append(") : 0;\n");
+                out.append(indent).append("    for (int i = 0; i < ")
+                        .append(array ? "length" : String.valueOf(field.width))
+                        .append("; i++) {\n");
+                out.append(indent).append("        ")
+                        .append(put(target, at(field.offset) + " + i",
+                                array ? "value[i]" : "i < length ? value[i] : 0"))
+                        .append(";\n");
+                out.append(indent).append("    }\n");
+                out.append(indent).append("}\n");
+            } else if (field.kind == TypeKind.BOOLEAN) {
+                out.append(indent).append(put(target, at(field.offset),
+                        "in." + field.name + " ? (byte) 1 : (byte) 0")).append(";\n");
+            } else {
+                for (int i = 0; i < field.width; i++) {
+                    final int shift = i * 8;
+                    out.append(indent).append(put(target, at(index(field, i)),
+                            "(byte) " + (shift > 0 ? "(in." + field.name + " >> " + shift + ")"
+                                    : "in." + field.name)))
+                            .append(";\n");
+                }
+            }
+            if (field.versioned() && !array) {
+                out.append("        } else {\n");
+                for (int i = field.offset; i < field.end(); i++) {
+                    out.append("            ").append(put(target, at(i), "(byte) 0"))
+                            .append(";\n");
+                }
+            }
+            if (field.versioned()) {
+                out.append("        }\n");
+            }
+        }
+        if (array) {
+            out.append("        return data;\n");
+        }
+        out.append("    }\n\n");
+    }
+
+    // An expression reading the field from source, of the field's type.  Up to four bytes are
+    // put together in int arithmetic, even for a long field: 32-bit devices do long shifts
+    // and ors in register pairs.
+    private static String read(String source, FieldInfo field) {
+        final boolean wide = field.width > 4;
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < field.width; i++) {
+            if (value.length() > 0) value.append(" | ");
+            final int shift = i * 8;
+            value.append(shift > 0 ? "(" : "").append("(")
+                    .append(get(source, at(index(field, i))))
+                    .append(" & 0xFF").append(wide ? "L" : "").append(")")
+                    .append(shift > 0 ? " << " + shift + ")" : "");
+        }
+        String expression = value.toString();
+        final int bits = wide ? 64 : 32;
+        if (field.signed && field.width * 8 < bits) {
+            final int shift = bits - field.width * 8;
+            expression = "((" + expression + ") << " + shift + ") >> " + shift;
+        }
+        switch (field.kind) {
+            case BOOLEAN:
+                return get(source, at(field.offset)) + " != 0";
+            case BYTE:
+                return get(source, at(field.offset));
+            case SHORT:
+                return "(short) (" + expression + ")";
+            case CHAR:
+                return "(char) (" + expression + ")";
+            case LONG:
+                if (wide) return expression;
+                // Four unsigned bytes fill the int's sign bit, which must not extend.
+                return field.width == 4 && !field.signed
+                        ? "(" + expression + ") & 0xFFFFFFFFL" : "(long) (" + expression + ")";
+            default:
+                return expression;
+        }
+    }
+
+    // Frame offset of the field's byte holding bits [8 * i, 8 * i + 8).
+    private static int index(FieldInfo field, int i) {
+        return field.little ? field.offset + i : field.offset + field.width - 1 - i;
+    }
+
+    private static String get(String source, String index) {
+        return source.equals("data") ? "data[" + index + "]" : source + ".get(" + index + ")";
+    }
+
+    private static String put(String target, String index, String value) {
+        return target.equals("data") ? "data[" + index + "] = " + value
+                : target + ".put(" + index + ", " + value + ")";
+    }
+
+    // The buffer index of a frame offset.
+    private static String at(int offset) {
+        return offset == 0 ? "p" : "p + " + offset;
+    }
+
+    private static String versionCheck(FieldInfo field) {
+        if (field.until == Integer.MAX_VALUE) return "version >= " + field.since;
+        if (field.since == 0) return "version <= " + field.until;
+        return "version >= " + field.since + " && version <= " + field.until;
+    }
+
+    private static boolean isSupported(TypeKind kind) {
+        return kind == TypeKind.BOOLEAN || maxWidth(kind) > 0;
+    }
+
+    private static int maxWidth(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case SHORT:
+            case CHAR:
+                return 2;
+            case INT:
+                return 4;
+            case LONG:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private static String zero(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "false";
+            case BYTE:
+                return "(byte) 0";
+            case SHORT:
+                return "(short) 0";
+            case CHAR:
+                return "(char) 0";
+            case LONG:
+                return "0L";
+            default:
+                return "0";
+        }
+    }
+
+    private static String hex(int value) {
+        return String.format("0x%02X", value);
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
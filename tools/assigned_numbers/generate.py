@@ -0,0 +1,154 @@
+#!/usr/bin/env python3
+#
+# Copyright (C) 2013 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""Packs the Bluetooth SIG assigned numbers into the binary asset read by AssignedNumbers.java.
+
+Input is a directory of YAML files in the layout of the SIG's public assigned numbers
+repository (assigned_numbers/uuids/*.yaml and company_identifiers/company_identifiers.yaml):
+lists of `uuid:` or `value:` entries, each followed by a `name:`.  A uuid is either a 16-bit
+number (0x180D) or a full 128-bit UUID.  Drop the SIG's files next to the ones here, or point
+--input at a checkout, to regenerate the complete set.
+
+Layout, all big endian:
+  header   magic 'SIGN', version, capacity, count16, count128,
+           offset of the 16-bit table, of the 128-bit table, of the strings
+  16-bit   capacity slots of (int key, int string offset), open addressing with linear
+           probing, empty slots have key -1.  key = kind << 16 | number, kind 0 for GATT
+           UUIDs and 1 for company identifiers
+  128-bit  count128 entries of (long msb, long lsb, int string offset), sorted as signed longs
+  strings  u16 length followed by UTF-8 bytes
+"""
+
+import argparse
+import glob
+import os
+import re
+import struct
+import sys
+
+MAGIC = 0x5349474E
+VERSION = 1
+KIND_UUID = 0
+KIND_COMPANY = 1
+HEADER = struct.Struct('>8i')
+
+ENTRY = re.compile(r'^\s*-\s*(uuid|value)\s*:\s*(\S+)\s*$')
+NAME = re.compile(r'^\s*name\s*:\s*(.*?)\s*$')
+
+
+def unquote(text):
+    if len(text) >= 2 and text[0] == text[-1] == "'":
+        return text[1:-1].replace("''", "'")
+    if len(text) >= 2 and text[0] == text[-1] == '"':
+        return text[1:-1]
+    return text
+
+
+def parse(path):
+    """Yields (key, name) pairs from one YAML file."""
+    key = None
+    with open(path, encoding='utf-8') as f:
+        for line in f:
+            m = ENTRY.match(line)
+            if m:
+                key = (m.group(1), m.group(2))
+                continue
+            m = NAME.match(line)
+            if m and key is not None:
+                yield key, unquote(m.group(1))
+                key = None
+
+
+def signed(value):
+    return value - (1 << 64) if value >= 1 << 63 else value
+
+
+def hash_slot(key, shift):
+    # Same as AssignedNumbers.find16(): Fibonacci hashing on the 32-bit key.
+    return ((key * 0x9E3779B1) & 0xFFFFFFFF) >> shift
+
+
+def build(entries16, entries128):
+    strings = bytearray()
+    string_offsets = {}
+
+    def intern(name):
+        if name not in string_offsets:
+            data = name.encode('utf-8')
+            string_offsets[name] = len(strings)
+            strings.extend(struct.pack('>H', len(data)))
+            strings.extend(data)
+        return string_offsets[name]
+
+    # Keep the load factor at or below one half so probes stay short.
+    bits = 1
+    while (1 << bits) < 2 * len(entries16):
+        bits += 1
+    capacity = 1 << bits
+    shift = 32 - bits
+    keys = [-1] * capacity
+    values = [0] * capacity
+    for key, name in sorted(entries16.items()):
+        slot = hash_slot(key, shift)
+        while keys[slot] != -1:
+            slot = (slot + 1) & (capacity - 1)
+        keys[slot] = key
+        values[slot] = intern(name)
+
+    rows128 = sorted((signed(msb), signed(lsb), intern(name))
+                     for (msb, lsb), name in entries128.items())
+
+    table16 = b''.join(struct.pack('>ii', k, v) for k, v in zip(keys, values))
+    table128 = b''.join(struct.pack('>qqi', msb, lsb, v) for msb, lsb, v in rows128)
+    offset16 = HEADER.size
+    offset128 = offset16 + len(table16)
+    offset_strings = offset128 + len(table128)
+    header = HEADER.pack(MAGIC, VERSION, capacity, len(entries16), len(rows128),
+                         offset16, offset128, offset_strings)
+    return header + table16 + table128 + bytes(strings)
+
+
+def main():
+    here = os.path.dirname(os.path.abspath(__file__))
+    parser = argparse.ArgumentParser(description=__doc__.split('\n')[0])
+    parser.add_argument('--input', default=here)
+    parser.add_argument('--output', default=os.path.join(
+        here, '..', '..', 'Application', 'src', 'main', 'assets', 'assigned_numbers.bin'))
+    args = parser.parse_args()
+
+    entries16 = {}
+    entries128 = {}
+    for path in sorted(glob.glob(os.path.join(args.input, '**', '*.yaml'), recursive=True)):
+        for (field, raw), name in parse(path):
+            if field == 'value':
+                entries16[(KIND_COMPANY << 16) | int(raw, 16)] = name
+            elif '-' in raw:
+                value = int(raw.replace('-', ''), 16)
+                entries128[(value >> 64, value & ((1 << 64) - 1))] = name
+            else:
+                entries16[(KIND_UUID << 16) | int(raw, 16)] = name
+
+    data = build(entries16, entries128)
+    os.makedirs(os.path.dirname(os.path.abspath(args.output)), exist_ok=True)
+    with open(args.output, 'wb') as f:
+        f.write(data)
+    print('%d 16-bit entries, %d 128-bit entries, %d bytes -> %s'
+          % (len(entries16), len(entries128), len(data), os.path.normpath(args.output)),
+          file=sys.stderr)
+
+
+if __name__ == '__main__':
+    main()